@@ -0,0 +1,29 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android class so the decode pipeline can be benchmarked on a plain JVM
+ * Only the constants used by the scanner are provided, with the values of the Android SDK
+ */
+public class ImageFormat {
+
+  public final static int UNKNOWN = 0;
+  public final static int NV16 = 0x10;
+  public final static int NV21 = 0x11;
+  public final static int YUY2 = 0x14;
+  public final static int YUV_420_888 = 0x23;
+  public final static int YV12 = 0x32315659;
+
+  public static int getBitsPerPixel(int format) {
+    switch (format) {
+      case NV16:
+      case YUY2:
+        return 16;
+      case NV21:
+      case YV12:
+      case YUV_420_888:
+        return 12;
+      default:
+        return -1;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package de.evopark.tiqr.benchmark;
+
+import android.graphics.ImageFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.HybridBinarizer;
+import de.evopark.tiqr.android.processing.ReusableHybridBinarizer;
+import de.evopark.tiqr.android.processing.YuvLuminanceSource;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that binarizing with ReusableHybridBinarizer doesn't allocate anything once it has seen the first frame
+ * <p>
+ * Frames of different scenes are alternately loaded into the same luminance source and binarized, first to let
+ * the JIT compile the code, then while the bytes allocated by the thread are counted. zxing's HybridBinarizer,
+ * which is created per frame like the decoder used to do, is measured the same way for comparison.
+ * Exits with status 1 if the reusable binarizer allocated anything in the steady state.
+ * <p>
+ * Usage: java -cp benchmarks.jar de.evopark.tiqr.benchmark.BinarizerAllocations
+ */
+public final class BinarizerAllocations {
+
+  private final static String[] RESOLUTIONS = {"640x480", "1280x720", "1920x1080"};
+  private final static SyntheticFrames.Scene[] SCENES = {
+      SyntheticFrames.Scene.CLEAN, SyntheticFrames.Scene.BLURRED, SyntheticFrames.Scene.ROTATED
+  };
+  private final static int WARM_UP_ITERATIONS = 20000;
+  private final static int MEASURED_ITERATIONS = 2000;
+
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final long threadId = Thread.currentThread().getId();
+  // keeps the results alive so the JIT can't drop the binarization
+  private int sink = 0;
+
+  private BinarizerAllocations() {
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("The JVM can't count allocated bytes per thread");
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(new BinarizerAllocations().run() ? 0 : 1);
+  }
+
+  private boolean run() throws NotFoundException {
+    System.out.println(String.format("%-10s %22s %22s", "resolution", "reusable bytes/frame", "zxing bytes/frame"));
+    boolean allocationFree = true;
+    for (String resolution : RESOLUTIONS) {
+      final int[] size = SyntheticFrames.parseResolution(resolution);
+      final byte[][] frames = new byte[SCENES.length][];
+      for (int i = 0; i < SCENES.length; i++) {
+        frames[i] = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, size[0], size[1], ImageFormat.NV21,
+            SCENES[i], i);
+      }
+      final YuvLuminanceSource source = new YuvLuminanceSource(size[0], size[1], 1);
+      final ReusableHybridBinarizer reusable = new ReusableHybridBinarizer(source);
+      binarize(source, reusable, frames, size[0], WARM_UP_ITERATIONS);
+      final double reusableBytes = measure(source, reusable, frames, size[0]);
+      binarize(source, null, frames, size[0], WARM_UP_ITERATIONS / 10);
+      final double zxingBytes = measure(source, null, frames, size[0]);
+      System.out.println(String.format("%-10s %22.1f %22.1f", resolution, reusableBytes, zxingBytes));
+      if (reusableBytes > 0) {
+        allocationFree = false;
+      }
+    }
+    System.out.println(allocationFree ? "No steady-state allocations" : "FAILED: the binarizer allocates per frame");
+    return allocationFree;
+  }
+
+  /**
+   * @return bytes allocated per frame, without what reading the counter itself costs
+   */
+  private double measure(YuvLuminanceSource source, Binarizer binarizer, byte[][] frames, int rowStride)
+      throws NotFoundException {
+    long overhead = threads.getThreadAllocatedBytes(threadId);
+    overhead = threads.getThreadAllocatedBytes(threadId) - overhead;
+    final long start = threads.getThreadAllocatedBytes(threadId);
+    binarize(source, binarizer, frames, rowStride, MEASURED_ITERATIONS);
+    final long allocated = threads.getThreadAllocatedBytes(threadId) - start - overhead;
+    return Math.max(0, allocated) / (double) MEASURED_ITERATIONS;
+  }
+
+  /**
+   * @param binarizer binarizer bound to the source, null to create a zxing HybridBinarizer per frame
+   */
+  private void binarize(YuvLuminanceSource source, Binarizer binarizer, byte[][] frames, int rowStride,
+                        int iterations) throws NotFoundException {
+    for (int i = 0; i < iterations; i++) {
+      source.setFrame(frames[i % frames.length], rowStride, 1, 0, 0);
+      final Binarizer current = binarizer != null ? binarizer : new HybridBinarizer(source);
+      sink += current.getBlackMatrix().getRowSize();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package de.evopark.tiqr.benchmark;
+
+import android.graphics.ImageFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.FrameSource;
+import de.evopark.tiqr.android.processing.FinderPatternPreDetector;
+import de.evopark.tiqr.android.processing.YuvLuminanceSource;
+import de.evopark.tiqr.android.util.FileFrameSource;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Measures how often the FinderPatternPreDetector rejects frames the full decoder can read, and how many
+ * of the frames without a readable code it rejects
+ * <p>
+ * The corpus consists of synthetic frames of every scene at several resolutions, synthetic frames without
+ * a code and any recordings made with FrameRecorder. Whether zxing decodes a frame with TRY_HARDER counts
+ * as the truth.
+ * <p>
+ * Usage: java -cp benchmarks.jar de.evopark.tiqr.benchmark.PreDetectorAccuracy [recording...]
+ */
+public final class PreDetectorAccuracy {
+
+  private final static String[] RESOLUTIONS = {"640x480", "1280x720", "1920x1080"};
+  private final static int SEEDS_PER_SCENE = 5;
+  private final static int FRAMES_WITHOUT_CODE = 20;
+
+  private final FinderPatternPreDetector detector = new FinderPatternPreDetector();
+  private final QRCodeReader reader = new QRCodeReader();
+  private final Map<DecodeHintType, Object> hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
+
+  /**
+   * Outcomes for one part of the corpus
+   */
+  private static class Tally {
+    final String name;
+    int frames = 0;
+    int decodable = 0;
+    int falseNegatives = 0;
+    int rejected = 0;
+    long detectNanos = 0;
+    long decodeNanos = 0;
+
+    Tally(String name) {
+      this.name = name;
+    }
+
+    void add(Tally other) {
+      frames += other.frames;
+      decodable += other.decodable;
+      falseNegatives += other.falseNegatives;
+      rejected += other.rejected;
+      detectNanos += other.detectNanos;
+      decodeNanos += other.decodeNanos;
+    }
+
+    void print() {
+      final int undecodable = frames - decodable;
+      final int trueRejects = rejected - falseNegatives;
+      System.out.println(String.format("%-16s %6d %10d %8d (%5.1f%%) %9d (%5.1f%%) %8.3fms %8.3fms",
+          name, frames, decodable, falseNegatives, percent(falseNegatives, decodable), trueRejects,
+          percent(trueRejects, undecodable), frames == 0 ? 0 : detectNanos / 1e6 / frames,
+          frames == 0 ? 0 : decodeNanos / 1e6 / frames));
+    }
+
+    private static double percent(int part, int whole) {
+      return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+  }
+
+  private PreDetectorAccuracy() {
+    hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new PreDetectorAccuracy().run(args);
+  }
+
+  private void run(String[] recordings) throws Exception {
+    System.out.println(String.format("%-16s %6s %10s %19s %20s %10s %10s", "corpus", "frames", "decodable",
+        "false negatives", "rejected w/o code", "detect", "decode"));
+    final Tally total = new Tally("total");
+    for (SyntheticFrames.Scene scene : SyntheticFrames.Scene.values()) {
+      final Tally tally = new Tally(scene.name());
+      for (String resolution : RESOLUTIONS) {
+        final int[] size = SyntheticFrames.parseResolution(resolution);
+        for (int seed = 0; seed < SEEDS_PER_SCENE; seed++) {
+          final byte[] data;
+          try {
+            data = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, size[0], size[1], ImageFormat.NV21, scene, seed);
+          } catch (IllegalArgumentException e) {
+            // the code doesn't fit into the frame
+            break;
+          }
+          evaluate(tally, data, size[0], size[1], size[0], 1);
+        }
+      }
+      tally.print();
+      total.add(tally);
+    }
+    final Tally withoutCode = new Tally("WITHOUT_CODE");
+    for (String resolution : RESOLUTIONS) {
+      final int[] size = SyntheticFrames.parseResolution(resolution);
+      for (int seed = 0; seed < FRAMES_WITHOUT_CODE; seed++) {
+        evaluate(withoutCode, SyntheticFrames.renderWithoutCode(size[0], size[1], ImageFormat.NV21, seed),
+            size[0], size[1], size[0], 1);
+      }
+    }
+    withoutCode.print();
+    total.add(withoutCode);
+    for (String recording : recordings) {
+      final Tally tally = evaluateRecording(new File(recording));
+      tally.print();
+      total.add(tally);
+    }
+    total.print();
+  }
+
+  private Tally evaluateRecording(File recording) throws InterruptedException {
+    final Tally tally = new Tally(recording.getName());
+    final FileFrameSource source = new FileFrameSource(recording, false, false);
+    source.start(new FrameSource.Listener() {
+      @Override
+      public void frameAvailable(PreviewFrame frame) {
+        if (frame.getData() != null && YuvLuminanceSource.isSupported(frame.getFormat())) {
+          evaluate(tally, frame.getData(), frame.getWidth(), frame.getHeight(), frame.getRowStride(),
+              frame.getPixelStride());
+        }
+      }
+    });
+    source.join();
+    return tally;
+  }
+
+  private void evaluate(Tally tally, byte[] data, int width, int height, int rowStride, int pixelStride) {
+    final YuvLuminanceSource source = new YuvLuminanceSource(width, height, 1);
+    source.setFrame(data, rowStride, pixelStride, 0, 0);
+    long start = System.nanoTime();
+    final boolean accepted = detector.accept(source);
+    tally.detectNanos += System.nanoTime() - start;
+    start = System.nanoTime();
+    boolean decodable;
+    try {
+      reader.decode(new BinaryBitmap(new HybridBinarizer(source)), hints);
+      decodable = true;
+    } catch (ReaderException e) {
+      decodable = false;
+    } finally {
+      reader.reset();
+    }
+    tally.decodeNanos += System.nanoTime() - start;
+    tally.frames++;
+    if (decodable) {
+      tally.decodable++;
+    }
+    if (!accepted) {
+      tally.rejected++;
+      if (decodable) {
+        tally.falseNegatives++;
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package de.evopark.tiqr.benchmark;
+
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.FrameSource;
+import de.evopark.tiqr.android.interfaces.QrCodeResultHandler;
+import de.evopark.tiqr.android.processing.ScanStatistics;
+import de.evopark.tiqr.android.processing.ScannedCode;
+import de.evopark.tiqr.android.processing.ZxingQrScanner;
+import de.evopark.tiqr.android.util.FileFrameSource;
+import de.evopark.tiqr.android.util.FrameRecorder;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs the scanner over a recording made with FrameRecorder as fast as possible and prints throughput
+ * and decode counts, e.g. to reproduce a problem seen in the field on a desktop machine
+ * <p>
+ * Usage: java -cp benchmarks.jar de.evopark.tiqr.benchmark.ReplayThroughput recording [passes]
+ * <br>
+ * or, to create a recording from synthetic frames:
+ * java -cp benchmarks.jar de.evopark.tiqr.benchmark.ReplayThroughput --synthetic recording resolution format scene frames
+ */
+public final class ReplayThroughput {
+
+  private ReplayThroughput() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length >= 6 && "--synthetic".equals(args[0])) {
+      writeSynthetic(new File(args[1]), args[2], args[3], SyntheticFrames.Scene.valueOf(args[4]),
+          Integer.parseInt(args[5]));
+      return;
+    }
+    if (args.length < 1) {
+      System.err.println("Usage: ReplayThroughput recording [passes]");
+      System.exit(1);
+    }
+    final File recording = new File(args[0]);
+    final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    for (int pass = 1; pass <= passes; pass++) {
+      replay(recording, pass);
+    }
+  }
+
+  private static void replay(File recording, int pass) throws InterruptedException {
+    final long[] codes = new long[1];
+    final ZxingQrScanner scanner = new ZxingQrScanner(new QrCodeResultHandler() {
+      @Override
+      public void codeFound(String code) {
+        codes[0]++;
+      }
+
+      @Override
+      public void codesFound(List<ScannedCode> found) {
+        codes[0] += found.size();
+      }
+    });
+    final FileFrameSource source = new FileFrameSource(recording, false, false);
+    final long start = System.nanoTime();
+    source.start(new FrameSource.Listener() {
+      @Override
+      public void frameAvailable(PreviewFrame frame) {
+        scanner.processFrame(frame);
+      }
+    });
+    source.join();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    final ScanStatistics statistics = scanner.getStatistics();
+    System.out.println(String.format("pass %d: %d frames in %.2fs, %.1f frames/s, %d codes, %d frames skipped, " +
+            "%d unchanged, binarize p50 %.2fms, decode p50 %.2fms",
+        pass, source.getReplayedFrameCount(), seconds, source.getReplayedFrameCount() / seconds, codes[0],
+        statistics.get(ScanStatistics.Counter.FRAMES_SKIPPED),
+        statistics.get(ScanStatistics.Counter.FRAMES_UNCHANGED),
+        statistics.getHistogram(ScanStatistics.Stage.BINARIZE).getPercentileNanos(0.5f) / 1e6,
+        statistics.getHistogram(ScanStatistics.Stage.DETECT_AND_DECODE).getPercentileNanos(0.5f) / 1e6));
+    scanner.shutdown();
+  }
+
+  private static void writeSynthetic(File output, String resolution, String format, SyntheticFrames.Scene scene,
+                                     int frames) throws Exception {
+    final int[] size = SyntheticFrames.parseResolution(resolution);
+    final int imageFormat = SyntheticFrames.parseFormat(format);
+    final byte[] sample = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, size[0], size[1], imageFormat, scene, 0);
+    final FrameRecorder recorder = new FrameRecorder(output, 64L + (long) frames * (sample.length + 64));
+    try {
+      final long frameInterval = 33333333L;
+      for (int i = 0; i < frames; i++) {
+        final byte[] data = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, size[0], size[1], imageFormat, scene, i);
+        final PreviewFrame frame = new PreviewFrame(data, size[0], size[1], imageFormat,
+            PreviewFrame.defaultRowStride(size[0], imageFormat), 90, i * frameInterval, i, null);
+        recorder.processFrame(frame);
+        frame.release();
+      }
+    } finally {
+      recorder.close();
+    }
+    System.out.println(String.format("Wrote %d frames to %s", recorder.getRecordedFrameCount(), output));
+  }
+}
@@ -0,0 +1,105 @@
+package de.evopark.tiqr.benchmark;
+
+import de.evopark.tiqr.android.interfaces.QrCodeResultHandler;
+import de.evopark.tiqr.android.processing.ScannedCode;
+import de.evopark.tiqr.android.processing.ZxingQrScanner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+/**
+ * Measures the whole pipeline as the camera drives it, one ZxingQrScanner.processBitmap call per frame
+ * The "codes" counter reports how many of the frames were decoded, so a faster but blind configuration
+ * doesn't go unnoticed
+ * <p>
+ * Run with "-prof gc" to see the allocation rate per frame
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+
+  // frames with different noise are cycled so nothing can be learned from an identical buffer
+  private final static int FRAME_COUNT = 4;
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  @Param({"NV21", "YV12", "YUY2"})
+  public String format;
+
+  @Param({"CLEAN", "SMALL_MODULES", "LARGE_MODULES", "NOISY", "BLURRED", "ROTATED", "LOW_CONTRAST"})
+  public SyntheticFrames.Scene scene;
+
+  private int width;
+  private int height;
+  private int imageFormat;
+  private byte[][] frames;
+  private int nextFrame = 0;
+  private ZxingQrScanner scanner;
+  private long codesFound = 0;
+
+  /**
+   * Decoded frames per benchmark operation
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class DecodeCounters {
+    public long codes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      codes = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final int[] size = SyntheticFrames.parseResolution(resolution);
+    width = size[0];
+    height = size[1];
+    imageFormat = SyntheticFrames.parseFormat(format);
+    frames = new byte[FRAME_COUNT][];
+    for (int i = 0; i < FRAME_COUNT; i++) {
+      frames[i] = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, width, height, imageFormat, scene, i);
+      SyntheticFrames.checkDecodable(frames[i], width, height, imageFormat);
+    }
+    scanner = new ZxingQrScanner(new QrCodeResultHandler() {
+      @Override
+      public void codeFound(String code) {
+        codesFound++;
+      }
+
+      @Override
+      public void codesFound(List<ScannedCode> codes) {
+        codesFound += codes.size();
+      }
+    });
+    // the few frames cycled here would mostly be recognized as unchanged and not decoded at all
+    scanner.getSceneChangeDetector().setThreshold(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    scanner.shutdown();
+  }
+
+  @Benchmark
+  public void processBitmap(DecodeCounters counters) {
+    final long before = codesFound;
+    scanner.processBitmap(width, height, imageFormat, frames[nextFrame]);
+    nextFrame = (nextFrame + 1) % FRAME_COUNT;
+    counters.codes += codesFound - before;
+  }
+}
@@ -0,0 +1,123 @@
+package de.evopark.tiqr.benchmark;
+
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.DecoderResult;
+import com.google.zxing.common.DetectorResult;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.detector.Detector;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.processing.FinderPatternPreDetector;
+import de.evopark.tiqr.android.processing.FrameQualityEstimator;
+import de.evopark.tiqr.android.processing.ReusableHybridBinarizer;
+import de.evopark.tiqr.android.processing.YuvLuminanceSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the stages of the pipeline on their own: reading luminance, scoring frame quality, looking for
+ * finder patterns, binarizing, locating the code and decoding its bits
+ * The pre-detector is measured on a frame without a code as well, which it has to search completely
+ * zxing's own HybridBinarizer is included as a baseline for ReusableHybridBinarizer; with "-prof gc"
+ * the reusable one should allocate nothing per operation
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  @Param({"NV21", "YV12", "YUY2"})
+  public String format;
+
+  @Param({"CLEAN", "NOISY", "LOW_CONTRAST"})
+  public SyntheticFrames.Scene scene;
+
+  private byte[] frame;
+  private int rowStride;
+  private int pixelStride;
+  private YuvLuminanceSource source;
+  private ReusableHybridBinarizer binarizer;
+  private FrameQualityEstimator qualityEstimator;
+  private FinderPatternPreDetector preDetector;
+  private YuvLuminanceSource sourceWithoutCode;
+  private BitMatrix blackMatrix;
+  private DetectorResult detectorResult;
+  private final Decoder decoder = new Decoder();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    final int[] size = SyntheticFrames.parseResolution(resolution);
+    final int imageFormat = SyntheticFrames.parseFormat(format);
+    frame = SyntheticFrames.render(SyntheticFrames.DEFAULT_TEXT, size[0], size[1], imageFormat, scene, 0);
+    SyntheticFrames.checkDecodable(frame, size[0], size[1], imageFormat);
+    rowStride = PreviewFrame.defaultRowStride(size[0], imageFormat);
+    pixelStride = YuvLuminanceSource.pixelStride(imageFormat);
+    source = new YuvLuminanceSource(size[0], size[1], 1);
+    source.setFrame(frame, rowStride, pixelStride, 0, 0);
+    binarizer = new ReusableHybridBinarizer(source);
+    qualityEstimator = new FrameQualityEstimator();
+    preDetector = new FinderPatternPreDetector();
+    sourceWithoutCode = new YuvLuminanceSource(size[0], size[1], 1);
+    sourceWithoutCode.setFrame(SyntheticFrames.renderWithoutCode(size[0], size[1], imageFormat, 0), rowStride,
+        pixelStride, 0, 0);
+    // the later stages work on copies so they don't depend on the reused buffers
+    blackMatrix = binarizer.getBlackMatrix().clone();
+    detectorResult = new Detector(blackMatrix).detect();
+  }
+
+  @Benchmark
+  public byte[] readLuminance() {
+    // pointing the source at the frame again invalidates the cached matrix
+    source.setFrame(frame, rowStride, pixelStride, 0, 0);
+    return source.getMatrix();
+  }
+
+  @Benchmark
+  public boolean estimateQuality() {
+    return qualityEstimator.accept(source);
+  }
+
+  @Benchmark
+  public boolean preDetect() {
+    return preDetector.accept(source);
+  }
+
+  @Benchmark
+  public boolean preDetectWithoutCode() {
+    return preDetector.accept(sourceWithoutCode);
+  }
+
+  @Benchmark
+  public BitMatrix binarizeReusable() throws NotFoundException {
+    source.setFrame(frame, rowStride, pixelStride, 0, 0);
+    return binarizer.getBlackMatrix();
+  }
+
+  @Benchmark
+  public BitMatrix binarizeZxing() throws NotFoundException {
+    source.setFrame(frame, rowStride, pixelStride, 0, 0);
+    return new HybridBinarizer(source).getBlackMatrix();
+  }
+
+  @Benchmark
+  public DetectorResult detect() throws Exception {
+    return new Detector(blackMatrix).detect();
+  }
+
+  @Benchmark
+  public DecoderResult decode() throws Exception {
+    return decoder.decode(detectorResult.getBits());
+  }
+}
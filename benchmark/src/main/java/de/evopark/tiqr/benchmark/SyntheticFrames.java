@@ -0,0 +1,296 @@
+package de.evopark.tiqr.benchmark;
+
+import android.graphics.ImageFormat;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ReaderException;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.qrcode.QRCodeWriter;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.processing.DecodeEscalationPolicy;
+import de.evopark.tiqr.android.processing.ReusableHybridBinarizer;
+import de.evopark.tiqr.android.processing.YuvLuminanceSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Renders QR codes into camera-like preview frames
+ * The code is drawn into the middle of a luminance plane according to a Scene, which decides about
+ * module size, rotation, contrast, blur and sensor noise, and then packed into one of the preview formats
+ * with neutral chroma. Noise is seeded so runs are comparable.
+ */
+public final class SyntheticFrames {
+
+  public final static String DEFAULT_TEXT = "https://www.evopark.de/ticket/0123456789";
+
+  private final static int MID_GREY = 128;
+  private final static int FULL_SWING = 100;
+
+  /**
+   * Imaging conditions of a frame
+   * Every scene has to stay decodable, see checkDecodable. The background around the code is flat, and
+   * HybridBinarizer thresholds flat blocks whose noise spans more than 24 grey levels at their own average,
+   * which turns them into speckle; from a sigma of about 6 on no frame decodes at all. The same goes for
+   * a contrast of 0.2, which leaves the code too close to the noise floor.
+   */
+  public enum Scene {
+    CLEAN(4, 0f, 1f, 0, 0f),
+    SMALL_MODULES(2, 0f, 1f, 0, 0f),
+    LARGE_MODULES(8, 0f, 1f, 0, 0f),
+    NOISY(4, 0f, 1f, 0, 4f),
+    BLURRED(6, 0f, 1f, 2, 0f),
+    ROTATED(4, 30f, 1f, 0, 0f),
+    LOW_CONTRAST(4, 0f, 0.3f, 0, 2f);
+
+    private final int moduleSize;
+    private final float rotation;
+    private final float contrast;
+    private final int blurRadius;
+    private final float noise;
+
+    /**
+     * @param moduleSize size of one module in pixels
+     * @param rotation   rotation of the code in degrees
+     * @param contrast   difference between dark and light modules, 1 for full swing
+     * @param blurRadius radius of the box blur in pixels, 0 for a sharp picture
+     * @param noise      standard deviation of the gaussian sensor noise in grey levels
+     */
+    Scene(int moduleSize, float rotation, float contrast, int blurRadius, float noise) {
+      this.moduleSize = moduleSize;
+      this.rotation = rotation;
+      this.contrast = contrast;
+      this.blurRadius = blurRadius;
+      this.noise = noise;
+    }
+  }
+
+  private SyntheticFrames() {
+  }
+
+  /**
+   * Parses a resolution parameter
+   *
+   * @param resolution e.g. "1280x720"
+   * @return {width, height}
+   */
+  public static int[] parseResolution(String resolution) {
+    final int separator = resolution.indexOf('x');
+    return new int[]{Integer.parseInt(resolution.substring(0, separator)),
+        Integer.parseInt(resolution.substring(separator + 1))};
+  }
+
+  /**
+   * Parses a format parameter
+   *
+   * @param format "NV21", "YV12" or "YUY2"
+   * @return the ImageFormat constant
+   */
+  public static int parseFormat(String format) {
+    if ("NV21".equals(format)) {
+      return ImageFormat.NV21;
+    } else if ("YV12".equals(format)) {
+      return ImageFormat.YV12;
+    } else if ("YUY2".equals(format)) {
+      return ImageFormat.YUY2;
+    }
+    throw new IllegalArgumentException("Unsupported format " + format);
+  }
+
+  /**
+   * Renders a frame
+   *
+   * @param text   contents of the code
+   * @param width  frame width in pixels
+   * @param height frame height in pixels
+   * @param format NV21, YV12 or YUY2
+   * @param scene  imaging conditions
+   * @param seed   seed for the noise
+   * @return frame data laid out like a camera preview buffer
+   */
+  public static byte[] render(String text, int width, int height, int format, Scene scene, long seed) {
+    final int[] luma = renderLuminance(encode(text), width, height, scene);
+    if (scene.blurRadius > 0) {
+      boxBlur(luma, width, height, scene.blurRadius);
+    }
+    final Random random = new Random(seed);
+    for (int i = 0; i < luma.length; i++) {
+      final int value = scene.noise > 0 ? Math.round(luma[i] + (float) random.nextGaussian() * scene.noise) : luma[i];
+      luma[i] = Math.max(0, Math.min(255, value));
+    }
+    return pack(luma, width, height, format);
+  }
+
+  /**
+   * Renders a frame without a code, standing in for the empty scenes most frames show: a lighting gradient
+   * with random boxes, bars like those of a barcode, slight blur and sensor noise
+   *
+   * @param width  frame width in pixels
+   * @param height frame height in pixels
+   * @param format NV21, YV12 or YUY2
+   * @param seed   seed for the clutter and the noise
+   * @return frame data laid out like a camera preview buffer
+   */
+  public static byte[] renderWithoutCode(int width, int height, int format, long seed) {
+    final Random random = new Random(seed);
+    final int[] luma = new int[width * height];
+    final int base = 60 + random.nextInt(100);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        luma[y * width + x] = base + 60 * x / width + 30 * y / height;
+      }
+    }
+    for (int box = 0; box < 30; box++) {
+      final int boxWidth = 4 + random.nextInt(width / 4);
+      final int boxHeight = 4 + random.nextInt(height / 4);
+      fill(luma, width, random.nextInt(width - boxWidth), random.nextInt(height - boxHeight), boxWidth, boxHeight,
+          20 + random.nextInt(216));
+    }
+    for (int barcode = 0; barcode < 2; barcode++) {
+      final int barHeight = height / 8 + random.nextInt(height / 4);
+      final int top = random.nextInt(height - barHeight);
+      int x = random.nextInt(width / 2);
+      final int right = Math.min(width, x + width / 4);
+      while (x < right) {
+        final int bar = 1 + random.nextInt(6);
+        fill(luma, width, x, top, Math.min(bar, right - x), barHeight, 30);
+        x += bar + 1 + random.nextInt(6);
+      }
+    }
+    boxBlur(luma, width, height, 1);
+    for (int i = 0; i < luma.length; i++) {
+      luma[i] = Math.max(0, Math.min(255, Math.round(luma[i] + (float) random.nextGaussian() * 4f)));
+    }
+    return pack(luma, width, height, format);
+  }
+
+  /**
+   * Makes sure a rendered frame can be read by the scanner, so a benchmark doesn't time the failure path only
+   * The frame is binarized like in the scanner and decoded with the hints of the TRY_HARDER tier.
+   *
+   * @param frame  frame data as returned by render
+   * @param width  frame width in pixels
+   * @param height frame height in pixels
+   * @param format NV21, YV12 or YUY2
+   * @throws IllegalStateException if the code can't be decoded
+   */
+  public static void checkDecodable(byte[] frame, int width, int height, int format) {
+    final YuvLuminanceSource source = new YuvLuminanceSource(width, height, 1);
+    source.setFrame(frame, PreviewFrame.defaultRowStride(width, format), YuvLuminanceSource.pixelStride(format), 0, 0);
+    try {
+      new QRCodeReader().decode(new BinaryBitmap(new ReusableHybridBinarizer(source)),
+          DecodeEscalationPolicy.Tier.TRY_HARDER.getHints());
+    } catch (ReaderException e) {
+      throw new IllegalStateException(String.format("Rendered %dx%d frame can't be decoded", width, height), e);
+    }
+  }
+
+  private static void fill(int[] luma, int width, int left, int top, int boxWidth, int boxHeight, int value) {
+    for (int y = top; y < top + boxHeight; y++) {
+      Arrays.fill(luma, y * width + left, y * width + left + boxWidth, value);
+    }
+  }
+
+  private static BitMatrix encode(String text) {
+    try {
+      // a size of 0 yields one pixel per module including the quiet zone
+      return new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0);
+    } catch (WriterException e) {
+      throw new IllegalArgumentException("Could not encode " + text, e);
+    }
+  }
+
+  private static int[] renderLuminance(BitMatrix code, int width, int height, Scene scene) {
+    final int light = MID_GREY + Math.round(FULL_SWING * scene.contrast);
+    final int dark = MID_GREY - Math.round(FULL_SWING * scene.contrast);
+    final int[] luma = new int[width * height];
+    final float codeSize = code.getWidth() * scene.moduleSize;
+    if (codeSize > Math.min(width, height)) {
+      throw new IllegalArgumentException(String.format("Code with %s does not fit into %dx%d", scene, width, height));
+    }
+    final double angle = Math.toRadians(scene.rotation);
+    final float cos = (float) Math.cos(angle);
+    final float sin = (float) Math.sin(angle);
+    final float centerX = width / 2f;
+    final float centerY = height / 2f;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        // rotate back into the code's coordinate system
+        final float dx = x + 0.5f - centerX;
+        final float dy = y + 0.5f - centerY;
+        final float u = (cos * dx + sin * dy + codeSize / 2f) / scene.moduleSize;
+        final float v = (-sin * dx + cos * dy + codeSize / 2f) / scene.moduleSize;
+        final boolean black = u >= 0 && v >= 0 && u < code.getWidth() && v < code.getHeight() && code.get((int) u, (int) v);
+        luma[y * width + x] = black ? dark : light;
+      }
+    }
+    return luma;
+  }
+
+  private static void boxBlur(int[] luma, int width, int height, int radius) {
+    final int[] temp = new int[luma.length];
+    final int size = radius * 2 + 1;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          sum += luma[y * width + Math.max(0, Math.min(width - 1, x + k))];
+        }
+        temp[y * width + x] = sum / size;
+      }
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int k = -radius; k <= radius; k++) {
+          sum += temp[Math.max(0, Math.min(height - 1, y + k)) * width + x];
+        }
+        luma[y * width + x] = sum / size;
+      }
+    }
+  }
+
+  private static byte[] pack(int[] luma, int width, int height, int format) {
+    final int rowStride = PreviewFrame.defaultRowStride(width, format);
+    final byte[] data;
+    switch (format) {
+      case ImageFormat.NV21:
+        data = new byte[width * height * 3 / 2];
+        Arrays.fill(data, (byte) MID_GREY);
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            data[y * rowStride + x] = (byte) luma[y * width + x];
+          }
+        }
+        return data;
+      case ImageFormat.YV12:
+        final int chromaStride = align16(rowStride / 2);
+        data = new byte[rowStride * height + chromaStride * height];
+        Arrays.fill(data, (byte) MID_GREY);
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            data[y * rowStride + x] = (byte) luma[y * width + x];
+          }
+        }
+        return data;
+      case ImageFormat.YUY2:
+        // Y0 U Y1 V, chroma stays neutral
+        data = new byte[rowStride * height];
+        Arrays.fill(data, (byte) MID_GREY);
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            data[y * rowStride + x * 2] = (byte) luma[y * width + x];
+          }
+        }
+        return data;
+      default:
+        throw new IllegalArgumentException("Unsupported format " + format);
+    }
+  }
+
+  private static int align16(int value) {
+    return (value + 15) & ~15;
+  }
+}
@@ -1,40 +1,248 @@
 package de.evopark.tiqr.android;
 
 import android.app.Activity;
+import android.content.Context;
 import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Surface;
 import android.view.SurfaceHolder;
+import de.evopark.tiqr.android.interfaces.FrameSource;
 import de.evopark.tiqr.android.interfaces.PreviewDataProcessor;
-import de.evopark.tiqr.android.util.ContinuousAutoFocus;
+import de.evopark.tiqr.android.interfaces.FrameQualityListener;
+import de.evopark.tiqr.android.interfaces.PreviewFrameProcessor;
+import de.evopark.tiqr.android.processing.PowerGovernor;
+import de.evopark.tiqr.android.processing.PreviewDataWorker;
+import de.evopark.tiqr.android.processing.RegionOfInterest;
+import de.evopark.tiqr.android.processing.ResolutionPolicy;
+import de.evopark.tiqr.android.processing.ScanStatistics;
+import de.evopark.tiqr.android.util.Camera2FrameSource;
+import de.evopark.tiqr.android.util.CameraFrameSource;
+import de.evopark.tiqr.android.util.CameraParameters;
 import de.evopark.tiqr.android.util.CameraPreviewManager;
+import de.evopark.tiqr.android.util.FocusStrategy;
+import de.evopark.tiqr.android.util.PreviewBufferPool;
+import org.appcelerator.titanium.TiApplication;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Responsible for starting and stopping the Camera as well as managing the callbacks
  * For now it only uses the first back-facing camera: front-facing cameras are usually
  * not very comfortable to scan QR codes...
  * <p>
- * TODO use preview callback with buffers
+ * Frames come from a FrameSource: by default a CameraFrameSource, which receives preview frames into
+ * a ring of preallocated buffers that are returned to the camera once all processors are done with them.
+ * On Android 5.0 and later, cameras which aren't limited to a legacy HAL are driven through camera2 by a
+ * Camera2FrameSource instead, which hands the planes of a separate analysis stream to processors without copying.
+ * Another source, e.g. a FileFrameSource replaying a recording, can be set instead of the camera.
+ * PreviewFrameProcessors may retain frames beyond the callback, in which case the buffer is returned
+ * when the last reference is released. Each PreviewDataProcessor runs on its own PreviewDataWorker with a
+ * copy of the data, so a slow one never holds up the camera or the others
+ * <p>
+ * The camera is opened, configured and released on a dedicated camera thread, which also receives its frames,
+ * so neither startCapture nor stopCapture block the caller; a CaptureListener learns when the preview is running.
+ * Surface callbacks only size the preview surface on the main thread, the camera is reconfigured on the camera thread.
+ * With a standby timeout, stopCapture only pauses the preview and keeps the camera open for that long,
+ * so capturing again within the grace period skips opening and configuring the camera.
+ * <p>
+ * With adaptive resolution, a ResolutionPolicy periodically picks the frame size from what decoders report
+ * about module sizes and decode times: the analysis stream with camera2, the preview itself with the old API.
+ * A PowerGovernor lowers the frame rate and thins out the frames passed to processors while nothing
+ * happens in front of the camera.
  */
 public class CameraManager {
   private final static String LTAG = "CameraManager";
   private static CameraManager instance = null; // it's a singleton
+  private final static long RESOLUTION_UPDATE_INTERVAL = 1000;
+
+  /**
+   * Notified on the camera thread once startCapture has taken effect
+   */
+  public interface CaptureListener {
+    /**
+     * @param warm         whether the camera was still open from standby
+     * @param startupNanos time from the call to startCapture until the preview was running
+     */
+    void captureStarted(boolean warm, long startupNanos);
 
+    /**
+     * @param reason description of what went wrong
+     */
+    void captureFailed(String reason);
+  }
+
+  private final HandlerThread cameraThread;
+  private final Handler cameraHandler;
+
+  // everything below is only accessed on the camera thread unless noted otherwise
   private Camera camera = null;
-  private Activity activity = null;
+  // all parameter reads and changes of the old API's camera go through this
+  private CameraParameters cameraParameters = null;
+  private volatile Activity activity = null;
   private SurfaceHolder previewSurfaceHolder = null;
-  private Set<PreviewDataProcessor> previewDataProcessors = new HashSet<PreviewDataProcessor>();
+  // copy-on-write, so frames can be dispatched from any thread while processors are added and removed
+  private final List<PreviewDataWorker> previewDataWorkers = new CopyOnWriteArrayList<PreviewDataWorker>();
+  private final Set<PreviewFrameProcessor> previewFrameProcessors = new CopyOnWriteArraySet<PreviewFrameProcessor>();
 
-  private ContinuousAutoFocus autofocus = null;
+  private volatile FocusStrategy autofocus = null;
+  private volatile RegionOfInterest focusRegion = RegionOfInterest.FULL_FRAME;
   private CameraPreviewManager cameraPreviewManager = null;
+  private final PreviewBufferPool previewBufferPool = new PreviewBufferPool(PreviewBufferPool.DEFAULT_BUFFER_COUNT);
+  private CameraFrameSource cameraFrameSource = null;
+  private Camera2FrameSource camera2FrameSource = null;
+  private volatile int analysisMaxWidth = Camera2FrameSource.DEFAULT_ANALYSIS_WIDTH;
+  private volatile int analysisMaxHeight = Camera2FrameSource.DEFAULT_ANALYSIS_HEIGHT;
+  private final ResolutionPolicy resolutionPolicy = new ResolutionPolicy();
+  // null until set explicitly: on with camera2, off with the old API, where it resizes the preview on screen
+  private volatile Boolean adaptiveResolution = null;
+  private final PowerGovernor powerGovernor = new PowerGovernor();
+  // preview fps range of the old API before the governor lowered it, null while not lowered
+  private int[] defaultFpsRange = null;
+  // whether the camera is open but paused, waiting for standbyExpiry
+  private boolean standby = false;
+  private volatile long standbyTimeout = 0;
+  private volatile CaptureListener captureListener = null;
+  // System.nanoTime() when startCapture was called and whether the camera came from standby, for the listener
+  private long captureRequestTime = 0;
+  private boolean captureWarm = false;
+  // replaces the camera if set
+  private FrameSource customFrameSource = null;
+  private boolean customFrameSourceRunning = false;
+  private final ScanStatistics statistics = new ScanStatistics();
+  // System.nanoTime() when capturing started, 0 once the first frame arrived
+  private volatile long captureStartTime = 0;
+
+  /**
+   * Forwards frame quality measurements to the current focus strategy
+   */
+  private final FrameQualityListener focusFeedback = new FrameQualityListener() {
+    @Override
+    public void frameQualityMeasured(float sharpness, float contrast, boolean skipped) {
+      final FocusStrategy strategy = autofocus;
+      if (strategy != null) {
+        strategy.frameQualityMeasured(sharpness, contrast, skipped);
+      }
+    }
+  };
+
+  /**
+   * Passes frames from the current source to all processors
+   */
+  private final FrameSource.Listener frameDispatcher = new FrameSource.Listener() {
+    @Override
+    public void frameAvailable(PreviewFrame frame) {
+      statistics.increment(ScanStatistics.Counter.FRAMES_RECEIVED);
+      final long startTime = captureStartTime;
+      if (startTime != 0) {
+        statistics.record(ScanStatistics.Stage.CAMERA_START, frame.getTimestamp() - startTime);
+        captureStartTime = 0;
+      }
+      if (!powerGovernor.frameAvailable(frame)) {
+        statistics.increment(ScanStatistics.Counter.FRAMES_IDLE);
+        return;
+      }
+      for (PreviewDataWorker worker : previewDataWorkers) {
+        worker.submit(frame);
+      }
+      for (PreviewFrameProcessor processor : previewFrameProcessors) {
+        processor.processFrame(frame);
+      }
+    }
+  };
+
+  /**
+   * Releases the camera once it has been in standby for the grace period
+   */
+  private final Runnable standbyExpiry = new Runnable() {
+    @Override
+    public void run() {
+      Log.d(LTAG, "Standby expired");
+      releaseCamera();
+    }
+  };
+
+  /**
+   * Lets the resolution policy adjust the frame size while the camera is running
+   */
+  private final Runnable resolutionUpdate = new Runnable() {
+    @Override
+    public void run() {
+      if (standby || (camera == null && camera2FrameSource == null)) {
+        return;
+      }
+      // there's nothing to measure while idle
+      if (isAdaptiveResolution(camera2FrameSource != null) && !powerGovernor.isIdle()) {
+        if (camera2FrameSource != null) {
+          updateAnalysisSize();
+        } else if (cameraPreviewManager != null) {
+          cameraPreviewManager.updatePreviewSize();
+        }
+      }
+      cameraHandler.postDelayed(this, RESOLUTION_UPDATE_INTERVAL);
+    }
+  };
+
+  /**
+   * Lowers the frame rate while the scene is idle and restores it on activity
+   */
+  private final PowerGovernor.Listener powerListener = new PowerGovernor.Listener() {
+    @Override
+    public void idleChanged(final boolean idle, final PowerGovernor.Profile profile) {
+      Log.d(LTAG, idle ? "Scene idle, saving power" : "Activity, resuming full frame rate");
+      runOnCameraThread(new Runnable() {
+        @Override
+        public void run() {
+          applyMaxFrameRate(idle ? profile.getIdleFps() : 0);
+        }
+      });
+    }
+  };
+
+  /**
+   * Learns when a camera2 session is running
+   */
+  private final Camera2FrameSource.StateListener camera2StateListener = new Camera2FrameSource.StateListener() {
+    @Override
+    public void cameraStarted() {
+      notifyCaptureStarted();
+    }
+
+    @Override
+    public void cameraFailed(String reason) {
+      notifyCaptureFailed(reason);
+    }
+  };
 
   /**
    * Private ctor
    * @see #getInstance()
    */
   private CameraManager() {
+    cameraThread = new HandlerThread("TiqrCamera");
+    cameraThread.start();
+    cameraHandler = new Handler(cameraThread.getLooper());
+    powerGovernor.setListener(powerListener);
+  }
+
+  /**
+   * Runs the task on the camera thread, right away if already on it
+   */
+  private void runOnCameraThread(Runnable task) {
+    if (Looper.myLooper() == cameraThread.getLooper()) {
+      task.run();
+    } else {
+      cameraHandler.post(task);
+    }
   }
 
   /**
@@ -50,27 +258,325 @@ public class CameraManager {
 
   /**
    * Add a handler that should be used to analyze preview data
+   * It runs on its own thread with a copy of the data and the default queue, dropping the oldest frames
    *
    * @param processor
    * @see PreviewDataProcessor
    */
   public void addPreviewDataProcessor(PreviewDataProcessor processor) {
-    previewDataProcessors.add(processor);
-    if (previewDataProcessors.size() == 1) {
-      registerPreviewCallback();
-    }
+    addPreviewDataProcessor(processor, PreviewDataWorker.DEFAULT_QUEUE_CAPACITY,
+        PreviewDataWorker.DropPolicy.DROP_OLDEST);
+  }
+
+  /**
+   * Add a handler that should be used to analyze preview data, running on its own thread
+   * However slow it is, neither the camera nor other processors wait for it
+   *
+   * @param processor     the handler
+   * @param queueCapacity number of frames that may wait for the handler
+   * @param dropPolicy    which frame to drop when the queue is full
+   * @see PreviewDataProcessor
+   * @see PreviewDataWorker
+   */
+  public void addPreviewDataProcessor(final PreviewDataProcessor processor, int queueCapacity,
+                                      PreviewDataWorker.DropPolicy dropPolicy) {
+    final PreviewDataWorker worker = new PreviewDataWorker(processor, queueCapacity, dropPolicy);
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (findWorker(processor) != null) {
+          return;
+        }
+        worker.start();
+        previewDataWorkers.add(worker);
+        if (getProcessorCount() == 1) {
+          registerPreviewCallback();
+        }
+      }
+    });
   }
 
   /**
    * Stop sending preview data to a given handler
+   * Frames queued for the handler are discarded, one it is processing is still finished
    *
    * @param processor PreviewDataProcessor which was previously added via addPreviewDataProcessor
    */
-  public void removePreviewDataProcessor(PreviewDataProcessor processor) {
-    previewDataProcessors.remove(processor);
-    if (previewDataProcessors.size() == 0 && camera != null) {
-      camera.setPreviewCallback(null);
+  public void removePreviewDataProcessor(final PreviewDataProcessor processor) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        final PreviewDataWorker worker = findWorker(processor);
+        if (worker == null) {
+          return;
+        }
+        previewDataWorkers.remove(worker);
+        worker.stop();
+        if (getProcessorCount() == 0) {
+          registerPreviewCallback();
+        }
+      }
+    });
+  }
+
+  private PreviewDataWorker findWorker(PreviewDataProcessor processor) {
+    for (PreviewDataWorker worker : previewDataWorkers) {
+      if (worker.getProcessor() == processor) {
+        return worker;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return workers of the current PreviewDataProcessors, e.g. to report how far each of them lags behind
+   */
+  public List<PreviewDataWorker> getPreviewDataWorkers() {
+    return Collections.unmodifiableList(previewDataWorkers);
+  }
+
+  /**
+   * Add a handler that should receive preview frames including their metadata
+   *
+   * @param processor
+   * @see PreviewFrameProcessor
+   */
+  public void addPreviewFrameProcessor(final PreviewFrameProcessor processor) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        previewFrameProcessors.add(processor);
+        if (getProcessorCount() == 1) {
+          registerPreviewCallback();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop sending preview frames to a given handler
+   * Frames the handler still retains remain valid until it releases them
+   *
+   * @param processor PreviewFrameProcessor which was previously added via addPreviewFrameProcessor
+   */
+  public void removePreviewFrameProcessor(final PreviewFrameProcessor processor) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        previewFrameProcessors.remove(processor);
+        if (getProcessorCount() == 0) {
+          registerPreviewCallback();
+        }
+      }
+    });
+  }
+
+  private int getProcessorCount() {
+    return previewDataWorkers.size() + previewFrameProcessors.size();
+  }
+
+  /**
+   * Change the number of preallocated preview buffers
+   * More buffers allow processors to lag behind the camera for longer at the cost of memory
+   * With camera2 this is the number of analysis images processors may hold, taking effect when the camera is opened
+   *
+   * @param count number of buffers, at least one
+   */
+  public void setPreviewBufferCount(int count) {
+    previewBufferPool.setBufferCount(count);
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        registerPreviewCallback();
+      }
+    });
+  }
+
+  /**
+   * Limit the resolution of the frames processors receive when the camera is driven through camera2
+   * The preview is shown in its own stream at a higher resolution
+   *
+   * @param maxWidth  maximum width of analysis frames in pixels
+   * @param maxHeight maximum height of analysis frames in pixels
+   */
+  public void setAnalysisSize(final int maxWidth, final int maxHeight) {
+    analysisMaxWidth = maxWidth;
+    analysisMaxHeight = maxHeight;
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (camera2FrameSource != null) {
+          camera2FrameSource.setAnalysisSize(maxWidth, maxHeight);
+        }
+      }
+    });
+  }
+
+  /**
+   * Lets the resolution policy choose among the analysis sizes within the configured limit
+   */
+  private void updateAnalysisSize() {
+    final List<int[]> sizes = new ArrayList<int[]>();
+    for (int[] size : camera2FrameSource.getSupportedAnalysisSizes()) {
+      if (size[0] <= analysisMaxWidth && size[1] <= analysisMaxHeight) {
+        sizes.add(size);
+      }
+    }
+    if (sizes.isEmpty()) {
+      return;
+    }
+    final int currentWidth = camera2FrameSource.getAnalysisSize().getWidth();
+    final int currentHeight = camera2FrameSource.getAnalysisSize().getHeight();
+    resolutionPolicy.setSupportedSizes(sizes.toArray(new int[sizes.size()][]), currentWidth, currentHeight);
+    final int[] size = resolutionPolicy.chooseSize(System.nanoTime());
+    if (size[0] != currentWidth || size[1] != currentHeight) {
+      Log.d(LTAG, String.format("Resolution policy changed analysis size to %dx%dpx", size[0], size[1]));
+      camera2FrameSource.setAnalysisSize(size[0], size[1]);
+    }
+  }
+
+  /**
+   * @return policy choosing the frame size, decoders should report their results to it
+   */
+  public ResolutionPolicy getResolutionPolicy() {
+    return resolutionPolicy;
+  }
+
+  /**
+   * Whether the resolution policy picks the frame size, otherwise frames are as large as the limits allow
+   * With the old camera API, this also determines the size of the preview and takes effect once the
+   * camera is opened again. Every change then restarts the preview, which visibly freezes it, and the preview
+   * on screen is only as sharp as the frames, so unless enabled explicitly the old API always uses the largest size.
+   *
+   * @param enabled true to adapt the frame size to the scanned codes
+   */
+  public void setAdaptiveResolution(final boolean enabled) {
+    adaptiveResolution = enabled;
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (!enabled && camera2FrameSource != null) {
+          camera2FrameSource.setAnalysisSize(analysisMaxWidth, analysisMaxHeight);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return whether the frame size adapts with the camera API that is or would be used
+   */
+  public boolean isAdaptiveResolution() {
+    final Boolean explicit = adaptiveResolution;
+    if (explicit != null) {
+      return explicit;
+    }
+    return camera2FrameSource != null || (camera == null && findCamera2() != null);
+  }
+
+  private boolean isAdaptiveResolution(boolean camera2) {
+    final Boolean explicit = adaptiveResolution;
+    return explicit != null ? explicit : camera2;
+  }
+
+  /**
+   * @return governor thinning out frames while nothing happens in front of the camera
+   */
+  public PowerGovernor getPowerGovernor() {
+    return powerGovernor;
+  }
+
+  /**
+   * Limits the frame rate of the camera
+   *
+   * @param maxFps highest frame rate wanted, 0 for the camera's default
+   */
+  private void applyMaxFrameRate(int maxFps) {
+    if (camera2FrameSource != null) {
+      camera2FrameSource.setMaxFrameRate(maxFps);
+      return;
+    }
+    if (camera == null || (maxFps == 0 && defaultFpsRange == null)) {
+      return;
+    }
+    final Camera.Parameters parameters = cameraParameters.read();
+    if (parameters == null) {
+      return;
+    }
+    final int[] range;
+    if (maxFps > 0) {
+      range = chooseFpsRange(parameters.getSupportedPreviewFpsRange(), maxFps * 1000);
+      if (range == null) {
+        return;
+      }
+      if (defaultFpsRange == null) {
+        defaultFpsRange = new int[2];
+        parameters.getPreviewFpsRange(defaultFpsRange);
+      }
+    } else {
+      range = defaultFpsRange;
+      defaultFpsRange = null;
+    }
+    Log.d(LTAG, String.format("Preview fps range %d-%d", range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+        range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]));
+    try {
+      cameraParameters.edit().setPreviewFpsRange(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+          range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]).commit();
+    } catch (RuntimeException e) {
+      Log.w(LTAG, "Camera refused preview fps range", e);
+    }
+  }
+
+  /**
+   * Picks the range with the highest maximum not above the limit, and the lowest minimum among those
+   *
+   * @param ranges supported ranges in frames per 1000 seconds
+   * @param max    limit in frames per 1000 seconds
+   * @return the range or null if there is none below the limit
+   */
+  private static int[] chooseFpsRange(List<int[]> ranges, int max) {
+    int[] best = null;
+    if (ranges != null) {
+      for (int[] range : ranges) {
+        final int rangeMax = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        final int rangeMin = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+        if (rangeMax > max) {
+          continue;
+        }
+        if (best == null || rangeMax > best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] ||
+            (rangeMax == best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] &&
+                rangeMin < best[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])) {
+          best = range;
+        }
+      }
     }
+    return best;
+  }
+
+  /**
+   * @return number of preallocated preview buffers
+   */
+  public int getPreviewBufferCount() {
+    return previewBufferPool.getBufferCount();
+  }
+
+  /**
+   * Allocates the preview buffers for the expected preview size before the camera is opened
+   * Nothing is allocated if camera2 is going to be used, which brings its own buffers
+   * Returns right away, the buffers are allocated on the camera thread
+   *
+   * @param width  expected preview width in pixels
+   * @param height expected preview height in pixels
+   * @param format expected preview format
+   */
+  public void preparePreviewBuffers(final int width, final int height, final int format) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (camera == null && camera2FrameSource == null && findCamera2() == null) {
+          previewBufferPool.allocate(width, height, format);
+        }
+      }
+    });
   }
 
   /**
@@ -78,22 +584,181 @@ public class CameraManager {
    * If a preview surface holder was registered, it will receive camera pictures
    * If preview data processors have been registered, they will start receiving data
    * If a CameraView has been instantiated, it will receive preview pictures
+   * Returns right away, the camera is opened on the camera thread and the CaptureListener is notified when done
    */
   public void startCapture() {
+    final long requestTime = System.nanoTime();
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        startCapture(requestTime);
+      }
+    });
+  }
+
+  private void startCapture(long requestTime) {
+    if (customFrameSource != null) {
+      if (!customFrameSourceRunning) {
+        Log.d(LTAG, "Starting custom frame source");
+        captureStartTime = requestTime;
+        customFrameSourceRunning = true;
+        customFrameSource.start(frameDispatcher);
+        captureRequestTime = requestTime;
+        captureWarm = false;
+        notifyCaptureStarted();
+      }
+      return;
+    }
+    cameraHandler.removeCallbacks(standbyExpiry);
+    cameraHandler.removeCallbacks(resolutionUpdate);
+    cameraHandler.postDelayed(resolutionUpdate, RESOLUTION_UPDATE_INTERVAL);
+    final boolean warm = standby;
+    standby = false;
+    if (warm || (camera == null && camera2FrameSource == null)) {
+      captureStartTime = requestTime;
+      captureRequestTime = requestTime;
+      captureWarm = warm;
+    }
+    if (camera2FrameSource != null) {
+      if (warm) {
+        Log.d(LTAG, "Resuming camera from standby");
+        registerPreviewCallback();
+        camera2FrameSource.resume();
+      }
+      // the state listener reports when the session is running
+      return;
+    }
     if (camera == null) {
-      camera = Camera.open();
+      if (openCamera2()) {
+        return;
+      }
+      try {
+        camera = Camera.open();
+      } catch (RuntimeException e) {
+        Log.e(LTAG, "Could not open camera", e);
+        notifyCaptureFailed("Could not open camera: " + e.getMessage());
+        return;
+      }
+      if (camera == null) {
+        notifyCaptureFailed("No back-facing camera");
+        return;
+      }
+      cameraParameters = new CameraParameters(camera);
+      cameraFrameSource = new CameraFrameSource(cameraParameters, previewBufferPool);
       setupAutoFocus();
       linkCameraViewAndSurface();
-      registerPreviewCallback();
+    } else if (warm) {
+      Log.d(LTAG, "Resuming camera from standby");
+      setupAutoFocus();
+    }
+    if (cameraPreviewManager != null) {
+      cameraPreviewManager.setPaused(false);
     }
+    registerPreviewCallback();
     camera.startPreview();
+    notifyCaptureStarted();
+  }
+
+  /**
+   * @return id of the camera to drive through camera2 or null if the old API should be used
+   */
+  private String findCamera2() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return null;
+    }
+    return Camera2FrameSource.findCamera(activity != null ? activity : TiApplication.getInstance());
+  }
+
+  /**
+   * Opens the back-facing camera through camera2 if the device and the camera support it well
+   *
+   * @return whether the camera2 source is being started, false to fall back to android.hardware.Camera
+   */
+  private boolean openCamera2() {
+    final String cameraId = findCamera2();
+    if (cameraId == null) {
+      return false;
+    }
+    final Context context = activity != null ? activity : TiApplication.getInstance();
+    try {
+      camera2FrameSource = new Camera2FrameSource(context, cameraId, previewBufferPool.getBufferCount(),
+          cameraHandler);
+    } catch (CameraAccessException e) {
+      Log.e(LTAG, "Could not access camera through camera2, falling back to the old API", e);
+      return false;
+    }
+    Log.d(LTAG, "Using camera2 for camera " + cameraId);
+    camera2FrameSource.setStateListener(camera2StateListener);
+    camera2FrameSource.setAnalysisSize(analysisMaxWidth, analysisMaxHeight);
+    camera2FrameSource.setFocusRegion(focusRegion);
+    linkCameraViewAndSurface();
+    camera2FrameSource.open();
+    registerPreviewCallback();
+    return true;
   }
 
   /**
    * Stop sending data to camera previews and data processing callbacks
-   * Frees all camera resources
+   * Frees all camera resources, or pauses the camera and frees them only after the standby timeout
+   * Returns right away, the camera is stopped on the camera thread
    */
   public void stopCapture() {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (customFrameSourceRunning) {
+          Log.d(LTAG, "Stopping custom frame source");
+          customFrameSourceRunning = false;
+          customFrameSource.stop();
+        }
+        if (standby || (camera == null && camera2FrameSource == null)) {
+          return;
+        }
+        final long timeout = standbyTimeout;
+        if (timeout > 0) {
+          enterStandby();
+          cameraHandler.postDelayed(standbyExpiry, timeout);
+        } else {
+          releaseCamera();
+        }
+      }
+    });
+  }
+
+  /**
+   * Pauses the preview and frame delivery but keeps the camera open and configured
+   */
+  private void enterStandby() {
+    Log.d(LTAG, "Pausing camera for standby");
+    powerGovernor.reset();
+    standby = true;
+    cameraHandler.removeCallbacks(resolutionUpdate);
+    registerPreviewCallback();
+    if (camera2FrameSource != null) {
+      camera2FrameSource.pause();
+    }
+    if (camera != null) {
+      if (autofocus != null) {
+        autofocus.stop();
+      }
+      if (cameraPreviewManager != null) {
+        cameraPreviewManager.setPaused(true);
+      }
+      camera.stopPreview();
+    }
+  }
+
+  private void releaseCamera() {
+    powerGovernor.reset();
+    defaultFpsRange = null;
+    cameraHandler.removeCallbacks(standbyExpiry);
+    cameraHandler.removeCallbacks(resolutionUpdate);
+    standby = false;
+    if (camera2FrameSource != null) {
+      Log.d(LTAG, "Stopping camera");
+      camera2FrameSource.close();
+      camera2FrameSource = null;
+    }
     if (camera != null) {
       Log.d(LTAG, "Stopping camera");
       final Camera oldCamera = camera;
@@ -104,28 +769,171 @@ public class CameraManager {
       }
       linkCameraViewAndSurface();
       oldCamera.stopPreview();
-      oldCamera.setPreviewCallback(null);
+      // buffers released by processors from now on are no longer handed to the camera
+      cameraFrameSource.stop();
+      cameraFrameSource = null;
+      cameraParameters = null;
       oldCamera.release();
+      previewBufferPool.clear();
+    }
+  }
+
+  /**
+   * Frees the camera right away if it is waiting in standby, e.g. when the app goes to the background
+   */
+  public void releaseStandbyCamera() {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (standby) {
+          releaseCamera();
+        }
+      }
+    });
+  }
+
+  /**
+   * Keep the camera open with the preview paused for a while after capturing stops,
+   * so capturing again within that time doesn't have to open and configure the camera
+   *
+   * @param timeout grace period in milliseconds, 0 to release the camera as soon as capturing stops
+   */
+  public void setStandbyTimeout(long timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("Standby timeout must not be negative");
+    }
+    standbyTimeout = timeout;
+  }
+
+  /**
+   * @return grace period in milliseconds during which a stopped camera is kept open
+   */
+  public long getStandbyTimeout() {
+    return standbyTimeout;
+  }
+
+  /**
+   * @param listener notified on the camera thread when capturing started or failed, may be null
+   */
+  public void setCaptureListener(CaptureListener listener) {
+    captureListener = listener;
+  }
+
+  private void notifyCaptureStarted() {
+    final long startupNanos = System.nanoTime() - captureRequestTime;
+    Log.d(LTAG, String.format("Capture started %s after %dms", captureWarm ? "warm" : "cold",
+        startupNanos / 1000000));
+    final CaptureListener listener = captureListener;
+    if (listener != null) {
+      listener.captureStarted(captureWarm, startupNanos);
     }
   }
 
+  private void notifyCaptureFailed(String reason) {
+    final CaptureListener listener = captureListener;
+    if (listener != null) {
+      listener.captureFailed(reason);
+    }
+  }
+
+  /**
+   * Take frames from another source than the camera, e.g. a recording
+   * If capturing, the current source is stopped and the new one started
+   *
+   * @param source source to use, null to use the camera again
+   */
+  public void setFrameSource(final FrameSource source) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        final boolean capturing = customFrameSourceRunning ||
+            (!standby && (camera != null || camera2FrameSource != null));
+        if (capturing) {
+          stopCapture();
+        }
+        customFrameSource = source;
+        if (capturing) {
+          startCapture();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the source set via setFrameSource or null if the camera is used
+   */
+  public FrameSource getFrameSource() {
+    return customFrameSource;
+  }
+
   /**
    * Show the camera picture on the given surface
    * @param holder holder of a surface which should show the camera picture
    * @param activity used to determine rotation
    */
-  public void showPreviewInSurface(final SurfaceHolder holder, Activity activity) {
-    if (holder != previewSurfaceHolder) {
-      previewSurfaceHolder = holder;
-      this.activity = activity;
-      linkCameraViewAndSurface();
+  public void showPreviewInSurface(final SurfaceHolder holder, final Activity activity) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        if (holder != previewSurfaceHolder) {
+          previewSurfaceHolder = holder;
+          CameraManager.this.activity = activity;
+          linkCameraViewAndSurface();
+        }
+      }
+    });
+  }
+
+  /**
+   * Counters and latencies from camera start to the JS callback, shared with the scanner and the module
+   *
+   * @return the statistics of this camera
+   */
+  public ScanStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Receives frame sharpness so the focus strategy can refocus when the picture gets blurry
+   *
+   * @return listener to register with the frame quality estimator
+   */
+  public FrameQualityListener getFocusFeedback() {
+    return focusFeedback;
+  }
+
+  /**
+   * Tells the focus strategy that the picture was sharp enough to decode a code, and the governor about activity
+   * May be called from any thread
+   */
+  public void notifyCodeFound() {
+    powerGovernor.codeFound();
+    final FocusStrategy strategy = autofocus;
+    if (strategy != null) {
+      strategy.codeFound();
     }
   }
 
+  /**
+   * Focus and meter on the part of the picture that is being scanned
+   *
+   * @param region region of interest as used for scanning, null for the whole picture
+   */
+  public void setFocusRegion(RegionOfInterest region) {
+    focusRegion = region == null ? RegionOfInterest.FULL_FRAME : region;
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        applyFocusRegion();
+      }
+    });
+  }
+
   private void setupAutoFocus() {
     if (camera != null) {
       if (autofocus == null) {
-        autofocus = new ContinuousAutoFocus(camera);
+        autofocus = FocusStrategy.create(cameraParameters);
+        applyFocusRegion();
       } else {
         autofocus.start();
       }
@@ -133,39 +941,96 @@ public class CameraManager {
   }
 
   /**
-   * Registers a preview callback with the camera
-   * which in turn calls all PreviewDataProcessor instances
-   * with the data it received
+   * Maps the focus region to camera area coordinates for the current preview size
+   */
+  private void applyFocusRegion() {
+    if (camera2FrameSource != null) {
+      camera2FrameSource.setFocusRegion(focusRegion);
+      return;
+    }
+    if (camera == null || autofocus == null) {
+      return;
+    }
+    if (focusRegion == RegionOfInterest.FULL_FRAME) {
+      autofocus.setFocusArea(null);
+      return;
+    }
+    final int width = cameraParameters.getPreviewWidth();
+    final int height = cameraParameters.getPreviewHeight();
+    if (width == 0 || height == 0) {
+      return;
+    }
+    final int[] window = focusRegion.toFrameWindow(width, height, computeFrameRotation());
+    autofocus.setFocusArea(FocusStrategy.toCameraArea(window, width, height));
+  }
+
+  /**
+   * Starts or stops delivery of camera frames depending on whether there are processors
+   * Must be called again whenever the preview size or format changes so the buffers are resized
    */
   private void registerPreviewCallback() {
-    if (camera != null) {
-      if (previewDataProcessors.size() > 0) {
-        Log.d(LTAG, "Registering preview callback");
-        camera.setPreviewCallback(new Camera.PreviewCallback() {
-          @Override
-          public void onPreviewFrame(byte[] bytes, Camera _camera) {
-            if (camera == null) {
-              return;
-            }
-            Camera.Parameters params = camera.getParameters();
-            if (params == null) {
-              return;
-            }
-            int pictureFormat = params.getPreviewFormat();
-            Camera.Size size = params.getPreviewSize();
-            for (PreviewDataProcessor processor : previewDataProcessors) {
-              processor.processBitmap(size.width, size.height, pictureFormat, bytes);
-            }
-          }
-        });
+    if (camera2FrameSource != null) {
+      if (getProcessorCount() > 0 && !standby) {
+        camera2FrameSource.setDisplayRotation(getDisplayRotation());
+        camera2FrameSource.start(frameDispatcher);
       } else {
-        Log.d(LTAG, "No processors, unregistering camera preview callback");
-        camera.setPreviewCallback(null);
+        camera2FrameSource.stop();
+      }
+    }
+    if (cameraFrameSource != null) {
+      if (getProcessorCount() > 0 && !standby) {
+        cameraFrameSource.setFrameRotation(computeFrameRotation());
+        cameraFrameSource.start(frameDispatcher);
+      } else {
+        Log.d(LTAG, "No processors or in standby, unregistering camera preview callback");
+        cameraFrameSource.stop();
       }
     }
   }
 
+  /**
+   * Determines how far preview frames need to be rotated clockwise to appear upright on the display
+   *
+   * @return rotation in degrees
+   */
+  private int computeFrameRotation() {
+    final Camera.CameraInfo info = new Camera.CameraInfo();
+    for (int id = 0; id < Camera.getNumberOfCameras(); id++) {
+      Camera.getCameraInfo(id, info);
+      if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+        break;
+      }
+    }
+    return (info.orientation - getDisplayRotation() + 360) % 360;
+  }
+
+  /**
+   * @return rotation of the display in degrees
+   */
+  private int getDisplayRotation() {
+    int displayRotation = 0;
+    if (activity != null) {
+      switch (activity.getWindowManager().getDefaultDisplay().getRotation()) {
+        case Surface.ROTATION_90:
+          displayRotation = 90;
+          break;
+        case Surface.ROTATION_180:
+          displayRotation = 180;
+          break;
+        case Surface.ROTATION_270:
+          displayRotation = 270;
+          break;
+      }
+    }
+    return displayRotation;
+  }
+
   private void linkCameraViewAndSurface() {
+    if (camera2FrameSource != null) {
+      camera2FrameSource.setDisplayRotation(getDisplayRotation());
+      camera2FrameSource.setPreviewHolder(previewSurfaceHolder);
+      return;
+    }
     if (camera == null || previewSurfaceHolder == null) {
       if (cameraPreviewManager != null) {
         cameraPreviewManager.uninstall();
@@ -173,7 +1038,18 @@ public class CameraManager {
       }
     } else if (camera != null && previewSurfaceHolder != null) {
       if (cameraPreviewManager == null) {
-        cameraPreviewManager = new CameraPreviewManager(camera, previewSurfaceHolder, activity);
+        cameraPreviewManager = new CameraPreviewManager(cameraParameters, previewSurfaceHolder, activity,
+            new CameraPreviewManager.PreviewSizeListener() {
+              @Override
+              public void previewSizeChanged() {
+                // the old buffers no longer fit the new preview size
+                registerPreviewCallback();
+                applyFocusRegion();
+              }
+            }, cameraHandler);
+        if (isAdaptiveResolution(false)) {
+          cameraPreviewManager.setResolutionPolicy(resolutionPolicy);
+        }
       }
     }
   }
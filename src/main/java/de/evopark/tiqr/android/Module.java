@@ -1,12 +1,41 @@
 package de.evopark.tiqr.android;
 
+import android.app.Activity;
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
 import android.util.Log;
 import de.evopark.tiqr.android.interfaces.QrCodeResultHandler;
+import de.evopark.tiqr.android.processing.AsyncPreviewFrameProcessor;
+import de.evopark.tiqr.android.processing.CodeTracker;
+import de.evopark.tiqr.android.processing.DecodeEscalationPolicy;
+import de.evopark.tiqr.android.processing.FrameQualityEstimator;
+import de.evopark.tiqr.android.processing.ParallelStrategyDecoder;
+import de.evopark.tiqr.android.processing.PowerGovernor;
+import de.evopark.tiqr.android.processing.PreviewDataWorker;
+import de.evopark.tiqr.android.processing.LatencyHistogram;
+import de.evopark.tiqr.android.processing.RegionOfInterest;
+import de.evopark.tiqr.android.processing.ScanStatistics;
+import de.evopark.tiqr.android.processing.SceneChangeDetector;
+import de.evopark.tiqr.android.processing.ScannerWarmUp;
+import de.evopark.tiqr.android.processing.ScannedCode;
 import de.evopark.tiqr.android.processing.ZxingQrScanner;
+import de.evopark.tiqr.android.util.Camera2FrameSource;
+import de.evopark.tiqr.android.util.CoalescingCodeDispatcher;
+import de.evopark.tiqr.android.util.FileFrameSource;
+import de.evopark.tiqr.android.util.FrameRecorder;
+import de.evopark.tiqr.android.util.RecentCodeCache;
+import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.KrollFunction;
 import org.appcelerator.kroll.KrollModule;
 import org.appcelerator.kroll.annotations.Kroll;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Entry point for the QR scanner Titanium module
  * <p>
@@ -20,10 +49,68 @@ public class Module extends KrollModule {
   private final static String LTAG = ModuleInfo.MODULE_NAME;
   private boolean scanning = false;
   private KrollFunction onCodeReceived = null;
+  private KrollFunction onCodesReceived = null;
+  private KrollFunction onCameraReady = null;
+  private boolean multiCode = false;
   private ZxingQrScanner qrScanner = null;
+  private AsyncPreviewFrameProcessor decoder = null;
+  private RegionOfInterest regionOfInterest = RegionOfInterest.FULL_FRAME;
+  private int escalationThreshold = DecodeEscalationPolicy.DEFAULT_ESCALATION_THRESHOLD;
+  private Set<ParallelStrategyDecoder.Strategy> parallelStrategies = null;
+  private boolean qualityFilter = true;
+  private boolean preDetector = true;
+  private int sceneChangeThreshold = SceneChangeDetector.DEFAULT_THRESHOLD;
+  private volatile ScannerWarmUp warmUp = null;
+  private boolean trackingMode = false;
+  private int trackingMaxMisses = CodeTracker.DEFAULT_MAX_MISSES;
+  private FrameRecorder frameRecorder = null;
+  private AsyncPreviewFrameProcessor recordingProcessor = null;
+  private String replayFile = null;
+  private final RecentCodeCache recentCodes =
+      new RecentCodeCache(RecentCodeCache.DEFAULT_CAPACITY, RecentCodeCache.DEFAULT_TIME_TO_LIVE);
+  private final CoalescingCodeDispatcher codeDispatcher =
+      new CoalescingCodeDispatcher(new CodeBatchInvoker(), CoalescingCodeDispatcher.DEFAULT_MAX_RATE);
 
   public Module() {
     super();
+    codeDispatcher.setStatistics(CameraManager.getInstance().getStatistics());
+    CameraManager.getInstance().setCaptureListener(new CameraReadyInvoker());
+  }
+
+  /**
+   * A camera kept open for warm standby must not block other apps while this one is in the background
+   *
+   * @param activity the activity being paused
+   */
+  @Override
+  public void onPause(Activity activity) {
+    super.onPause(activity);
+    CameraManager.getInstance().releaseStandbyCamera();
+  }
+
+  /**
+   * Stops scanning and shuts the scanner's helper threads down, a later scan starts with a new scanner
+   *
+   * @param activity the activity being destroyed
+   */
+  @Override
+  public void onDestroy(Activity activity) {
+    setScanning(false);
+    releaseScanner();
+    super.onDestroy(activity);
+  }
+
+  /**
+   * Detaches the scanner from the camera and shuts it down
+   */
+  private void releaseScanner() {
+    if (qrScanner == null) {
+      return;
+    }
+    CameraManager.getInstance().removePreviewFrameProcessor(decoder);
+    qrScanner.shutdown();
+    qrScanner = null;
+    decoder = null;
   }
 
   /**
@@ -40,6 +127,8 @@ public class Module extends KrollModule {
   /**
    * Set a function that should be invoked when a code has been detected
    * The function will receive the detected code as a string as its single argument
+   * If several codes are found in quick succession the function is invoked once per code to keep that contract,
+   * "onCodesReceived" receives them in a single call instead and is the cheaper choice for batches
    *
    * @param callback a KrollFunction that should be invoked when detecting codes
    */
@@ -49,6 +138,153 @@ public class Module extends KrollModule {
     onCodeReceived = callback;
   }
 
+  /**
+   * Get the callback function that is invoked with batches of detected codes
+   *
+   * @return function previously set via {setOnCodesReceived}
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "onCodesReceived")
+  public KrollFunction getOnCodesReceived() {
+    return onCodesReceived;
+  }
+
+  /**
+   * Set a function that should be invoked with the codes newly detected since its previous invocation
+   * The function receives an array with one object per code, each having the code as "code" and
+   * its corner points in pixels of the camera frame as "points", an array of {x, y} objects
+   * Points are only known in multi-code mode; the array is empty otherwise
+   *
+   * @param callback a KrollFunction that should be invoked when detecting codes
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "onCodesReceived")
+  public void setOnCodesReceived(KrollFunction callback) {
+    onCodesReceived = callback;
+  }
+
+  /**
+   * Get the callback function that is invoked once the camera is running after scanning was started
+   *
+   * @return function previously set via {setOnCameraReady}
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "onCameraReady")
+  public KrollFunction getOnCameraReady() {
+    return onCameraReady;
+  }
+
+  /**
+   * Set a function that should be invoked when the camera has been started after setting "scanning" to true
+   * The camera is opened in the background, so this is when the preview appears
+   * The function receives an object with "success", "warm" (whether the camera was still open from standby),
+   * "startupMs" (time since scanning was started) and, if the camera could not be started, "error"
+   *
+   * @param callback a KrollFunction that should be invoked when the camera is ready
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "onCameraReady")
+  public void setOnCameraReady(KrollFunction callback) {
+    onCameraReady = callback;
+  }
+
+  /**
+   * Whether the scanner looks for several codes per frame
+   *
+   * @return true in multi-code mode
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "multiCode")
+  public boolean isMultiCode() {
+    return multiCode;
+  }
+
+  /**
+   * Enable or disable multi-code mode, in which all codes of a frame are found and reported with their positions
+   *
+   * @param enabled whether to look for several codes per frame
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "multiCode")
+  public void setMultiCode(boolean enabled) {
+    multiCode = enabled;
+    if (qrScanner != null) {
+      qrScanner.setMultiCodeMode(enabled);
+    }
+  }
+
+  /**
+   * Whether a found code is followed and only the area around it is decoded
+   *
+   * @return true in tracking mode
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "trackingMode")
+  public boolean isTrackingMode() {
+    return trackingMode;
+  }
+
+  /**
+   * Enable or disable tracking mode, which makes verifying that a code is still present much cheaper
+   * The whole picture is searched again once the code hasn't been found for "trackingMaxMisses" frames
+   *
+   * @param enabled whether to track found codes
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "trackingMode")
+  public void setTrackingMode(boolean enabled) {
+    trackingMode = enabled;
+    if (qrScanner != null) {
+      qrScanner.setTrackingMode(enabled);
+    }
+  }
+
+  /**
+   * Number of frames in a row without the tracked code after which the whole picture is searched again
+   *
+   * @return maximum number of misses
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "trackingMaxMisses")
+  public int getTrackingMaxMisses() {
+    return trackingMaxMisses;
+  }
+
+  /**
+   * Change how many frames in a row may miss the tracked code before it counts as lost
+   *
+   * @param misses maximum number of misses, at least 1
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "trackingMaxMisses")
+  public void setTrackingMaxMisses(int misses) {
+    // checked right away, the scanner might only be created once scanning starts
+    if (misses < 1) {
+      throw new IllegalArgumentException("Maximum number of misses must be at least 1");
+    }
+    if (qrScanner != null) {
+      qrScanner.getCodeTracker().setMaxMisses(misses);
+    }
+    trackingMaxMisses = misses;
+  }
+
+  /**
+   * Statistics for tracking mode: frames in which the code was found near its last position and how often it was lost
+   *
+   * @return dictionary with "trackedFrames" and "lost"
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "trackingStatistics")
+  public KrollDict getTrackingStatistics() {
+    final KrollDict result = new KrollDict();
+    if (qrScanner != null) {
+      final CodeTracker tracker = qrScanner.getCodeTracker();
+      result.put("trackedFrames", tracker.getTrackedFrameCount());
+      result.put("lost", tracker.getLostCount());
+    }
+    return result;
+  }
+
   /**
    * Allows reading the "scanning" property from JavaScript
    *
@@ -71,41 +307,894 @@ public class Module extends KrollModule {
     if (scanning == this.scanning) {
       return;
     }
-    this.scanning = scanning;
     if (scanning) {
       Log.d(LTAG, "Starting scanner");
       if (qrScanner == null) {
-        qrScanner = new ZxingQrScanner(new QrCodeCallbackInvoker());
-        CameraManager.getInstance().addPreviewDataProcessor(qrScanner);
+        // only kept once fully configured, so a failure here doesn't leave a scanner without a decoder behind
+        final ZxingQrScanner scanner = new ZxingQrScanner(new QrCodeCallbackInvoker());
+        scanner.setRegionOfInterest(regionOfInterest);
+        scanner.getEscalationPolicy().setEscalationThreshold(escalationThreshold);
+        scanner.setParallelStrategies(parallelStrategies);
+        scanner.setQualityFilterEnabled(qualityFilter);
+        scanner.setPreDetectorEnabled(preDetector);
+        scanner.getSceneChangeDetector().setThreshold(sceneChangeThreshold);
+        scanner.setMultiCodeMode(multiCode);
+        scanner.setTrackingMode(trackingMode);
+        scanner.getCodeTracker().setMaxMisses(trackingMaxMisses);
+        scanner.setStatistics(CameraManager.getInstance().getStatistics());
+        // measured module sizes and decode times steer the frame size
+        scanner.setResolutionPolicy(CameraManager.getInstance().getResolutionPolicy());
+        // let the focus strategy react to blurry frames
+        scanner.getQualityEstimator().setListener(CameraManager.getInstance().getFocusFeedback());
+        // decode off the camera thread so zxing never blocks the UI
+        final AsyncPreviewFrameProcessor processor = new AsyncPreviewFrameProcessor(scanner, "TiqrDecoder");
+        processor.setStatistics(CameraManager.getInstance().getStatistics());
+        qrScanner = scanner;
+        decoder = processor;
+        CameraManager.getInstance().addPreviewFrameProcessor(decoder);
       }
+      this.scanning = true;
+      // codes seen in a previous session should be reported again
+      recentCodes.clear();
+      decoder.start();
       CameraManager.getInstance().startCapture();
     } else {
       Log.d(LTAG, "Stopping scanner");
+      this.scanning = false;
       CameraManager.getInstance().stopCapture();
+      decoder.stop();
+      codeDispatcher.cancel();
     }
   }
 
   /**
-   * When a QR code has been found, invoke the Kroll callback
-   * Does not invoke the callback if the same code is found multiple times
+   * Time after which a code that has been out of view is reported again
+   *
+   * @return timeout in milliseconds
    */
-  private class QrCodeCallbackInvoker implements QrCodeResultHandler {
+  @Kroll.method
+  @Kroll.getProperty(name = "duplicateTimeout")
+  public long getDuplicateTimeout() {
+    return recentCodes.getTimeToLive();
+  }
+
+  /**
+   * Change how long a code has to be out of view before it is reported again
+   * A code that stays in view is reported only once
+   *
+   * @param timeout timeout in milliseconds
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "duplicateTimeout")
+  public void setDuplicateTimeout(long timeout) {
+    recentCodes.setTimeToLive(timeout);
+  }
+
+  /**
+   * How long the camera is kept open after scanning stops
+   *
+   * @return grace period in milliseconds
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "standbyTimeout")
+  public long getStandbyTimeout() {
+    return CameraManager.getInstance().getStandbyTimeout();
+  }
+
+  /**
+   * Keep the camera open with the preview paused for a while after scanning stops,
+   * so scanning again within that time starts almost instantly. The camera is released
+   * right away when the app goes to the background
+   *
+   * @param timeout grace period in milliseconds, 0 to release the camera as soon as scanning stops
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "standbyTimeout")
+  public void setStandbyTimeout(long timeout) {
+    CameraManager.getInstance().setStandbyTimeout(timeout);
+  }
+
+  /**
+   * Maximum number of times per second the code callbacks are invoked
+   *
+   * @return callback rate
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "maxCallbackRate")
+  public int getMaxCallbackRate() {
+    return codeDispatcher.getMaxRate();
+  }
+
+  /**
+   * Limit how often the code callbacks are invoked
+   * Codes found in between are collected and delivered together
+   *
+   * @param rate callbacks per second, at least 1
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "maxCallbackRate")
+  public void setMaxCallbackRate(int rate) {
+    codeDispatcher.setMaxRate(rate);
+  }
+
+  /**
+   * Number of preview frames that were skipped because the decoder was still busy with an earlier one
+   *
+   * @return dropped frame count since the scanner was created
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "droppedFrameCount")
+  public long getDroppedFrameCount() {
+    return decoder == null ? 0 : decoder.getDroppedFrameCount();
+  }
+
+  /**
+   * Number of preview frames that were run through the decoder
+   *
+   * @return decoded frame count since the scanner was created
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "decodedFrameCount")
+  public long getDecodedFrameCount() {
+    return decoder == null ? 0 : decoder.getProcessedFrameCount();
+  }
+
+  /**
+   * Get the part of the camera picture that is searched for codes
+   *
+   * @return dictionary as accepted by {setRegionOfInterest}
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "regionOfInterest")
+  public KrollDict getRegionOfInterest() {
+    return regionOfInterestToDict(regionOfInterest);
+  }
+
+  /**
+   * Restrict scanning to a part of the camera picture as seen on the display
+   * The dictionary contains "left", "top", "width" and "height" as fractions of the picture (0 to 1)
+   * or, if "unit" is "px", in pixels of the upright camera picture
+   * Cropping happens before binarization, so smaller regions scan considerably faster
+   *
+   * @param region the region to scan, null to scan the whole picture
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "regionOfInterest")
+  public void setRegionOfInterest(KrollDict region) {
+    regionOfInterest = regionOfInterestFromDict(region);
+    Log.d(LTAG, "Region of interest: " + regionOfInterest);
+    CameraManager.getInstance().setFocusRegion(regionOfInterest);
+    if (qrScanner != null) {
+      qrScanner.setRegionOfInterest(regionOfInterest);
+    }
+  }
+
+  /**
+   * Number of consecutive failed frames after which the scanner moves on to a more expensive decode strategy
+   *
+   * @return escalation threshold
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "escalationThreshold")
+  public int getEscalationThreshold() {
+    return escalationThreshold;
+  }
+
+  /**
+   * Change the number of consecutive failed frames after which the scanner tries harder
+   * Lower values find hard codes sooner, higher values keep the average cost per frame down
+   *
+   * @param threshold escalation threshold, at least 1
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "escalationThreshold")
+  public void setEscalationThreshold(int threshold) {
+    // checked right away, the scanner might only be created once scanning starts
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Escalation threshold must be at least 1");
+    }
+    if (qrScanner != null) {
+      qrScanner.getEscalationPolicy().setEscalationThreshold(threshold);
+    }
+    escalationThreshold = threshold;
+  }
+
+  /**
+   * Statistics for each decode tier: number of attempts, successes and average decode time in milliseconds
+   *
+   * @return dictionary mapping tier names to their statistics
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "decodeTierStatistics")
+  public KrollDict getDecodeTierStatistics() {
+    final KrollDict result = new KrollDict();
+    if (qrScanner == null) {
+      return result;
+    }
+    final DecodeEscalationPolicy policy = qrScanner.getEscalationPolicy();
+    for (DecodeEscalationPolicy.Tier tier : DecodeEscalationPolicy.Tier.values()) {
+      final KrollDict tierStatistics = new KrollDict();
+      final long attempts = policy.getAttempts(tier);
+      tierStatistics.put("attempts", attempts);
+      tierStatistics.put("successes", policy.getSuccesses(tier));
+      tierStatistics.put("averageDecodeMs", attempts == 0 ? 0 : policy.getDecodeNanos(tier) / 1e6 / attempts);
+      result.put(tier.name(), tierStatistics);
+    }
+    return result;
+  }
+
+  /**
+   * Binarization strategies that are run concurrently on every frame
+   *
+   * @return names of the strategies, empty if parallel decoding is disabled
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "parallelStrategies")
+  public String[] getParallelStrategies() {
+    if (parallelStrategies == null) {
+      return new String[0];
+    }
+    final String[] names = new String[parallelStrategies.size()];
+    int i = 0;
+    for (ParallelStrategyDecoder.Strategy strategy : parallelStrategies) {
+      names[i++] = strategy.name();
+    }
+    return names;
+  }
+
+  /**
+   * Decode every frame with several binarization strategies at once on separate cores
+   * Helps with glare and low contrast at the cost of CPU time
+   * Valid names are HYBRID, GLOBAL_HISTOGRAM, INVERTED_HYBRID and INVERTED_GLOBAL_HISTOGRAM
+   *
+   * @param names strategy names, null or empty to decode with a single strategy again
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "parallelStrategies")
+  public void setParallelStrategies(String[] names) {
+    Set<ParallelStrategyDecoder.Strategy> strategies = null;
+    if (names != null && names.length > 0) {
+      strategies = EnumSet.noneOf(ParallelStrategyDecoder.Strategy.class);
+      for (String name : names) {
+        strategies.add(ParallelStrategyDecoder.Strategy.valueOf(name));
+      }
+    }
+    parallelStrategies = strategies;
+    if (qrScanner != null) {
+      qrScanner.setParallelStrategies(strategies);
+    }
+  }
+
+  /**
+   * Statistics for each parallel strategy: how often it ran and how often it was the first to find a code
+   * Strategies that never win can be removed from "parallelStrategies"
+   *
+   * @return dictionary mapping strategy names to their statistics
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "strategyStatistics")
+  public KrollDict getStrategyStatistics() {
+    final KrollDict result = new KrollDict();
+    final ParallelStrategyDecoder parallelDecoder = qrScanner == null ? null : qrScanner.getParallelDecoder();
+    if (parallelDecoder == null) {
+      return result;
+    }
+    for (ParallelStrategyDecoder.Strategy strategy : ParallelStrategyDecoder.Strategy.values()) {
+      final KrollDict strategyStatistics = new KrollDict();
+      strategyStatistics.put("attempts", parallelDecoder.getAttempts(strategy));
+      strategyStatistics.put("wins", parallelDecoder.getWins(strategy));
+      result.put(strategy.name(), strategyStatistics);
+    }
+    return result;
+  }
+
+  /**
+   * Whether blurry or low-contrast frames are skipped without running the decoder
+   *
+   * @return true if the quality filter is active
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "qualityFilter")
+  public boolean getQualityFilter() {
+    return qualityFilter;
+  }
+
+  /**
+   * Enable or disable skipping frames whose sharpness or contrast is well below the recent average
+   * Sharpness is measured either way, so refocusing on blurry pictures doesn't depend on the filter
+   *
+   * @param enabled whether to filter frames
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "qualityFilter")
+  public void setQualityFilter(boolean enabled) {
+    qualityFilter = enabled;
+    if (qrScanner != null) {
+      qrScanner.setQualityFilterEnabled(enabled);
+    }
+  }
+
+  /**
+   * Whether frames without finder patterns are skipped without running the decoder
+   *
+   * @return true if the pre-detector is active
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "preDetector")
+  public boolean getPreDetector() {
+    return preDetector;
+  }
 
-    private String lastCode = null;
+  /**
+   * Enable or disable looking for finder patterns before binarizing a frame
+   * Disabling it may help with codes whose finder patterns are damaged
+   *
+   * @param enabled whether to pre-detect finder patterns
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "preDetector")
+  public void setPreDetector(boolean enabled) {
+    preDetector = enabled;
+    if (qrScanner != null) {
+      qrScanner.setPreDetectorEnabled(enabled);
+    }
+  }
+
+  /**
+   * How much a frame has to differ from the last decoded one to be decoded again
+   *
+   * @return mean luminance difference of the frame's coarse signature, 0 if every frame is decoded
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "sceneChangeThreshold")
+  public int getSceneChangeThreshold() {
+    return sceneChangeThreshold;
+  }
+
+  /**
+   * Change how much a frame has to differ from the last decoded one to be decoded again
+   * Unchanged frames repeat the outcome of the last decoded frame, so a code lying still is still reported
+   *
+   * @param threshold mean luminance difference from 0 to 255, 0 to decode every frame
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "sceneChangeThreshold")
+  public void setSceneChangeThreshold(int threshold) {
+    // checked right away, the scanner might only be created once scanning starts
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Threshold must not be negative");
+    }
+    if (qrScanner != null) {
+      qrScanner.getSceneChangeDetector().setThreshold(threshold);
+    }
+    sceneChangeThreshold = threshold;
+  }
+
+  /**
+   * Quality scores of the most recent frame and the number of frames skipped because of poor quality
+   *
+   * @return dictionary with "sharpness", "contrast" and "skippedFrames"
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "frameQuality")
+  public KrollDict getFrameQuality() {
+    final KrollDict result = new KrollDict();
+    if (qrScanner != null) {
+      final FrameQualityEstimator estimator = qrScanner.getQualityEstimator();
+      result.put("sharpness", estimator.getLastSharpness());
+      result.put("contrast", estimator.getLastContrast());
+      result.put("skippedFrames", estimator.getSkippedFrameCount());
+    }
+    return result;
+  }
+
+  /**
+   * Counters and stage latencies since the module was loaded or the statistics were last reset
+   * Contains "elapsedMs", "counters" (framesReceived, framesDropped, framesIdle, framesUnchanged, framesSkipped,
+   * framesWithoutFinder, framesDecoded, framesWithCode, failedNotFound, failedFormat, failedChecksum, failedOther,
+   * callbacks, codesDelivered), "framesPerSecond" (received and decoded) and "latencies" with one entry per stage
+   * (cameraStart, frameDelivery, preDetect, binarize, detectAndDecode, frameTotal, delivery, callback) holding
+   * "count", "meanMs", "maxMs", "p50Ms", "p90Ms", "p99Ms" and "buckets", the number of durations up to each of
+   * "bucketBoundsMs" with one more bucket for everything above the last bound
+   *
+   * @return dictionary with the statistics
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "stats")
+  public KrollDict getStats() {
+    final ScanStatistics statistics = CameraManager.getInstance().getStatistics();
+    final double elapsedMs = (System.nanoTime() - statistics.getResetTime()) / 1e6;
+    final KrollDict result = new KrollDict();
+    result.put("elapsedMs", elapsedMs);
+
+    final KrollDict counters = new KrollDict();
+    for (ScanStatistics.Counter counter : ScanStatistics.Counter.values()) {
+      counters.put(toCamelCase(counter.name()), statistics.get(counter));
+    }
+    result.put("counters", counters);
+
+    final KrollDict framesPerSecond = new KrollDict();
+    final double elapsedSeconds = Math.max(elapsedMs / 1000, 1e-3);
+    framesPerSecond.put("received", statistics.get(ScanStatistics.Counter.FRAMES_RECEIVED) / elapsedSeconds);
+    framesPerSecond.put("decoded", statistics.get(ScanStatistics.Counter.FRAMES_DECODED) / elapsedSeconds);
+    result.put("framesPerSecond", framesPerSecond);
+
+    final double[] bucketBounds = new double[LatencyHistogram.getNumberOfBuckets() - 1];
+    for (int i = 0; i < bucketBounds.length; i++) {
+      bucketBounds[i] = LatencyHistogram.getBucketBoundNanos(i) / 1e6;
+    }
+    result.put("bucketBoundsMs", bucketBounds);
+
+    final KrollDict latencies = new KrollDict();
+    for (ScanStatistics.Stage stage : ScanStatistics.Stage.values()) {
+      final LatencyHistogram histogram = statistics.getHistogram(stage);
+      final KrollDict latency = new KrollDict();
+      latency.put("count", histogram.getCount());
+      latency.put("meanMs", histogram.getMeanNanos() / 1e6);
+      latency.put("maxMs", histogram.getMaxNanos() / 1e6);
+      latency.put("p50Ms", histogram.getPercentileNanos(0.5f) / 1e6);
+      latency.put("p90Ms", histogram.getPercentileNanos(0.9f) / 1e6);
+      latency.put("p99Ms", histogram.getPercentileNanos(0.99f) / 1e6);
+      final long[] buckets = new long[LatencyHistogram.getNumberOfBuckets()];
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = histogram.getBucketCount(i);
+      }
+      latency.put("buckets", buckets);
+      latencies.put(toCamelCase(stage.name()), latency);
+    }
+    result.put("latencies", latencies);
+
+    final List<PreviewDataWorker> workers = CameraManager.getInstance().getPreviewDataWorkers();
+    final Object[] processors = new Object[workers.size()];
+    for (int i = 0; i < processors.length; i++) {
+      final PreviewDataWorker worker = workers.get(i);
+      final LatencyHistogram lag = worker.getLag();
+      final KrollDict processor = new KrollDict();
+      processor.put("name", worker.getProcessor().getClass().getSimpleName());
+      processor.put("processed", worker.getProcessedFrameCount());
+      processor.put("dropped", worker.getDroppedFrameCount());
+      processor.put("queued", worker.getQueuedFrameCount());
+      processor.put("lastLagMs", worker.getLastLagNanos() / 1e6);
+      processor.put("meanLagMs", lag.getMeanNanos() / 1e6);
+      processor.put("p90LagMs", lag.getPercentileNanos(0.9f) / 1e6);
+      processor.put("maxLagMs", lag.getMaxNanos() / 1e6);
+      processors[i] = processor;
+    }
+    result.put("processors", processors);
+    return result;
+  }
+
+  /**
+   * Sets all counters and latency histograms of "stats" back to zero
+   */
+  @Kroll.method
+  public void resetStats() {
+    CameraManager.getInstance().getStatistics().reset();
+  }
+
+  /**
+   * Converts an enum constant name like FRAMES_RECEIVED to framesReceived
+   */
+  private static String toCamelCase(String name) {
+    final StringBuilder builder = new StringBuilder(name.length());
+    boolean upper = false;
+    for (char c : name.toCharArray()) {
+      if (c == '_') {
+        upper = true;
+      } else {
+        builder.append(upper ? c : Character.toLowerCase(c));
+        upper = false;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Warm up the decoder in the background so the first scan is as fast as later ones, best called right after
+   * requiring the module. A few generated codes are decoded at the expected frame size, which loads and compiles
+   * the decode path, and the preview buffers for that size are allocated before the camera opens
+   *
+   * @param options optional dictionary with "width" and "height" of the expected frames (1280x720 by default),
+   *                the number of "codes" to decode and a "callback" receiving "durationMs", "decoded" and "codes"
+   */
+  @Kroll.method
+  public void warmUp(@Kroll.argument(optional = true) KrollDict options) {
+    if (options == null) {
+      options = new KrollDict();
+    }
+    final int width = options.containsKeyAndNotNull("width") ?
+        options.getInt("width") : Camera2FrameSource.DEFAULT_ANALYSIS_WIDTH;
+    final int height = options.containsKeyAndNotNull("height") ?
+        options.getInt("height") : Camera2FrameSource.DEFAULT_ANALYSIS_HEIGHT;
+    final int codes = options.containsKeyAndNotNull("codes") ?
+        options.getInt("codes") : ScannerWarmUp.DEFAULT_CODE_COUNT;
+    final Object callback = options.get("callback");
+    // the Y plane of camera2 frames is laid out like that of NV21, the default format of the old API
+    final ScannerWarmUp scannerWarmUp = new ScannerWarmUp(width, height, ImageFormat.NV21, codes);
+    warmUp = scannerWarmUp;
+    CameraManager.getInstance().preparePreviewBuffers(width, height, ImageFormat.NV21);
+    scannerWarmUp.start(new ScannerWarmUp.Listener() {
+      @Override
+      public void warmUpFinished(long durationNanos, int decodedCodes, int codes) {
+        if (callback instanceof KrollFunction) {
+          final KrollDict event = new KrollDict();
+          event.put("durationMs", durationNanos / 1e6);
+          event.put("decoded", decodedCodes);
+          event.put("codes", codes);
+          Object[] args = {event};
+          ((KrollFunction) callback).callAsync(Module.this.getKrollObject(), args);
+        }
+      }
+    });
+  }
+
+  /**
+   * How long the most recent warm-up took
+   *
+   * @return duration in milliseconds, -1 if no warm-up has finished yet
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "warmUpMs")
+  public double getWarmUpMs() {
+    final ScannerWarmUp current = warmUp;
+    if (current == null || current.getDurationNanos() < 0) {
+      return -1;
+    }
+    return current.getDurationNanos() / 1e6;
+  }
+
+  /**
+   * Start writing the raw camera frames to a file, e.g. to reproduce a problem later via "replayFile"
+   * Frames are written on a separate thread; frames arriving while it is busy are not recorded
+   *
+   * @param path         file to write, an existing file is replaced
+   * @param maxMegabytes size limit of the recording
+   */
+  @Kroll.method
+  public void startRecording(String path, int maxMegabytes) {
+    stopRecording();
+    try {
+      frameRecorder = new FrameRecorder(toFile(path), maxMegabytes * 1024L * 1024L);
+    } catch (IOException e) {
+      Log.e(LTAG, "Could not start recording", e);
+      return;
+    }
+    recordingProcessor = new AsyncPreviewFrameProcessor(frameRecorder, "TiqrRecorder");
+    recordingProcessor.start();
+    CameraManager.getInstance().addPreviewFrameProcessor(recordingProcessor);
+  }
+
+  /**
+   * Stop recording frames and close the file
+   *
+   * @return number of frames recorded
+   */
+  @Kroll.method
+  public long stopRecording() {
+    if (frameRecorder == null) {
+      return 0;
+    }
+    CameraManager.getInstance().removePreviewFrameProcessor(recordingProcessor);
+    recordingProcessor.stop();
+    final long frames = frameRecorder.getRecordedFrameCount();
+    try {
+      frameRecorder.close();
+    } catch (IOException e) {
+      Log.e(LTAG, "Could not finish recording", e);
+    }
+    frameRecorder = null;
+    recordingProcessor = null;
+    return frames;
+  }
+
+  /**
+   * Get the recording that is scanned instead of the camera picture
+   *
+   * @return path previously set via {setReplayFile} or null if the camera is used
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "replayFile")
+  public String getReplayFile() {
+    return replayFile;
+  }
+
+  /**
+   * Scan a recording made with "startRecording" instead of the camera picture
+   * The recording is replayed with its original frame rate and starts over at its end
+   *
+   * @param path recording to replay, null to use the camera again
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "replayFile")
+  public void setReplayFile(String path) {
+    replayFile = path;
+    CameraManager.getInstance().setFrameSource(path == null ? null : new FileFrameSource(toFile(path), true, true));
+  }
+
+  /**
+   * Accepts both plain paths and file:// URLs as used by Ti.Filesystem
+   */
+  private static File toFile(String path) {
+    return new File(path.startsWith("file://") ? path.substring("file://".length()) : path);
+  }
+
+  /**
+   * Converts a region of interest to the dictionary representation used on the JS side
+   *
+   * @param region region to convert
+   * @return dictionary with "left", "top", "width", "height" and "unit"
+   */
+  public static KrollDict regionOfInterestToDict(RegionOfInterest region) {
+    final KrollDict dict = new KrollDict();
+    dict.put("left", region.getLeft());
+    dict.put("top", region.getTop());
+    dict.put("width", region.getWidth());
+    dict.put("height", region.getHeight());
+    dict.put("unit", region.isFractional() ? "fraction" : "px");
+    return dict;
+  }
+
+  /**
+   * Parses the dictionary representation of a region of interest
+   *
+   * @param dict dictionary as created by {regionOfInterestToDict}, may be null
+   * @return the region, the full frame if {dict} is null
+   */
+  public static RegionOfInterest regionOfInterestFromDict(KrollDict dict) {
+    if (dict == null) {
+      return RegionOfInterest.FULL_FRAME;
+    }
+    if ("px".equals(dict.getString("unit"))) {
+      return RegionOfInterest.fromPixels(dict.getInt("left"), dict.getInt("top"),
+          dict.getInt("width"), dict.getInt("height"));
+    }
+    return RegionOfInterest.fromFractions((float) dict.getDouble("left"), (float) dict.getDouble("top"),
+        (float) dict.getDouble("width"), (float) dict.getDouble("height"));
+  }
+
+  /**
+   * Allows reading the number of preallocated camera preview buffers from JavaScript
+   *
+   * @return number of preview buffers
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "previewBufferCount")
+  public int getPreviewBufferCount() {
+    return CameraManager.getInstance().getPreviewBufferCount();
+  }
+
+  /**
+   * Change the number of preallocated camera preview buffers
+   * More buffers give slow processors more slack before frames are dropped but cost memory
+   *
+   * @param count number of preview buffers, at least one
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "previewBufferCount")
+  public void setPreviewBufferCount(int count) {
+    CameraManager.getInstance().setPreviewBufferCount(count);
+  }
+
+  /**
+   * Whether the frame size adapts to the size of the scanned codes and the decode time
+   *
+   * @return true if adaptive
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "adaptiveResolution")
+  public boolean isAdaptiveResolution() {
+    return CameraManager.getInstance().isAdaptiveResolution();
+  }
+
+  /**
+   * Scan at the smallest resolution at which codes are still decodable instead of the largest one
+   * With Android 5.0 and later only the frames that are decoded get smaller, this is the default there.
+   * Where the old camera API is used the preview gets smaller as well and restarts whenever the size changes,
+   * so it is off by default and has to be enabled explicitly
+   *
+   * @param enabled true to adapt the resolution
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "adaptiveResolution")
+  public void setAdaptiveResolution(boolean enabled) {
+    CameraManager.getInstance().setAdaptiveResolution(enabled);
+  }
+
+  /**
+   * Number of frame pixels per module of a code the adaptive resolution aims for
+   *
+   * @return pixels per module
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "targetPixelsPerModule")
+  public float getTargetPixelsPerModule() {
+    return CameraManager.getInstance().getResolutionPolicy().getTargetPixelsPerModule();
+  }
+
+  /**
+   * Change how many frame pixels a module should cover, higher values trade speed for robustness
+   *
+   * @param pixelsPerModule pixels per module, at least 1
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "targetPixelsPerModule")
+  public void setTargetPixelsPerModule(float pixelsPerModule) {
+    CameraManager.getInstance().getResolutionPolicy().setTargetPixelsPerModule(pixelsPerModule);
+  }
+
+  /**
+   * Time a frame may take to decode, the adaptive resolution stays below it
+   *
+   * @return budget in milliseconds
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "decodeBudgetMs")
+  public double getDecodeBudgetMs() {
+    return CameraManager.getInstance().getResolutionPolicy().getDecodeBudgetNanos() / 1e6;
+  }
+
+  /**
+   * Change the time a frame may take to decode
+   *
+   * @param budget budget in milliseconds, 0 for no limit
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "decodeBudgetMs")
+  public void setDecodeBudgetMs(double budget) {
+    CameraManager.getInstance().getResolutionPolicy().setDecodeBudgetNanos((long) (budget * 1e6));
+  }
+
+  /**
+   * How the scanner saves power while nothing happens in front of the camera
+   *
+   * @return dictionary with name, idleFps, idleFrameInterval and idleDelay of the profile
+   */
+  @Kroll.method
+  @Kroll.getProperty(name = "powerProfile")
+  public KrollDict getPowerProfile() {
+    final PowerGovernor.Profile profile = CameraManager.getInstance().getPowerGovernor().getProfile();
+    final KrollDict result = new KrollDict();
+    result.put("name", profile.getName());
+    result.put("idleFps", profile.getIdleFps());
+    result.put("idleFrameInterval", profile.getIdleFrameInterval());
+    result.put("idleDelay", profile.getIdleDelay());
+    result.put("idle", CameraManager.getInstance().getPowerGovernor().isIdle());
+    return result;
+  }
+
+  /**
+   * Change how the scanner saves power while the picture doesn't change and no code is found,
+   * e.g. on a kiosk that scans all day. Activity restores the full rate with the next frame
+   *
+   * @param profile "performance" (default, never idles), "balanced", "powersave", or a dictionary with
+   *                idleFps (0 keeps the frame rate), idleFrameInterval (decode every Nth frame) and
+   *                idleDelay (milliseconds without activity, 0 never idles)
+   */
+  @Kroll.method
+  @Kroll.setProperty(name = "powerProfile")
+  public void setPowerProfile(Object profile) {
+    final PowerGovernor.Profile powerProfile;
+    if (profile instanceof Map) {
+      @SuppressWarnings("unchecked")
+      final KrollDict dict = new KrollDict((Map<String, Object>) profile);
+      powerProfile = new PowerGovernor.Profile("custom",
+          dict.containsKeyAndNotNull("idleFps") ? dict.getInt("idleFps") : 0,
+          dict.containsKeyAndNotNull("idleFrameInterval") ? dict.getInt("idleFrameInterval") : 1,
+          dict.containsKeyAndNotNull("idleDelay") ? dict.getInt("idleDelay") : 0);
+    } else {
+      powerProfile = PowerGovernor.Profile.forName(String.valueOf(profile));
+      if (powerProfile == null) {
+        throw new IllegalArgumentException("Unknown power profile " + profile);
+      }
+    }
+    Log.d(LTAG, "Power profile: " + powerProfile);
+    CameraManager.getInstance().getPowerGovernor().setProfile(powerProfile);
+  }
+
+  /**
+   * Passes the outcome of starting the camera to the "onCameraReady" callback
+   */
+  private class CameraReadyInvoker implements CameraManager.CaptureListener {
+
+    @Override
+    public void captureStarted(boolean warm, long startupNanos) {
+      final KrollDict event = new KrollDict();
+      event.put("success", true);
+      event.put("warm", warm);
+      event.put("startupMs", startupNanos / 1e6);
+      invoke(event);
+    }
+
+    @Override
+    public void captureFailed(String reason) {
+      final KrollDict event = new KrollDict();
+      event.put("success", false);
+      event.put("warm", false);
+      event.put("error", reason);
+      invoke(event);
+    }
+
+    private void invoke(KrollDict event) {
+      final KrollFunction callback = onCameraReady;
+      if (callback != null) {
+        Object[] args = {event};
+        callback.callAsync(Module.this.getKrollObject(), args);
+      }
+    }
+  }
+
+  /**
+   * When a QR code has been found, queue it for delivery to the Kroll callbacks
+   * Does not queue codes that are still in view since they were last reported
+   */
+  private class QrCodeCallbackInvoker implements QrCodeResultHandler {
 
     @Override
     public void codeFound(String code) {
-      if (onCodeReceived == null) {
-        return;
+      CameraManager.getInstance().notifyCodeFound();
+      queue(new ScannedCode(code, null), SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void codesFound(List<ScannedCode> codes) {
+      CameraManager.getInstance().notifyCodeFound();
+      final long now = SystemClock.uptimeMillis();
+      for (ScannedCode code : codes) {
+        queue(code, now);
+      }
+    }
+
+    private void queue(ScannedCode code, long now) {
+      if (recentCodes.markSeen(code.getText(), now)) {
+        codeDispatcher.dispatch(code);
+      }
+    }
+  }
+
+  /**
+   * Invokes the Kroll callbacks with a batch of codes
+   */
+  private class CodeBatchInvoker implements CoalescingCodeDispatcher.BatchHandler {
+
+    @Override
+    public void deliver(List<ScannedCode> codes) {
+      if (onCodesReceived != null) {
+        Log.d(LTAG, String.format("Invoking multi-code reception handler with %d codes", codes.size()));
+        Object[] args = {scannedCodesToArray(codes)};
+        onCodesReceived.callAsync(Module.this.getKrollObject(), args);
+      }
+      if (onCodeReceived != null) {
+        Log.d(LTAG, "Invoking code reception handler");
+        for (ScannedCode code : codes) {
+          Object[] args = {code.getText()};
+          onCodeReceived.callAsync(Module.this.getKrollObject(), args);
+        }
       }
-      // ignore the code if it was just reported
-      if (code.equals(lastCode)) {
-        return;
+    }
+  }
+
+  /**
+   * Converts a batch of codes to the representation passed to "onCodesReceived"
+   *
+   * @param codes codes to convert
+   * @return array with one dictionary per code
+   */
+  private static Object[] scannedCodesToArray(List<ScannedCode> codes) {
+    final Object[] result = new Object[codes.size()];
+    for (int i = 0; i < result.length; i++) {
+      final ScannedCode code = codes.get(i);
+      final Object[] points = new Object[code.getPointCount()];
+      for (int p = 0; p < points.length; p++) {
+        final KrollDict point = new KrollDict();
+        point.put("x", code.getPointX(p));
+        point.put("y", code.getPointY(p));
+        points[p] = point;
       }
-      lastCode = code;
-      Log.d(LTAG, "Invoking code reception handler");
-      Object[] args = {code};
-      onCodeReceived.callAsync(Module.this.getKrollObject(), args);
+      final KrollDict dict = new KrollDict();
+      dict.put("code", code.getText());
+      dict.put("points", points);
+      result[i] = dict;
     }
+    return result;
   }
 }
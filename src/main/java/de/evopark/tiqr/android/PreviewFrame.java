@@ -0,0 +1,208 @@
+package de.evopark.tiqr.android;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single camera preview frame together with the metadata needed to interpret it
+ * <p>
+ * All descriptive fields are immutable. The underlying buffer is reference counted:
+ * the frame starts out with one reference held by whoever created it. Processors which want to keep the
+ * frame after returning from their callback must {@link #retain()} it and {@link #release()} it once done.
+ * When the last reference is released, the buffer is handed back to its owner for reuse and must not be touched anymore.
+ * <p>
+ * The luminance is held either in a byte array (android.hardware.Camera, recordings) or in a possibly direct
+ * ByteBuffer such as the Y plane of a camera2 Image, which is passed on without copying.
+ */
+public final class PreviewFrame {
+
+  /**
+   * Receives the buffer of a frame once the last reference to it has been released
+   */
+  public interface Recycler {
+    void recycle(PreviewFrame frame);
+  }
+
+  private final byte[] data;
+  private final ByteBuffer buffer;
+  private final int width;
+  private final int height;
+  private final int format;
+  private final int rowStride;
+  private final int pixelStride;
+  private final int rotation;
+  private final long timestamp;
+  private final long sequenceNumber;
+  private final Recycler recycler;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * @param data           image data buffer
+   * @param width          width of the picture in pixels
+   * @param height         height of the picture in pixels
+   * @param format         format of the data
+   * @param rowStride      distance between the starts of two luminance rows in bytes
+   * @param rotation       clockwise rotation in degrees needed to show the picture upright
+   * @param timestamp      capture time in nanoseconds, see System#nanoTime()
+   * @param sequenceNumber number of this frame since the camera was started
+   * @param recycler       notified when the last reference is released, may be null
+   * @see android.graphics.ImageFormat
+   */
+  public PreviewFrame(byte[] data, int width, int height, int format, int rowStride,
+                      int rotation, long timestamp, long sequenceNumber, Recycler recycler) {
+    this(data, null, width, height, format, rowStride, format == ImageFormat.YUY2 ? 2 : 1,
+        rotation, timestamp, sequenceNumber, recycler);
+    if (data == null) {
+      throw new IllegalArgumentException("Frame data must not be null");
+    }
+  }
+
+  /**
+   * @param buffer         luminance plane, only absolute reads are used so its position is irrelevant
+   * @param width          width of the picture in pixels
+   * @param height         height of the picture in pixels
+   * @param format         format of the image the plane belongs to
+   * @param rowStride      distance between the starts of two luminance rows in bytes
+   * @param pixelStride    distance between two luminance samples in a row in bytes
+   * @param rotation       clockwise rotation in degrees needed to show the picture upright
+   * @param timestamp      capture time in nanoseconds, see System#nanoTime()
+   * @param sequenceNumber number of this frame since the camera was started
+   * @param recycler       notified when the last reference is released, may be null
+   */
+  public PreviewFrame(ByteBuffer buffer, int width, int height, int format, int rowStride, int pixelStride,
+                      int rotation, long timestamp, long sequenceNumber, Recycler recycler) {
+    this(null, buffer, width, height, format, rowStride, pixelStride, rotation, timestamp, sequenceNumber, recycler);
+    if (buffer == null) {
+      throw new IllegalArgumentException("Frame buffer must not be null");
+    }
+  }
+
+  private PreviewFrame(byte[] data, ByteBuffer buffer, int width, int height, int format, int rowStride,
+                       int pixelStride, int rotation, long timestamp, long sequenceNumber, Recycler recycler) {
+    this.data = data;
+    this.buffer = buffer;
+    this.width = width;
+    this.height = height;
+    this.format = format;
+    this.rowStride = rowStride;
+    this.pixelStride = pixelStride;
+    this.rotation = rotation;
+    this.timestamp = timestamp;
+    this.sequenceNumber = sequenceNumber;
+    this.recycler = recycler;
+  }
+
+  /**
+   * Acquires an additional reference to this frame
+   *
+   * @return this frame
+   * @throws IllegalStateException if the frame has already been recycled
+   */
+  public PreviewFrame retain() {
+    while (true) {
+      final int count = references.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Frame has already been released");
+      }
+      if (references.compareAndSet(count, count + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /**
+   * Gives up a reference to this frame, recycling the buffer if it was the last one
+   *
+   * @throws IllegalStateException if there are no references left
+   */
+  public void release() {
+    final int count = references.decrementAndGet();
+    if (count == 0) {
+      if (recycler != null) {
+        recycler.recycle(this);
+      }
+    } else if (count < 0) {
+      throw new IllegalStateException("Frame has been released too often");
+    }
+  }
+
+  /**
+   * @return image data buffer, only valid while holding a reference; null if the frame is backed by a ByteBuffer
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * @return luminance plane, only valid while holding a reference; null if the frame is backed by a byte array
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return format of the data
+   * @see android.graphics.ImageFormat
+   */
+  public int getFormat() {
+    return format;
+  }
+
+  /**
+   * @return distance between the starts of two luminance rows in bytes
+   */
+  public int getRowStride() {
+    return rowStride;
+  }
+
+  /**
+   * @return distance between two horizontally adjacent luminance samples in bytes
+   */
+  public int getPixelStride() {
+    return pixelStride;
+  }
+
+  /**
+   * @return clockwise rotation in degrees (0, 90, 180 or 270) needed to show the picture upright
+   */
+  public int getRotation() {
+    return rotation;
+  }
+
+  /**
+   * @return capture time in nanoseconds as returned by System#nanoTime()
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  /**
+   * Determines the luminance row stride of a preview buffer as delivered by android.hardware.Camera
+   *
+   * @param width  picture width in pixels
+   * @param format preview format
+   * @return row stride in bytes
+   */
+  public static int defaultRowStride(int width, int format) {
+    if (format == ImageFormat.YV12) {
+      return (width + 15) & ~15;
+    } else if (format == ImageFormat.YUY2) {
+      return width * 2;
+    }
+    return width;
+  }
+}
@@ -0,0 +1,19 @@
+package de.evopark.tiqr.android.interfaces;
+
+import de.evopark.tiqr.android.processing.FrameQualityEstimator;
+
+/**
+ * Notified whenever the quality of a preview frame has been estimated
+ * Invoked on the decoding thread, so implementations must return quickly
+ *
+ * @see FrameQualityEstimator
+ */
+public interface FrameQualityListener {
+  /**
+   * @param sharpness mean squared luminance gradient of the frame, higher is sharper
+   * @param contrast  standard deviation of the frame's luminance
+   * @param skipped   whether the frame was considered too poor to decode, even if the filter is off
+   *                  and the frame is decoded anyway
+   */
+  void frameQualityMeasured(float sharpness, float contrast, boolean skipped);
+}
@@ -0,0 +1,36 @@
+package de.evopark.tiqr.android.interfaces;
+
+import de.evopark.tiqr.android.PreviewFrame;
+
+/**
+ * Produces preview frames for the CameraManager, e.g. from the camera or from a recording
+ *
+ * @see de.evopark.tiqr.android.CameraManager
+ */
+public interface FrameSource {
+
+  /**
+   * Receives the frames of a source
+   */
+  interface Listener {
+    /**
+     * Will be invoked on the source's thread for every frame
+     * The source releases the frame after this method returns, so listeners which keep it must retain it
+     *
+     * @param frame the preview frame
+     */
+    void frameAvailable(PreviewFrame frame);
+  }
+
+  /**
+   * Starts delivering frames, or reconfigures delivery if the source is already running
+   *
+   * @param listener receives the frames
+   */
+  void start(Listener listener);
+
+  /**
+   * Stops delivering frames; frames still retained by processors stay valid until they are released
+   */
+  void stop();
+}
@@ -1,11 +1,9 @@
 package de.evopark.tiqr.android.interfaces;
 
-import de.evopark.tiqr.android.CameraManager;
-
 /**
  * Interface for consumers who want to process data from the camera
  *
- * @see CameraManager
+ * @see de.evopark.tiqr.android.CameraManager
  */
 public interface PreviewDataProcessor {
   /**
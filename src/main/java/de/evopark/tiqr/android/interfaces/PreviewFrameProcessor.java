@@ -0,0 +1,23 @@
+package de.evopark.tiqr.android.interfaces;
+
+import de.evopark.tiqr.android.PreviewFrame;
+
+/**
+ * Interface for consumers who want to process frames from the camera together with their metadata
+ * Unlike PreviewDataProcessor, implementations may keep a frame beyond the callback
+ * by retaining it, e.g. to hand it to another thread
+ *
+ * @see de.evopark.tiqr.android.CameraManager
+ * @see PreviewDataProcessor
+ */
+public interface PreviewFrameProcessor {
+  /**
+   * Will be invoked when a new preview frame is available from the camera
+   * The frame is only guaranteed to be valid until this method returns unless
+   * the processor calls {@link PreviewFrame#retain()}, in which case it must
+   * call {@link PreviewFrame#release()} when done
+   *
+   * @param frame the preview frame
+   */
+  void processFrame(PreviewFrame frame);
+}
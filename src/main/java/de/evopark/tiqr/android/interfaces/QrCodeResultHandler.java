@@ -1,7 +1,10 @@
 package de.evopark.tiqr.android.interfaces;
 
+import de.evopark.tiqr.android.processing.ScannedCode;
 import de.evopark.tiqr.android.processing.ZxingQrScanner;
 
+import java.util.List;
+
 /**
  * Invoked when ZxingQrScanner finds a code
  *
@@ -15,4 +18,11 @@ public interface QrCodeResultHandler {
    */
   void codeFound(String code);
 
+  /**
+   * Invoked in multi-code mode with all codes found in a single frame
+   *
+   * @param codes the codes including their positions, never empty
+   */
+  void codesFound(List<ScannedCode> codes);
+
 }
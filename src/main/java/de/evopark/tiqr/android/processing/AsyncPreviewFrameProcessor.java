@@ -0,0 +1,166 @@
+package de.evopark.tiqr.android.processing;
+
+import android.util.Log;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.PreviewFrameProcessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs another PreviewFrameProcessor on a dedicated worker thread
+ * Frames are handed over through a single-slot mailbox: if the worker is still busy when a new frame arrives,
+ * the pending frame is released and replaced so the worker always picks up the most recent picture
+ * The camera callback only retains the frame and returns immediately, no pixel data is copied
+ */
+public class AsyncPreviewFrameProcessor implements PreviewFrameProcessor {
+
+  private final static String LTAG = AsyncPreviewFrameProcessor.class.getSimpleName();
+
+  private final PreviewFrameProcessor delegate;
+  private final String threadName;
+
+  private final Object lock = new Object();
+  private PreviewFrame pending = null;
+  private Thread worker = null;
+
+  private final AtomicLong droppedFrames = new AtomicLong();
+  private final AtomicLong processedFrames = new AtomicLong();
+  private volatile ScanStatistics statistics = null;
+
+  /**
+   * @param delegate   processor which should be run on the worker thread
+   * @param threadName name of the worker thread
+   */
+  public AsyncPreviewFrameProcessor(PreviewFrameProcessor delegate, String threadName) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Delegate must not be null");
+    }
+    this.delegate = delegate;
+    this.threadName = threadName;
+  }
+
+  /**
+   * Starts the worker thread if it isn't running yet
+   */
+  public void start() {
+    synchronized (lock) {
+      if (worker != null) {
+        return;
+      }
+      Log.d(LTAG, "Starting worker thread " + threadName);
+      worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          processFrames();
+        }
+      }, threadName);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Stops the worker thread and releases any pending frame
+   * A frame which is currently being processed will still be finished
+   */
+  public void stop() {
+    PreviewFrame discarded;
+    synchronized (lock) {
+      if (worker == null) {
+        return;
+      }
+      Log.d(LTAG, "Stopping worker thread " + threadName);
+      worker = null;
+      discarded = pending;
+      pending = null;
+      lock.notifyAll();
+    }
+    if (discarded != null) {
+      discarded.release();
+    }
+  }
+
+  /**
+   * @param statistics where to count dropped frames and record how long frames waited, null to record nothing
+   */
+  public void setStatistics(ScanStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * @return number of frames which were replaced by a newer frame before the worker got to them
+   */
+  public long getDroppedFrameCount() {
+    return droppedFrames.get();
+  }
+
+  /**
+   * @return number of frames which were handed to the delegate
+   */
+  public long getProcessedFrameCount() {
+    return processedFrames.get();
+  }
+
+  /**
+   * Puts the frame into the mailbox, releasing any frame that is still pending
+   * Frames arriving while the worker is stopped are ignored
+   *
+   * @param frame the preview frame
+   */
+  @Override
+  public void processFrame(PreviewFrame frame) {
+    PreviewFrame replaced;
+    synchronized (lock) {
+      if (worker == null) {
+        return;
+      }
+      replaced = pending;
+      pending = frame.retain();
+      lock.notifyAll();
+    }
+    if (replaced != null) {
+      droppedFrames.incrementAndGet();
+      final ScanStatistics stats = statistics;
+      if (stats != null) {
+        stats.increment(ScanStatistics.Counter.FRAMES_DROPPED);
+      }
+      replaced.release();
+    }
+  }
+
+  /**
+   * Worker loop: waits for the mailbox to be filled and runs the delegate on its contents
+   */
+  private void processFrames() {
+    final Thread self = Thread.currentThread();
+    while (true) {
+      PreviewFrame frame;
+      synchronized (lock) {
+        while (pending == null && worker == self) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (worker != self) {
+          return;
+        }
+        frame = pending;
+        pending = null;
+      }
+      final ScanStatistics stats = statistics;
+      if (stats != null) {
+        stats.recordSince(ScanStatistics.Stage.FRAME_DELIVERY, frame.getTimestamp());
+      }
+      try {
+        delegate.processFrame(frame);
+        processedFrames.incrementAndGet();
+      } catch (RuntimeException e) {
+        Log.e(LTAG, "Processor failed on worker thread", e);
+      } finally {
+        frame.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package de.evopark.tiqr.android.processing;
+
+/**
+ * Follows a code from frame to frame so only a small window around it needs to be decoded
+ * The window is a square around the code's result points, moved along the code's recent motion.
+ * Its size is fixed when the code is found so the luminance source for the window can be reused.
+ * After a number of frames in a row without finding the code in the window, the code counts as lost.
+ */
+public class CodeTracker {
+
+  public final static int DEFAULT_MAX_MISSES = 5;
+
+  // window side relative to the larger side of the points' bounding box;
+  // QR result points are finder pattern centres, which lie inside the code
+  private final static float WINDOW_EXPANSION = 2.5f;
+  // smallest window side in pixels so tiny or distant codes still get some context
+  private final static int MIN_WINDOW_SIZE = 96;
+  // the window is only resized if the code's size changed by more than this fraction
+  private final static float RESIZE_TOLERANCE = 0.25f;
+
+  private volatile int maxMisses = DEFAULT_MAX_MISSES;
+  private boolean tracking = false;
+  private float centerX;
+  private float centerY;
+  // motion per frame, estimated from the last two sightings
+  private float velocityX;
+  private float velocityY;
+  private int windowSize;
+  private int misses;
+  private final int[] window = new int[4];
+
+  private volatile long trackedFrames = 0;
+  private volatile long lostCount = 0;
+
+  /**
+   * @param maxMisses number of frames in a row without the code after which tracking gives up, at least 1
+   */
+  public void setMaxMisses(int maxMisses) {
+    if (maxMisses < 1) {
+      throw new IllegalArgumentException("Maximum number of misses must be at least 1");
+    }
+    this.maxMisses = maxMisses;
+  }
+
+  public int getMaxMisses() {
+    return maxMisses;
+  }
+
+  /**
+   * @return whether a code is being followed
+   */
+  public boolean isTracking() {
+    return tracking;
+  }
+
+  /**
+   * Predicts where the code will be in the next frame
+   *
+   * @param bounds {left, top, width, height} the window has to stay within
+   * @return {left, top, width, height} in frame pixels, only valid until the next call
+   */
+  public int[] predictWindow(int[] bounds) {
+    final int frames = misses + 1;
+    final float x = centerX + velocityX * frames;
+    final float y = centerY + velocityY * frames;
+    final int width = Math.min(windowSize, bounds[2]);
+    final int height = Math.min(windowSize, bounds[3]);
+    window[0] = clamp(Math.round(x - width / 2f), bounds[0], bounds[0] + bounds[2] - width);
+    window[1] = clamp(Math.round(y - height / 2f), bounds[1], bounds[1] + bounds[3] - height);
+    window[2] = width;
+    window[3] = height;
+    return window;
+  }
+
+  /**
+   * Records where the code was found
+   *
+   * @param code code with its points in frame pixels
+   */
+  public void hit(ScannedCode code) {
+    final int count = code.getPointCount();
+    if (count == 0) {
+      return;
+    }
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    for (int i = 0; i < count; i++) {
+      minX = Math.min(minX, code.getPointX(i));
+      maxX = Math.max(maxX, code.getPointX(i));
+      minY = Math.min(minY, code.getPointY(i));
+      maxY = Math.max(maxY, code.getPointY(i));
+    }
+    final float x = (minX + maxX) / 2f;
+    final float y = (minY + maxY) / 2f;
+    final int size = Math.max(MIN_WINDOW_SIZE, Math.round(Math.max(maxX - minX, maxY - minY) * WINDOW_EXPANSION));
+    if (tracking) {
+      final int frames = misses + 1;
+      velocityX = (x - centerX) / frames;
+      velocityY = (y - centerY) / frames;
+      if (Math.abs(size - windowSize) > windowSize * RESIZE_TOLERANCE) {
+        windowSize = size;
+      }
+      trackedFrames++;
+    } else {
+      velocityX = 0f;
+      velocityY = 0f;
+      windowSize = size;
+      tracking = true;
+    }
+    centerX = x;
+    centerY = y;
+    misses = 0;
+  }
+
+  /**
+   * Records that the code was not found in the predicted window
+   *
+   * @return true if the code is now considered lost
+   */
+  public boolean miss() {
+    if (!tracking) {
+      return true;
+    }
+    if (++misses >= maxMisses) {
+      tracking = false;
+      lostCount++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Stops tracking, for example when the frame geometry changes
+   */
+  public void reset() {
+    tracking = false;
+    misses = 0;
+  }
+
+  /**
+   * @return number of frames in which the code was found inside the tracking window
+   */
+  public long getTrackedFrameCount() {
+    return trackedFrames;
+  }
+
+  /**
+   * @return number of times a tracked code was lost
+   */
+  public long getLostCount() {
+    return lostCount;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
@@ -0,0 +1,134 @@
+package de.evopark.tiqr.android.processing;
+
+import com.google.zxing.DecodeHintType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides how much effort to spend on decoding a frame
+ * Every frame is decoded with the current tier only. After a configurable number of consecutive failures
+ * the policy moves on to the next, more expensive tier; after the most expensive tier has failed as often
+ * it starts over with the cheapest one. A successful decode always resets to the cheapest tier.
+ * Attempts, successes and time spent are recorded per tier so the policy can be tuned.
+ */
+public class DecodeEscalationPolicy {
+
+  public final static int DEFAULT_ESCALATION_THRESHOLD = 3;
+
+  /**
+   * Decode strategies ordered by increasing cost
+   */
+  public enum Tier {
+    /** luminance averaged over 2x2 blocks, a quarter of the pixels */
+    DOWNSCALED(false, false),
+    /** full resolution without hints */
+    FULL_RESOLUTION(false, false),
+    /** full resolution, zxing spends more time looking for finder patterns */
+    TRY_HARDER(true, false),
+    /** full resolution, assumes the region contains nothing but the code */
+    PURE_BARCODE(false, true);
+
+    private final Map<DecodeHintType, Object> hints;
+
+    Tier(boolean tryHarder, boolean pureBarcode) {
+      final Map<DecodeHintType, Object> map = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
+      if (tryHarder) {
+        map.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+      }
+      if (pureBarcode) {
+        map.put(DecodeHintType.PURE_BARCODE, Boolean.TRUE);
+      }
+      hints = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return hints to pass to the zxing reader
+     */
+    public Map<DecodeHintType, Object> getHints() {
+      return hints;
+    }
+  }
+
+  private final static Tier[] TIERS = Tier.values();
+
+  private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+  private volatile int currentTier = 0;
+  private int consecutiveFailures = 0;
+
+  private final AtomicLongArray attempts = new AtomicLongArray(TIERS.length);
+  private final AtomicLongArray successes = new AtomicLongArray(TIERS.length);
+  private final AtomicLongArray decodeNanos = new AtomicLongArray(TIERS.length);
+
+  /**
+   * @return the tier the next frame should be decoded with
+   */
+  public Tier getCurrentTier() {
+    return TIERS[currentTier];
+  }
+
+  /**
+   * @param threshold number of consecutive failures before moving to the next tier, at least 1
+   */
+  public void setEscalationThreshold(int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Escalation threshold must be at least 1");
+    }
+    escalationThreshold = threshold;
+  }
+
+  public int getEscalationThreshold() {
+    return escalationThreshold;
+  }
+
+  /**
+   * Records the outcome of a decode attempt and adjusts the current tier
+   * Must only be called from the decoding thread
+   *
+   * @param tier     tier which was used
+   * @param success  whether a code was found
+   * @param duration time the attempt took in nanoseconds
+   */
+  public void recordAttempt(Tier tier, boolean success, long duration) {
+    final int index = tier.ordinal();
+    attempts.incrementAndGet(index);
+    decodeNanos.addAndGet(index, duration);
+    if (success) {
+      successes.incrementAndGet(index);
+      consecutiveFailures = 0;
+      currentTier = 0;
+    } else if (++consecutiveFailures >= escalationThreshold) {
+      consecutiveFailures = 0;
+      currentTier = (currentTier + 1) % TIERS.length;
+    }
+  }
+
+  public long getAttempts(Tier tier) {
+    return attempts.get(tier.ordinal());
+  }
+
+  public long getSuccesses(Tier tier) {
+    return successes.get(tier.ordinal());
+  }
+
+  /**
+   * @param tier tier to query
+   * @return total time spent decoding with the given tier in nanoseconds
+   */
+  public long getDecodeNanos(Tier tier) {
+    return decodeNanos.get(tier.ordinal());
+  }
+
+  /**
+   * Clears all statistics, the current tier is kept
+   */
+  public void resetStatistics() {
+    for (int i = 0; i < TIERS.length; i++) {
+      attempts.set(i, 0);
+      successes.set(i, 0);
+      decodeNanos.set(i, 0);
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package de.evopark.tiqr.android.processing;
+
+/**
+ * Cheap pre-stage which rejects frames that can't contain a QR code before zxing is invoked
+ * <p>
+ * Every few rows of the luminance are thresholded against the average of the surrounding blocks of pixels and
+ * searched for the dark-light-dark-light-dark runs of 1:1:3:1:1 which a line through the centre of a finder
+ * pattern shows at any rotation, provided the light runs are clearly brighter than the centre so sensor noise
+ * doesn't count. Like zxing does, a hit is confirmed by looking for the same runs along the column through its
+ * centre, which also yields the vertical centre, and hits close to each other are counted once. A code has three
+ * finder patterns, so a frame with fewer than two candidates is not worth binarizing. The row spacing is small
+ * enough to cross the centre of finder patterns with modules of two pixels, the smallest zxing reliably decodes.
+ */
+public class FinderPatternPreDetector {
+
+  public final static int DEFAULT_MIN_CANDIDATES = 2;
+
+  // sampled rows are this many pixels apart, so the centre of a finder pattern with 2 pixel modules is crossed twice
+  private final static int ROW_STEP = 3;
+  // a pixel is dark if it is at least that much darker than the average around it
+  private final static int MIN_DIFFERENCE = 8;
+  // the threshold is the same for blocks of 1 << BLOCK_SHIFT pixels, which saves most of the work per pixel
+  private final static int BLOCK_SHIFT = 3;
+  // finder patterns with smaller modules are ignored, noise easily produces such short runs
+  private final static float MIN_MODULE_SIZE = 1.5f;
+  // the light runs of a finder pattern must be that much brighter than its centre on average
+  private final static int MIN_CONTRAST = 20;
+
+  private volatile int minCandidates = DEFAULT_MIN_CANDIDATES;
+
+  private byte[] row = null;
+  private int[] blockSums = null;
+  private int[] thresholds = null;
+  private final int[] crossRuns = new int[5];
+  private final int[] runLengths = new int[5];
+  private final int[] runStarts = new int[5];
+  private int runCount;
+  // distinct candidates of the current frame as x, y and module size
+  private final float[] candidates = new float[3 * 8];
+  private int candidateCount;
+  private volatile int lastCandidateCount = 0;
+
+  /**
+   * @param count frames with fewer finder pattern candidates are rejected, at least 1
+   */
+  public void setMinCandidates(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("At least one candidate must be required");
+    }
+    minCandidates = count;
+  }
+
+  public int getMinCandidates() {
+    return minCandidates;
+  }
+
+  /**
+   * @return number of candidates found in the most recent frame, counting stops once enough have been found
+   */
+  public int getLastCandidateCount() {
+    return lastCandidateCount;
+  }
+
+  /**
+   * Looks for finder patterns and decides whether the frame should be decoded
+   * Must only be called from the decoding thread
+   *
+   * @param source luminance of the region of interest
+   * @return true if enough finder pattern candidates were found
+   */
+  public boolean accept(YuvLuminanceSource source) {
+    final int required = minCandidates;
+    final int found = countCandidates(source, required);
+    lastCandidateCount = found;
+    return found >= required;
+  }
+
+  /**
+   * Counts finder pattern candidates
+   *
+   * @param source luminance to search
+   * @param limit  stop once that many have been found
+   * @return number of distinct candidates, at most limit
+   */
+  public int countCandidates(YuvLuminanceSource source, int limit) {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    if (width < 21 || height < 21) {
+      // too small to tell, let zxing decide
+      return limit;
+    }
+    final int blocks = (width + (1 << BLOCK_SHIFT) - 1) >> BLOCK_SHIFT;
+    if (row == null || row.length < width) {
+      row = new byte[width];
+      blockSums = new int[blocks + 1];
+      thresholds = new int[blocks];
+    }
+    // the average is taken over the blocks within a sixteenth of the width, at least one block to either side
+    final int halfWindow = Math.max(1, (width / 16) >> BLOCK_SHIFT);
+    candidateCount = 0;
+    for (int y = ROW_STEP / 2; y < height && candidateCount < limit; y += ROW_STEP) {
+      row = source.getRow(y, row);
+      computeThresholds(width, blocks, halfWindow);
+      scanRow(source, y, width, height, limit);
+    }
+    return Math.min(candidateCount, limit);
+  }
+
+  private void computeThresholds(int width, int blocks, int halfWindow) {
+    for (int block = 0; block < blocks; block++) {
+      final int end = Math.min(width, (block + 1) << BLOCK_SHIFT);
+      int sum = 0;
+      for (int x = block << BLOCK_SHIFT; x < end; x++) {
+        sum += row[x] & 0xff;
+      }
+      blockSums[block + 1] = blockSums[block] + sum;
+    }
+    for (int block = 0; block < blocks; block++) {
+      final int from = Math.max(0, block - halfWindow);
+      final int to = Math.min(blocks, block + halfWindow + 1);
+      final int pixels = Math.min(width, to << BLOCK_SHIFT) - (from << BLOCK_SHIFT);
+      thresholds[block] = (blockSums[to] - blockSums[from]) / pixels - MIN_DIFFERENCE;
+    }
+  }
+
+  private void scanRow(YuvLuminanceSource source, int y, int width, int height, int limit) {
+    runCount = 0;
+    int runStart = 0;
+    boolean runDark = (row[0] & 0xff) < thresholds[0];
+    for (int x = 1; x <= width; x++) {
+      final boolean dark = x < width && (row[x] & 0xff) < thresholds[x >> BLOCK_SHIFT];
+      if (x < width && dark == runDark) {
+        continue;
+      }
+      addRun(runStart, x - runStart);
+      if (runDark && runCount >= 5 && matchesRatio(runLengths) && hasContrast()) {
+        confirm(source, y, height);
+        if (candidateCount >= limit) {
+          return;
+        }
+      }
+      runStart = x;
+      runDark = dark;
+    }
+  }
+
+  private void addRun(int start, int length) {
+    System.arraycopy(runLengths, 1, runLengths, 0, 4);
+    System.arraycopy(runStarts, 1, runStarts, 0, 4);
+    runLengths[4] = length;
+    runStarts[4] = start;
+    runCount++;
+  }
+
+  /**
+   * Whether five runs, starting and ending with a dark one, are in a 1:1:3:1:1 ratio, with the tolerance
+   * of half a module zxing's FinderPatternFinder uses plus half a pixel, since small modules are rounded a lot
+   */
+  private static boolean matchesRatio(int[] runLengths) {
+    int total = 0;
+    for (int length : runLengths) {
+      total += length;
+    }
+    final float moduleSize = total / 7f;
+    if (moduleSize < MIN_MODULE_SIZE) {
+      return false;
+    }
+    final float maxVariance = moduleSize / 2f + 0.5f;
+    return Math.abs(moduleSize - runLengths[0]) < maxVariance &&
+        Math.abs(moduleSize - runLengths[1]) < maxVariance &&
+        Math.abs(3f * moduleSize - runLengths[2]) < 3f * maxVariance &&
+        Math.abs(moduleSize - runLengths[3]) < maxVariance &&
+        Math.abs(moduleSize - runLengths[4]) < maxVariance;
+  }
+
+  private boolean hasContrast() {
+    final int lightLength = runLengths[1] + runLengths[3];
+    final int light = (sum(runStarts[1], runLengths[1]) + sum(runStarts[3], runLengths[3])) / lightLength;
+    return light - sum(runStarts[2], runLengths[2]) / runLengths[2] >= MIN_CONTRAST;
+  }
+
+  private int sum(int start, int length) {
+    int sum = 0;
+    for (int x = start; x < start + length; x++) {
+      sum += row[x] & 0xff;
+    }
+    return sum;
+  }
+
+  /**
+   * Checks the column through the centre of the horizontal hit and records it as a candidate
+   * unless it belongs to one found before
+   */
+  private void confirm(YuvLuminanceSource source, int y, int height) {
+    final int total = runStarts[4] + runLengths[4] - runStarts[0];
+    final int x = runStarts[2] + runLengths[2] / 2;
+    // the same threshold as on the row, the pattern is small compared to the window
+    final int threshold = thresholds[x >> BLOCK_SHIFT];
+    final int maxRun = runLengths[2] * 2;
+    // walk up from the hit through the centre, the light ring and the outer dark ring
+    int yUp = y;
+    crossRuns[2] = 0;
+    while (yUp >= 0 && source.getLuminance(x, yUp) < threshold && crossRuns[2] <= maxRun) {
+      crossRuns[2]++;
+      yUp--;
+    }
+    crossRuns[1] = walk(source, x, yUp, -1, height, threshold, false, maxRun);
+    crossRuns[0] = walk(source, x, yUp - crossRuns[1], -1, height, threshold, true, maxRun);
+    int yDown = y + 1;
+    while (yDown < height && source.getLuminance(x, yDown) < threshold && crossRuns[2] <= maxRun) {
+      crossRuns[2]++;
+      yDown++;
+    }
+    crossRuns[3] = walk(source, x, yDown, 1, height, threshold, false, maxRun);
+    crossRuns[4] = walk(source, x, yDown + crossRuns[3], 1, height, threshold, true, maxRun);
+    final int crossTotal = crossRuns[0] + crossRuns[1] + crossRuns[2] + crossRuns[3] + crossRuns[4];
+    // zxing accepts vertical and horizontal sizes within 40% of each other
+    if (5 * Math.abs(crossTotal - total) >= 2 * total || !matchesRatio(crossRuns)) {
+      return;
+    }
+    final float centerY = yDown - crossRuns[2] / 2f;
+    final float moduleSize = (total + crossTotal) / 14f;
+    for (int i = 0; i < candidateCount && 3 * i < candidates.length; i++) {
+      final float distance = 3 * Math.max(moduleSize, candidates[3 * i + 2]);
+      if (Math.abs(candidates[3 * i] - x) < distance && Math.abs(candidates[3 * i + 1] - centerY) < distance) {
+        return;
+      }
+    }
+    if (3 * candidateCount < candidates.length) {
+      candidates[3 * candidateCount] = x;
+      candidates[3 * candidateCount + 1] = centerY;
+      candidates[3 * candidateCount + 2] = moduleSize;
+    }
+    candidateCount++;
+  }
+
+  /**
+   * Counts pixels of one colour along the column, starting at y
+   *
+   * @return length of the run, 0 if it leaves the source or gets longer than maxRun
+   */
+  private static int walk(YuvLuminanceSource source, int x, int y, int direction, int height, int threshold,
+                          boolean dark, int maxRun) {
+    int length = 0;
+    while (y >= 0 && y < height && (source.getLuminance(x, y) < threshold) == dark) {
+      if (++length > maxRun) {
+        return 0;
+      }
+      y += direction;
+    }
+    return y >= 0 && y < height ? length : 0;
+  }
+}
@@ -0,0 +1,188 @@
+package de.evopark.tiqr.android.processing;
+
+import com.google.zxing.LuminanceSource;
+import de.evopark.tiqr.android.interfaces.FrameQualityListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap pre-stage which decides whether a frame is worth decoding
+ * <p>
+ * Computes a sharpness score (mean squared luminance gradient) and a contrast score (standard deviation
+ * of the luminance) on a subsampled grid of the region of interest. Motion-blurred frames and frames
+ * taken while the lens is still moving score far below the recent average, so they are skipped instead
+ * of letting zxing burn its full budget on them. The thresholds adapt to the scene via exponential
+ * moving averages, and a frame is never skipped if too many frames in a row have been skipped already.
+ */
+public class FrameQualityEstimator {
+
+  public final static float DEFAULT_SHARPNESS_RATIO = 0.5f;
+  public final static float DEFAULT_CONTRAST_RATIO = 0.5f;
+
+  // rows and columns per frame which are sampled at most
+  private final static int SAMPLE_ROWS = 48;
+  private final static int SAMPLE_COLUMNS = 128;
+  // no code can be read with less luminance deviation than that
+  private final static float MIN_CONTRAST = 8f;
+  private final static float AVERAGE_WEIGHT = 0.1f;
+  private final static int WARM_UP_FRAMES = 5;
+  private final static int MAX_CONSECUTIVE_SKIPS = 10;
+
+  private volatile float sharpnessRatio = DEFAULT_SHARPNESS_RATIO;
+  private volatile float contrastRatio = DEFAULT_CONTRAST_RATIO;
+  private volatile FrameQualityListener listener = null;
+
+  private byte[] row = null;
+  private byte[] nextRow = null;
+  private float averageSharpness = 0f;
+  private float averageContrast = 0f;
+  private int measuredFrames = 0;
+  private int consecutiveSkips = 0;
+
+  private volatile float lastSharpness = 0f;
+  private volatile float lastContrast = 0f;
+  private final AtomicLong skippedFrames = new AtomicLong();
+
+  /**
+   * @param ratio frames whose sharpness is below this fraction of the recent average are skipped
+   */
+  public void setSharpnessRatio(float ratio) {
+    sharpnessRatio = ratio;
+  }
+
+  public float getSharpnessRatio() {
+    return sharpnessRatio;
+  }
+
+  /**
+   * @param ratio frames whose contrast is below this fraction of the recent average are skipped
+   */
+  public void setContrastRatio(float ratio) {
+    contrastRatio = ratio;
+  }
+
+  public float getContrastRatio() {
+    return contrastRatio;
+  }
+
+  /**
+   * @param listener notified about every measurement, may be null
+   */
+  public void setListener(FrameQualityListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return sharpness score of the most recent frame
+   */
+  public float getLastSharpness() {
+    return lastSharpness;
+  }
+
+  /**
+   * @return contrast score of the most recent frame
+   */
+  public float getLastContrast() {
+    return lastContrast;
+  }
+
+  /**
+   * @return number of frames that were considered not worth decoding
+   */
+  public long getSkippedFrameCount() {
+    return skippedFrames.get();
+  }
+
+  /**
+   * Forgets about previous frames, e.g. after the camera was restarted
+   */
+  public void reset() {
+    measuredFrames = 0;
+    consecutiveSkips = 0;
+  }
+
+  /**
+   * Scores the frame and decides whether it should be decoded
+   * Must only be called from the decoding thread
+   *
+   * @param source luminance of the region of interest
+   * @return true if the frame is worth decoding
+   */
+  public boolean accept(LuminanceSource source) {
+    return evaluate(source, true);
+  }
+
+  /**
+   * Scores the frame and notifies the listener like accept, but the frame is never counted as skipped
+   * Used while the filter is off, so the focus strategy still learns about blurry frames
+   * Must only be called from the decoding thread
+   *
+   * @param source luminance of the region of interest
+   */
+  public void measure(LuminanceSource source) {
+    evaluate(source, false);
+  }
+
+  private boolean evaluate(LuminanceSource source, boolean filter) {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    if (width < 3 || height < 3) {
+      return true;
+    }
+    if (row == null || row.length < width) {
+      row = new byte[width];
+      nextRow = new byte[width];
+    }
+    final int rowStep = Math.max(1, (height - 1) / SAMPLE_ROWS);
+    final int columnStep = Math.max(1, (width - 1) / SAMPLE_COLUMNS);
+    long gradientSum = 0;
+    long sum = 0;
+    long squareSum = 0;
+    int samples = 0;
+    for (int y = 0; y + 1 < height; y += rowStep) {
+      row = source.getRow(y, row);
+      nextRow = source.getRow(y + 1, nextRow);
+      for (int x = 0; x + 1 < width; x += columnStep) {
+        final int pixel = row[x] & 0xff;
+        final int dx = (row[x + 1] & 0xff) - pixel;
+        final int dy = (nextRow[x] & 0xff) - pixel;
+        gradientSum += dx * dx + dy * dy;
+        sum += pixel;
+        squareSum += pixel * pixel;
+        samples++;
+      }
+    }
+    final float mean = (float) sum / samples;
+    final float sharpness = (float) gradientSum / samples;
+    final float contrast = (float) Math.sqrt(Math.max(0f, (float) squareSum / samples - mean * mean));
+    lastSharpness = sharpness;
+    lastContrast = contrast;
+
+    boolean accepted = true;
+    if (measuredFrames < WARM_UP_FRAMES) {
+      measuredFrames++;
+      averageSharpness = measuredFrames == 1 ? sharpness : average(averageSharpness, sharpness);
+      averageContrast = measuredFrames == 1 ? contrast : average(averageContrast, contrast);
+    } else {
+      accepted = consecutiveSkips >= MAX_CONSECUTIVE_SKIPS || (contrast >= MIN_CONTRAST &&
+          sharpness >= sharpnessRatio * averageSharpness && contrast >= contrastRatio * averageContrast);
+      averageSharpness = average(averageSharpness, sharpness);
+      averageContrast = average(averageContrast, contrast);
+    }
+    if (accepted || !filter) {
+      consecutiveSkips = 0;
+    } else {
+      consecutiveSkips++;
+      skippedFrames.incrementAndGet();
+    }
+    final FrameQualityListener currentListener = listener;
+    if (currentListener != null) {
+      currentListener.frameQualityMeasured(sharpness, contrast, !accepted);
+    }
+    return accepted || !filter;
+  }
+
+  private static float average(float average, float value) {
+    return average + AVERAGE_WEIGHT * (value - average);
+  }
+}
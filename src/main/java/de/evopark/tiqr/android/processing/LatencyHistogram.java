@@ -0,0 +1,115 @@
+package de.evopark.tiqr.android.processing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with fixed, roughly logarithmic buckets from 0.1ms to 1s
+ * Recording is a handful of atomic increments, so it is cheap enough for every frame.
+ * Percentiles are approximated by the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+
+  // upper bucket bounds in microseconds, the last bucket takes everything above
+  private final static long[] BUCKET_BOUNDS_MICROS = {
+      100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000
+  };
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MICROS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * @param nanos duration in nanoseconds
+   */
+  public void record(long nanos) {
+    final long micros = nanos / 1000;
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+      bucket++;
+    }
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max;
+    do {
+      max = maxNanos.get();
+    } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+  }
+
+  /**
+   * @return number of recorded durations
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return mean duration in nanoseconds, 0 if nothing was recorded
+   */
+  public long getMeanNanos() {
+    final long n = count.get();
+    return n == 0 ? 0 : totalNanos.get() / n;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * @param fraction e.g. 0.9 for the 90th percentile
+   * @return upper bound of the bucket containing the percentile in nanoseconds, the maximum if it
+   * lies in the last bucket, 0 if nothing was recorded
+   */
+  public long getPercentileNanos(float fraction) {
+    final long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(n * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(BUCKET_BOUNDS_MICROS[i] * 1000, maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /**
+   * @return number of buckets including the one for everything above the last bound
+   */
+  public static int getNumberOfBuckets() {
+    return BUCKET_BOUNDS_MICROS.length + 1;
+  }
+
+  /**
+   * @param bucket bucket index
+   * @return upper bound of the bucket in nanoseconds, Long.MAX_VALUE for the last bucket
+   */
+  public static long getBucketBoundNanos(int bucket) {
+    return bucket < BUCKET_BOUNDS_MICROS.length ? BUCKET_BOUNDS_MICROS[bucket] * 1000 : Long.MAX_VALUE;
+  }
+
+  /**
+   * @param bucket bucket index
+   * @return number of durations recorded in the bucket
+   */
+  public long getBucketCount(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * Clears the histogram; durations recorded concurrently may be partially lost
+   */
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+}
@@ -0,0 +1,107 @@
+package de.evopark.tiqr.android.processing;
+
+/**
+ * Coarse signature of a frame: the average luminance of a few samples in each cell of a grid
+ * <p>
+ * Samples are spread evenly over each cell and taken at fixed fractions of the source, so signatures of
+ * sources of different sizes can be compared. Used by the SceneChangeDetector and the PowerGovernor
+ * to tell whether anything moved between two frames, each with a grid and thresholds of its own.
+ */
+public class LuminanceGrid {
+
+  private final int columns;
+  private final int rows;
+  private final int cellSamples;
+  private final int[] cells;
+
+  /**
+   * @param columns     number of cells across
+   * @param rows        number of cells down
+   * @param cellSamples luminance samples per cell in either direction
+   */
+  public LuminanceGrid(int columns, int rows, int cellSamples) {
+    if (columns < 1 || rows < 1 || cellSamples < 1) {
+      throw new IllegalArgumentException("Invalid grid size");
+    }
+    this.columns = columns;
+    this.rows = rows;
+    this.cellSamples = cellSamples;
+    cells = new int[columns * rows];
+  }
+
+  /**
+   * @return whether the source has a pixel for every sample
+   */
+  public boolean fits(YuvLuminanceSource source) {
+    return source.getWidth() >= columns * cellSamples && source.getHeight() >= rows * cellSamples;
+  }
+
+  /**
+   * Computes the cell averages of the source's current frame
+   *
+   * @param source a source that fits the grid
+   */
+  public void sample(YuvLuminanceSource source) {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    final int samplesAcross = columns * cellSamples;
+    final int samplesDown = rows * cellSamples;
+    int i = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        int sum = 0;
+        for (int sy = 0; sy < cellSamples; sy++) {
+          final int y = ((row * cellSamples + sy) * 2 + 1) * height / (2 * samplesDown);
+          for (int sx = 0; sx < cellSamples; sx++) {
+            final int x = ((column * cellSamples + sx) * 2 + 1) * width / (2 * samplesAcross);
+            sum += source.getLuminance(x, y);
+          }
+        }
+        cells[i++] = sum / (cellSamples * cellSamples);
+      }
+    }
+  }
+
+  /**
+   * Makes this grid a copy of another one of the same size
+   */
+  public void copyFrom(LuminanceGrid other) {
+    System.arraycopy(other.cells, 0, cells, 0, cells.length);
+  }
+
+  /**
+   * @return mean absolute difference between the cells of both grids, 0 to 255
+   */
+  public int meanDifference(LuminanceGrid other) {
+    int total = 0;
+    for (int i = 0; i < cells.length; i++) {
+      total += Math.abs(cells[i] - other.cells[i]);
+    }
+    return total / cells.length;
+  }
+
+  /**
+   * @return largest absolute difference between two corresponding cells, 0 to 255
+   */
+  public int largestDifference(LuminanceGrid other) {
+    int largest = 0;
+    for (int i = 0; i < cells.length; i++) {
+      largest = Math.max(largest, Math.abs(cells[i] - other.cells[i]));
+    }
+    return largest;
+  }
+
+  /**
+   * @param threshold cells differing by more than that count as changed
+   * @return number of changed cells
+   */
+  public int changedCells(LuminanceGrid other, int threshold) {
+    int changed = 0;
+    for (int i = 0; i < cells.length; i++) {
+      if (Math.abs(cells[i] - other.cells[i]) > threshold) {
+        changed++;
+      }
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,255 @@
+package de.evopark.tiqr.android.processing;
+
+import android.util.Log;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.InvertedLuminanceSource;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decodes the same frame with several binarization strategies at once, one per core
+ * HybridBinarizer alone fails on glare-washed or low-contrast pictures which a global histogram
+ * or an inverted image would still decode. Each strategy has its own QRCodeReader.
+ * As soon as one strategy succeeds, strategies which haven't started yet are skipped
+ * and running ones stop before their next expensive step.
+ * <p>
+ * The luminance source may be accessed until {@link #awaitIdle()} returns
+ * Worker threads exit after a few idle seconds, so a decoder that isn't used holds no threads
+ */
+public class ParallelStrategyDecoder {
+
+  private final static String LTAG = ParallelStrategyDecoder.class.getSimpleName();
+
+  /**
+   * Ways of turning luminance into a black and white image
+   */
+  public enum Strategy {
+    HYBRID(false, false),
+    GLOBAL_HISTOGRAM(true, false),
+    INVERTED_HYBRID(false, true),
+    INVERTED_GLOBAL_HISTOGRAM(true, true);
+
+    private final boolean globalHistogram;
+    private final boolean inverted;
+
+    Strategy(boolean globalHistogram, boolean inverted) {
+      this.globalHistogram = globalHistogram;
+      this.inverted = inverted;
+    }
+
+    Binarizer createBinarizer(LuminanceSource source) {
+      final LuminanceSource effectiveSource = inverted ? new InvertedLuminanceSource(source) : source;
+      return globalHistogram ? new GlobalHistogramBinarizer(effectiveSource) : new HybridBinarizer(effectiveSource);
+    }
+  }
+
+  private final static Strategy[] STRATEGIES = Strategy.values();
+  // idle worker threads exit after that many seconds
+  private final static long THREAD_KEEP_ALIVE = 10;
+
+  private final ThreadPoolExecutor executor;
+  private final List<Worker> workers = new ArrayList<Worker>();
+  private final List<Future<Result>> pending = new ArrayList<Future<Result>>();
+  private volatile boolean cancelled = false;
+  private volatile Strategy lastWinner = null;
+
+  private final AtomicLongArray attempts = new AtomicLongArray(STRATEGIES.length);
+  private final AtomicLongArray wins = new AtomicLongArray(STRATEGIES.length);
+
+  /**
+   * Decodes with one worker thread per strategy, limited by the number of cores
+   *
+   * @param strategies strategies to run on every frame
+   */
+  public ParallelStrategyDecoder(Set<Strategy> strategies) {
+    if (strategies == null || strategies.isEmpty()) {
+      throw new IllegalArgumentException("At least one strategy is required");
+    }
+    for (Strategy strategy : strategies) {
+      workers.add(new Worker(strategy));
+    }
+    final int threads = Math.max(1, Math.min(workers.size(), Runtime.getRuntime().availableProcessors()));
+    Log.d(LTAG, String.format("Decoding %d strategies on %d threads", workers.size(), threads));
+    executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "TiqrStrategy-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Uses all available strategies
+   */
+  public ParallelStrategyDecoder() {
+    this(EnumSet.allOf(Strategy.class));
+  }
+
+  /**
+   * Runs all strategies on the source and returns the first successful result
+   * Must not be called again before {@link #awaitIdle()}
+   *
+   * @param source luminance of the frame
+   * @return the first result found or null if no strategy succeeded
+   * @throws InterruptedException if the calling thread was interrupted while waiting
+   */
+  public Result decode(LuminanceSource source) throws InterruptedException {
+    cancelled = false;
+    final CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+    for (Worker worker : workers) {
+      worker.source = source;
+      pending.add(completionService.submit(worker));
+    }
+    for (int i = 0; i < workers.size(); i++) {
+      try {
+        final Result result = completionService.take().get();
+        if (result != null) {
+          cancelled = true;
+          return result;
+        }
+      } catch (ExecutionException e) {
+        Log.e(LTAG, "Decoding strategy failed", e.getCause());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Waits until no strategy accesses the luminance source of the last frame anymore
+   * Strategies still running are told to stop, and an interrupt doesn't end the wait early since the
+   * frame may only be released afterwards; the thread's interrupt status is restored before returning
+   */
+  public void awaitIdle() {
+    // whatever the strategies still find is of no use anymore
+    cancelled = true;
+    boolean interrupted = false;
+    for (Future<Result> future : pending) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (ExecutionException e) {
+          // already logged or irrelevant after another strategy succeeded
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    pending.clear();
+    for (Worker worker : workers) {
+      worker.source = null;
+    }
+  }
+
+  /**
+   * @return the strategy that decoded the most recent code or null if none was found yet
+   */
+  public Strategy getLastWinner() {
+    return lastWinner;
+  }
+
+  /**
+   * @param strategy strategy to query
+   * @return number of frames the strategy actually processed
+   */
+  public long getAttempts(Strategy strategy) {
+    return attempts.get(strategy.ordinal());
+  }
+
+  /**
+   * @param strategy strategy to query
+   * @return number of frames on which the strategy was the first to find a code
+   */
+  public long getWins(Strategy strategy) {
+    return wins.get(strategy.ordinal());
+  }
+
+  public void resetStatistics() {
+    for (int i = 0; i < STRATEGIES.length; i++) {
+      attempts.set(i, 0);
+      wins.set(i, 0);
+    }
+  }
+
+  /**
+   * Stops all worker threads, frames can't be decoded anymore afterwards
+   */
+  public void shutdown() {
+    cancelled = true;
+    executor.shutdown();
+  }
+
+  /**
+   * Decodes a frame with one strategy, bailing out early if another strategy already won
+   */
+  private class Worker implements Callable<Result> {
+    private final Strategy strategy;
+    private final QRCodeReader reader = new QRCodeReader();
+    private volatile LuminanceSource source;
+
+    Worker(Strategy strategy) {
+      this.strategy = strategy;
+    }
+
+    @Override
+    public Result call() {
+      if (cancelled) {
+        return null;
+      }
+      attempts.incrementAndGet(strategy.ordinal());
+      final BinaryBitmap bitmap = new BinaryBitmap(strategy.createBinarizer(source));
+      try {
+        bitmap.getBlackMatrix();
+        if (cancelled) {
+          return null;
+        }
+        final Result result = reader.decode(bitmap);
+        synchronized (ParallelStrategyDecoder.this) {
+          // only the first successful strategy reports its result
+          if (cancelled) {
+            return null;
+          }
+          cancelled = true;
+          lastWinner = strategy;
+          wins.incrementAndGet(strategy.ordinal());
+        }
+        return result;
+      } catch (ReaderException e) {
+        return null;
+      } finally {
+        reader.reset();
+      }
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package de.evopark.tiqr.android.processing;
+
+import de.evopark.tiqr.android.PreviewFrame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets the scanner idle while nothing happens in front of the camera
+ * <p>
+ * Every frame is compared to the previous one on a coarse LuminanceGrid of single samples, which costs a few
+ * hundred memory reads. Once the picture hasn't changed and no code has been found for the idle delay of the
+ * profile, only every Nth frame is passed on and the listener is asked to lower the frame rate. The first frame
+ * that differs again is passed on right away and the listener restores the full frame rate.
+ * Samples are taken at fixed fractions of the frame, so a change of the frame size doesn't count as activity.
+ */
+public class PowerGovernor {
+
+  // grid of luminance samples compared between frames, one per cell
+  private final static int SAMPLE_COLUMNS = 32;
+  private final static int SAMPLE_ROWS = 24;
+  // a sample has changed if its luminance differs by more than that, which sensor noise rarely does
+  private final static int SAMPLE_THRESHOLD = 16;
+  // the picture has changed if at least that many samples have
+  private final static int CHANGED_SAMPLES = SAMPLE_COLUMNS * SAMPLE_ROWS / 64;
+
+  /**
+   * Notified on the thread delivering frames when the governor starts or stops idling
+   */
+  public interface Listener {
+    /**
+     * @param idle    whether the scene is idle now
+     * @param profile profile in effect, telling the frame rate to use while idle
+     */
+    void idleChanged(boolean idle, Profile profile);
+  }
+
+  /**
+   * How aggressively to save power while idle
+   */
+  public static class Profile {
+    /** never idles, every frame is processed at the camera's default frame rate */
+    public final static Profile PERFORMANCE = new Profile("performance", 0, 1, 0);
+    /** drops to 15fps and processes every third frame after 5s without activity */
+    public final static Profile BALANCED = new Profile("balanced", 15, 3, 5000);
+    /** drops to 10fps and processes every fifth frame after 2s without activity */
+    public final static Profile POWER_SAVER = new Profile("powersave", 10, 5, 2000);
+
+    private final String name;
+    private final int idleFps;
+    private final int idleFrameInterval;
+    private final long idleDelay;
+
+    /**
+     * @param name              name to refer to the profile
+     * @param idleFps           highest frame rate while idle, 0 to keep the camera's default
+     * @param idleFrameInterval only every Nth frame is processed while idle, at least 1
+     * @param idleDelay         milliseconds without activity until the scene is idle, 0 to never idle
+     */
+    public Profile(String name, int idleFps, int idleFrameInterval, long idleDelay) {
+      if (idleFps < 0 || idleFrameInterval < 1 || idleDelay < 0) {
+        throw new IllegalArgumentException("Invalid power profile");
+      }
+      this.name = name;
+      this.idleFps = idleFps;
+      this.idleFrameInterval = idleFrameInterval;
+      this.idleDelay = idleDelay;
+    }
+
+    /**
+     * @param name name of a predefined profile
+     * @return the profile or null if there is none of that name
+     */
+    public static Profile forName(String name) {
+      for (Profile profile : new Profile[]{PERFORMANCE, BALANCED, POWER_SAVER}) {
+        if (profile.name.equals(name)) {
+          return profile;
+        }
+      }
+      return null;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getIdleFps() {
+      return idleFps;
+    }
+
+    public int getIdleFrameInterval() {
+      return idleFrameInterval;
+    }
+
+    public long getIdleDelay() {
+      return idleDelay;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (idle after %dms: %dfps, every %d. frame)", name, idleDelay, idleFps,
+          idleFrameInterval);
+    }
+  }
+
+  private volatile Profile profile = Profile.PERFORMANCE;
+  private volatile Listener listener = null;
+  private volatile boolean codeFound = false;
+  private volatile boolean idle = false;
+
+  private LuminanceGrid samples = new LuminanceGrid(SAMPLE_COLUMNS, SAMPLE_ROWS, 1);
+  private LuminanceGrid previousSamples = new LuminanceGrid(SAMPLE_COLUMNS, SAMPLE_ROWS, 1);
+  // bound to the size of the frames, replaced when it changes
+  private YuvLuminanceSource source = null;
+  private boolean sampled = false;
+  private long lastActivity = 0;
+  private int framesSinceProcessed = 0;
+
+  private final AtomicLong idlePeriods = new AtomicLong();
+
+  /**
+   * @param profile profile to use from the next frame on
+   */
+  public void setProfile(Profile profile) {
+    if (profile == null) {
+      throw new IllegalArgumentException("Profile must not be null");
+    }
+    this.profile = profile;
+  }
+
+  public Profile getProfile() {
+    return profile;
+  }
+
+  /**
+   * @param listener notified when idling starts or stops, may be null
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @return whether frames are currently thinned out
+   */
+  public boolean isIdle() {
+    return idle;
+  }
+
+  /**
+   * @return how often the scene became idle
+   */
+  public long getIdlePeriodCount() {
+    return idlePeriods.get();
+  }
+
+  /**
+   * Counts as activity, so the governor doesn't idle while codes are being scanned
+   * May be called from any thread
+   */
+  public void codeFound() {
+    codeFound = true;
+  }
+
+  /**
+   * Forgets the previous frame and stops idling, e.g. when the camera is stopped
+   * Must be called from the thread delivering frames
+   */
+  public void reset() {
+    sampled = false;
+    lastActivity = 0;
+    setIdle(false);
+  }
+
+  /**
+   * Looks for activity in the frame and decides whether it should be processed
+   * Must only be called from the thread delivering frames
+   *
+   * @param frame the frame that has just arrived
+   * @return true if the frame should be passed on to the processors
+   */
+  public boolean frameAvailable(PreviewFrame frame) {
+    final Profile current = profile;
+    final long now = System.nanoTime();
+    boolean active = sample(frame);
+    if (codeFound) {
+      codeFound = false;
+      active = true;
+    }
+    if (active) {
+      lastActivity = now;
+    }
+    if (current.idleDelay == 0 || active) {
+      setIdle(false);
+      return true;
+    }
+    if (!idle) {
+      if (now - lastActivity < current.idleDelay * 1000000L) {
+        return true;
+      }
+      setIdle(true);
+      idlePeriods.incrementAndGet();
+      framesSinceProcessed = 0;
+      return true;
+    }
+    if (++framesSinceProcessed >= current.idleFrameInterval) {
+      framesSinceProcessed = 0;
+      return true;
+    }
+    return false;
+  }
+
+  private void setIdle(boolean idle) {
+    if (this.idle == idle) {
+      return;
+    }
+    this.idle = idle;
+    final Listener l = listener;
+    if (l != null) {
+      l.idleChanged(idle, profile);
+    }
+  }
+
+  /**
+   * Samples the luminance grid of the frame and compares it to the previous one
+   *
+   * @return true if enough samples have changed
+   */
+  private boolean sample(PreviewFrame frame) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    if (!YuvLuminanceSource.isSupported(frame.getFormat())) {
+      // can't tell, so never idle
+      return true;
+    }
+    if (source == null || !source.matches(width, height, 1)) {
+      source = new YuvLuminanceSource(width, height, 1);
+    }
+    if (frame.getData() != null) {
+      source.setFrame(frame.getData(), frame.getRowStride(), frame.getPixelStride(), 0, 0);
+    } else {
+      source.setFrame(frame.getBuffer(), frame.getRowStride(), frame.getPixelStride(), 0, 0);
+    }
+    if (!samples.fits(source)) {
+      return true;
+    }
+    final LuminanceGrid previous = samples;
+    samples = previousSamples;
+    previousSamples = previous;
+    samples.sample(source);
+    final boolean first = !sampled;
+    sampled = true;
+    return first || samples.changedCells(previousSamples, SAMPLE_THRESHOLD) >= CHANGED_SAMPLES;
+  }
+}
@@ -0,0 +1,274 @@
+package de.evopark.tiqr.android.processing;
+
+import android.util.Log;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.PreviewDataProcessor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a PreviewDataProcessor on a dedicated worker thread, so a slow processor holds up neither the camera
+ * nor any other processor
+ * <p>
+ * Frames are copied into a small ring of arrays owned by the worker, so the camera's buffers are never held
+ * by a processor. If the queue is full when a frame arrives, the drop policy decides whether the new frame
+ * or the oldest queued one is dropped. Lag is measured from the camera delivering a frame to the processor
+ * returning from it. Frames backed by a ByteBuffer are handed over as tightly packed luminance.
+ */
+public class PreviewDataWorker {
+
+  private final static String LTAG = PreviewDataWorker.class.getSimpleName();
+
+  public final static int DEFAULT_QUEUE_CAPACITY = 2;
+
+  /**
+   * Which frame to give up on when the queue is full
+   */
+  public enum DropPolicy {
+    /** replace the oldest queued frame, the processor always gets to see the most recent picture */
+    DROP_OLDEST,
+    /** keep the queue as it is, the processor sees an uninterrupted sequence until it falls behind */
+    DROP_NEWEST
+  }
+
+  /**
+   * A copied frame
+   */
+  private static class Item {
+    byte[] data = null;
+    int width;
+    int height;
+    int format;
+    long timestamp;
+  }
+
+  private final PreviewDataProcessor processor;
+  private final int queueCapacity;
+  private final DropPolicy dropPolicy;
+  private final String threadName;
+
+  private final Object lock = new Object();
+  private final ArrayDeque<Item> queue;
+  private final ArrayDeque<Item> free;
+  private Thread worker = null;
+
+  private final AtomicLong processedFrames = new AtomicLong();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  private final LatencyHistogram lag = new LatencyHistogram();
+  private volatile long lastLagNanos = 0;
+
+  /**
+   * @param processor     processor to run on the worker thread
+   * @param queueCapacity number of frames that may wait for the processor, at least 1
+   * @param dropPolicy    what to drop when the queue is full
+   */
+  public PreviewDataWorker(PreviewDataProcessor processor, int queueCapacity, DropPolicy dropPolicy) {
+    if (processor == null || dropPolicy == null) {
+      throw new IllegalArgumentException("Processor and drop policy must not be null");
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1");
+    }
+    this.processor = processor;
+    this.queueCapacity = queueCapacity;
+    this.dropPolicy = dropPolicy;
+    threadName = "TiqrData-" + processor.getClass().getSimpleName();
+    queue = new ArrayDeque<Item>(queueCapacity);
+    free = new ArrayDeque<Item>(queueCapacity + 1);
+  }
+
+  public PreviewDataProcessor getProcessor() {
+    return processor;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public DropPolicy getDropPolicy() {
+    return dropPolicy;
+  }
+
+  /**
+   * Starts the worker thread if it isn't running yet
+   */
+  public void start() {
+    synchronized (lock) {
+      if (worker != null) {
+        return;
+      }
+      Log.d(LTAG, "Starting worker thread " + threadName);
+      worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          processFrames();
+        }
+      }, threadName);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Stops the worker thread and discards queued frames
+   * A frame which is currently being processed will still be finished
+   */
+  public void stop() {
+    synchronized (lock) {
+      if (worker == null) {
+        return;
+      }
+      Log.d(LTAG, "Stopping worker thread " + threadName);
+      worker = null;
+      free.addAll(queue);
+      queue.clear();
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return number of frames the processor has finished
+   */
+  public long getProcessedFrameCount() {
+    return processedFrames.get();
+  }
+
+  /**
+   * @return number of frames which were dropped because the queue was full
+   */
+  public long getDroppedFrameCount() {
+    return droppedFrames.get();
+  }
+
+  /**
+   * @return number of frames waiting for the processor
+   */
+  public int getQueuedFrameCount() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * @return time from the camera delivering a frame to the processor finishing it, for all frames processed
+   */
+  public LatencyHistogram getLag() {
+    return lag;
+  }
+
+  /**
+   * @return lag of the most recently processed frame in nanoseconds
+   */
+  public long getLastLagNanos() {
+    return lastLagNanos;
+  }
+
+  /**
+   * Copies the frame and queues it for the processor, never blocks
+   * Must only be called from the thread delivering frames
+   *
+   * @param frame the frame, not retained
+   */
+  public void submit(PreviewFrame frame) {
+    Item item;
+    synchronized (lock) {
+      if (worker == null) {
+        return;
+      }
+      if (queue.size() >= queueCapacity) {
+        droppedFrames.incrementAndGet();
+        if (dropPolicy == DropPolicy.DROP_NEWEST) {
+          return;
+        }
+        item = queue.pollFirst();
+      } else {
+        item = free.pollFirst();
+      }
+    }
+    if (item == null) {
+      item = new Item();
+    }
+    copy(frame, item);
+    synchronized (lock) {
+      if (worker == null) {
+        free.addLast(item);
+        return;
+      }
+      queue.addLast(item);
+      lock.notifyAll();
+    }
+  }
+
+  private static void copy(PreviewFrame frame, Item item) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    item.width = width;
+    item.height = height;
+    item.format = frame.getFormat();
+    item.timestamp = frame.getTimestamp();
+    final byte[] data = frame.getData();
+    if (data != null) {
+      if (item.data == null || item.data.length != data.length) {
+        item.data = new byte[data.length];
+      }
+      System.arraycopy(data, 0, item.data, 0, data.length);
+      return;
+    }
+    if (item.data == null || item.data.length != width * height) {
+      item.data = new byte[width * height];
+    }
+    final ByteBuffer plane = frame.getBuffer();
+    final int rowStride = frame.getRowStride();
+    final int pixelStride = frame.getPixelStride();
+    for (int y = 0; y < height; y++) {
+      final int offset = y * width;
+      if (pixelStride == 1) {
+        final ByteBuffer row = plane.duplicate();
+        row.position(y * rowStride);
+        row.get(item.data, offset, width);
+      } else {
+        for (int x = 0; x < width; x++) {
+          item.data[offset + x] = plane.get(y * rowStride + x * pixelStride);
+        }
+      }
+    }
+  }
+
+  /**
+   * Worker loop: waits for queued frames and runs the processor on them
+   */
+  private void processFrames() {
+    final Thread self = Thread.currentThread();
+    while (true) {
+      Item item;
+      synchronized (lock) {
+        while (queue.isEmpty() && worker == self) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (worker != self) {
+          return;
+        }
+        item = queue.pollFirst();
+      }
+      try {
+        processor.processBitmap(item.width, item.height, item.format, item.data);
+        processedFrames.incrementAndGet();
+        final long nanos = System.nanoTime() - item.timestamp;
+        lag.record(nanos);
+        lastLagNanos = nanos;
+      } catch (RuntimeException e) {
+        Log.e(LTAG, "Processor failed on worker thread " + threadName, e);
+      } finally {
+        synchronized (lock) {
+          free.addLast(item);
+        }
+      }
+    }
+  }
+}
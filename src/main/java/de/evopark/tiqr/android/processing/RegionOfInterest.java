@@ -0,0 +1,117 @@
+package de.evopark.tiqr.android.processing;
+
+/**
+ * The part of a preview frame which should be searched for codes
+ * The region is specified as seen on the display, i.e. after rotating the frame upright,
+ * either as fractions of the frame size or in pixels. It is mapped back to
+ * sensor coordinates for every frame geometry.
+ */
+public final class RegionOfInterest {
+
+  public final static RegionOfInterest FULL_FRAME = fromFractions(0f, 0f, 1f, 1f);
+
+  private final boolean fractional;
+  private final float left;
+  private final float top;
+  private final float width;
+  private final float height;
+
+  private RegionOfInterest(boolean fractional, float left, float top, float width, float height) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Region of interest must not be empty");
+    }
+    this.fractional = fractional;
+    this.left = left;
+    this.top = top;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Creates a region relative to the size of the upright frame
+   *
+   * @param left   left edge, 0 to 1
+   * @param top    top edge, 0 to 1
+   * @param width  width, 0 to 1
+   * @param height height, 0 to 1
+   * @return the region
+   */
+  public static RegionOfInterest fromFractions(float left, float top, float width, float height) {
+    return new RegionOfInterest(true, left, top, width, height);
+  }
+
+  /**
+   * Creates a region in pixels of the upright frame
+   *
+   * @param left   left edge in pixels
+   * @param top    top edge in pixels
+   * @param width  width in pixels
+   * @param height height in pixels
+   * @return the region
+   */
+  public static RegionOfInterest fromPixels(int left, int top, int width, int height) {
+    return new RegionOfInterest(false, left, top, width, height);
+  }
+
+  public boolean isFractional() {
+    return fractional;
+  }
+
+  public float getLeft() {
+    return left;
+  }
+
+  public float getTop() {
+    return top;
+  }
+
+  public float getWidth() {
+    return width;
+  }
+
+  public float getHeight() {
+    return height;
+  }
+
+  /**
+   * Maps the region to the coordinate system of the sensor as delivered in preview frames
+   * The result is clamped to the frame and never empty
+   *
+   * @param frameWidth  width of the frame in pixels
+   * @param frameHeight height of the frame in pixels
+   * @param rotation    clockwise rotation in degrees needed to show the frame upright
+   * @return {left, top, width, height} in frame pixels
+   */
+  public int[] toFrameWindow(int frameWidth, int frameHeight, int rotation) {
+    final boolean swapped = rotation == 90 || rotation == 270;
+    final int uprightWidth = swapped ? frameHeight : frameWidth;
+    final int uprightHeight = swapped ? frameWidth : frameHeight;
+
+    // resolve the region in upright pixels
+    final int x0 = clamp(Math.round(fractional ? left * uprightWidth : left), 0, uprightWidth - 1);
+    final int y0 = clamp(Math.round(fractional ? top * uprightHeight : top), 0, uprightHeight - 1);
+    final int x1 = clamp(Math.round(fractional ? (left + width) * uprightWidth : left + width), x0 + 1, uprightWidth);
+    final int y1 = clamp(Math.round(fractional ? (top + height) * uprightHeight : top + height), y0 + 1, uprightHeight);
+
+    switch (rotation) {
+      case 90:
+        return new int[]{y0, frameHeight - x1, y1 - y0, x1 - x0};
+      case 180:
+        return new int[]{frameWidth - x1, frameHeight - y1, x1 - x0, y1 - y0};
+      case 270:
+        return new int[]{frameWidth - y1, x0, y1 - y0, x1 - x0};
+      default:
+        return new int[]{x0, y0, x1 - x0, y1 - y0};
+    }
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s %.2f,%.2f %.2fx%.2f]", getClass().getSimpleName(),
+        fractional ? "fraction" : "px", left, top, width, height);
+  }
+}
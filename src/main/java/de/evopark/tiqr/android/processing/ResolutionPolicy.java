@@ -0,0 +1,244 @@
+package de.evopark.tiqr.android.processing;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the resolution of the frames that are analyzed, independently of the size of the preview on screen
+ * <p>
+ * The aim is the smallest frame in which codes still get the targeted number of pixels per module.
+ * The module size is measured on every decoded code, relative to the frame width, and smoothed, so the
+ * policy follows the typical distance of codes to the camera. Decode time per frame pixel is measured as
+ * well and caps the resolution at what can be decoded within the time budget. As long as no code is found,
+ * the resolution is raised one step after a while, in case codes are too small to be decoded at all.
+ * Changes are rate limited since they usually restart the camera preview.
+ * <p>
+ * Sizes are {width, height} pairs in pixels of the unrotated frame. Observations may come from the decoding
+ * thread while the size is chosen on the camera thread.
+ */
+public class ResolutionPolicy {
+
+  public final static float DEFAULT_TARGET_PIXELS_PER_MODULE = 3f;
+  public final static long DEFAULT_DECODE_BUDGET_NANOS = 50000000L;
+  // without measurements codes are assumed to be version 4 (33 modules) and cover a quarter of the frame width
+  private final static float DEFAULT_MODULE_FRACTION = 0.25f / 33;
+  private final static long MIN_CHANGE_INTERVAL_NANOS = 2000000000L;
+  private final static long PROBE_INTERVAL_NANOS = 5000000000L;
+  private final static float SMOOTHING = 0.2f;
+
+  private volatile float targetPixelsPerModule = DEFAULT_TARGET_PIXELS_PER_MODULE;
+  private volatile long decodeBudgetNanos = DEFAULT_DECODE_BUDGET_NANOS;
+
+  private int[][] sizes = new int[0][];
+  private int current = -1;
+  // smoothed module size divided by frame width, 0 until a code has been measured
+  private float moduleFraction = 0;
+  // smoothed decode time per frame pixel, 0 until a frame has been decoded
+  private float decodeNanosPerPixel = 0;
+  private long lastChange = 0;
+  private long lastCode = 0;
+
+  /**
+   * Orders sizes by their pixel count
+   */
+  private final static Comparator<int[]> BY_AREA = new Comparator<int[]>() {
+    @Override
+    public int compare(int[] a, int[] b) {
+      final long areaA = (long) a[0] * a[1];
+      final long areaB = (long) b[0] * b[1];
+      return areaA < areaB ? -1 : areaA == areaB ? 0 : 1;
+    }
+  };
+
+  /**
+   * @param pixelsPerModule how many frame pixels a module of a code should cover, at least 1
+   */
+  public void setTargetPixelsPerModule(float pixelsPerModule) {
+    if (pixelsPerModule < 1) {
+      throw new IllegalArgumentException("Target must be at least one pixel per module");
+    }
+    targetPixelsPerModule = pixelsPerModule;
+  }
+
+  public float getTargetPixelsPerModule() {
+    return targetPixelsPerModule;
+  }
+
+  /**
+   * @param nanos time a frame may take to decode, 0 for no limit
+   */
+  public void setDecodeBudgetNanos(long nanos) {
+    if (nanos < 0) {
+      throw new IllegalArgumentException("Decode budget must not be negative");
+    }
+    decodeBudgetNanos = nanos;
+  }
+
+  public long getDecodeBudgetNanos() {
+    return decodeBudgetNanos;
+  }
+
+  /**
+   * Sets the sizes to choose from, e.g. when the camera was opened or the preview's aspect ratio changed
+   *
+   * @param supported     {width, height} pairs
+   * @param currentWidth  width of the frames currently delivered
+   * @param currentHeight height of the frames currently delivered
+   */
+  public synchronized void setSupportedSizes(int[][] supported, int currentWidth, int currentHeight) {
+    sizes = supported.clone();
+    Arrays.sort(sizes, BY_AREA);
+    current = -1;
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i][0] == currentWidth && sizes[i][1] == currentHeight) {
+        current = i;
+      }
+    }
+  }
+
+  /**
+   * Keeps the sizes whose aspect ratio is closest to that of the given area, e.g. the preview surface
+   *
+   * @param sizes  {width, height} pairs
+   * @param width  width of the area
+   * @param height height of the area
+   * @return the sizes with the best matching aspect ratio
+   */
+  public static int[][] filterByAspectRatio(int[][] sizes, int width, int height) {
+    final float target = (float) width / height;
+    float bestDifference = Float.MAX_VALUE;
+    final List<int[]> best = new ArrayList<int[]>();
+    for (int[] size : sizes) {
+      final float difference = Math.abs((float) size[0] / size[1] - target);
+      if (difference < bestDifference - 0.01f) {
+        bestDifference = difference;
+        best.clear();
+      }
+      if (difference < bestDifference + 0.01f) {
+        best.add(size);
+      }
+    }
+    return best.toArray(new int[best.size()][]);
+  }
+
+  /**
+   * Measures the module size of a decoded code
+   *
+   * @param result     zxing result from a luminance source of {scale} frame pixels per pixel
+   * @param scale      how many frame pixels one pixel of the decoded source covers
+   * @param frameWidth width of the frame in pixels
+   */
+  public void codeDecoded(Result result, int scale, int frameWidth) {
+    final float moduleSize = estimateModuleSize(result) * scale;
+    synchronized (this) {
+      lastCode = System.nanoTime();
+      if (moduleSize > 0) {
+        moduleFraction = smooth(moduleFraction, moduleSize / frameWidth);
+      }
+    }
+  }
+
+  /**
+   * Measures how long decoding took, only frames that were actually run through zxing count
+   *
+   * @param nanos       time spent on the frame
+   * @param frameWidth  width of the frame in pixels
+   * @param frameHeight height of the frame in pixels
+   */
+  public synchronized void frameDecoded(long nanos, int frameWidth, int frameHeight) {
+    decodeNanosPerPixel = smooth(decodeNanosPerPixel, (float) nanos / ((long) frameWidth * frameHeight));
+  }
+
+  private static float smooth(float average, float value) {
+    return average == 0 ? value : average + SMOOTHING * (value - average);
+  }
+
+  /**
+   * Decides on the resolution for the upcoming frames
+   *
+   * @param now System.nanoTime()
+   * @return {width, height} to use, null if no sizes are known
+   */
+  public synchronized int[] chooseSize(long now) {
+    if (sizes.length == 0) {
+      return null;
+    }
+    final float fraction = moduleFraction > 0 ? moduleFraction : DEFAULT_MODULE_FRACTION;
+    final float requiredWidth = targetPixelsPerModule / fraction;
+    int wanted = sizes.length - 1;
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i][0] >= requiredWidth) {
+        wanted = i;
+        break;
+      }
+    }
+    if (current >= 0 && wanted <= current && current < sizes.length - 1 &&
+        now - Math.max(lastCode, lastChange) > PROBE_INTERVAL_NANOS) {
+      // nothing decoded for a while, maybe the codes are smaller than measured so far
+      wanted = current + 1;
+      moduleFraction = targetPixelsPerModule / sizes[wanted][0];
+    }
+    final long budget = decodeBudgetNanos;
+    if (budget > 0 && decodeNanosPerPixel > 0) {
+      while (wanted > 0 && decodeNanosPerPixel * sizes[wanted][0] * sizes[wanted][1] > budget) {
+        wanted--;
+      }
+    }
+    if (current < 0 || (wanted != current && now - lastChange >= MIN_CHANGE_INTERVAL_NANOS)) {
+      current = wanted;
+      lastChange = now;
+    }
+    return sizes[current];
+  }
+
+  /**
+   * Forgets measured module sizes and decode times, e.g. when scanning is restarted
+   */
+  public synchronized void reset() {
+    moduleFraction = 0;
+    decodeNanosPerPixel = 0;
+    lastCode = 0;
+    lastChange = 0;
+  }
+
+  /**
+   * Estimates the size of a module from the distances between the finder patterns of a QR code
+   * The version is recovered from the number of data codewords and the error correction level
+   *
+   * @param result zxing result of a QR code
+   * @return module size in pixels of the decoded source, 0 if unknown
+   */
+  static float estimateModuleSize(Result result) {
+    final ResultPoint[] points = result.getResultPoints();
+    final byte[] rawBytes = result.getRawBytes();
+    final Object level = result.getResultMetadata() == null ? null :
+        result.getResultMetadata().get(ResultMetadataType.ERROR_CORRECTION_LEVEL);
+    if (points == null || points.length < 3 || rawBytes == null || level == null) {
+      return 0;
+    }
+    final ErrorCorrectionLevel ecLevel;
+    try {
+      ecLevel = ErrorCorrectionLevel.valueOf(level.toString());
+    } catch (IllegalArgumentException e) {
+      return 0;
+    }
+    for (int number = 1; number <= 40; number++) {
+      final Version version = Version.getVersionForNumber(number);
+      final int dataCodewords = version.getTotalCodewords() - version.getECBlocksForLevel(ecLevel).getTotalECCodewords();
+      if (dataCodewords == rawBytes.length) {
+        // points are bottom left, top left and top right finder pattern centres, 7 modules less apart than the size
+        final float distance = (ResultPoint.distance(points[0], points[1]) + ResultPoint.distance(points[1], points[2])) / 2;
+        return distance / (version.getDimensionForVersion() - 7);
+      }
+    }
+    return 0;
+  }
+}
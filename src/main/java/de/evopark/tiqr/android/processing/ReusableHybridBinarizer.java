@@ -0,0 +1,173 @@
+package de.evopark.tiqr.android.processing;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+
+/**
+ * Same algorithm as zxing's HybridBinarizer, but the BitMatrix and the block threshold table
+ * are kept between frames instead of being allocated for every frame
+ * <p>
+ * An instance is bound to a luminance source, which in turn is bound to a frame size, so the
+ * buffers only need to be reallocated when the preview size or region of interest changes.
+ * Each call to {@link #getBlackMatrix()} binarizes the source's current frame into the same matrix,
+ * so a result must not be used after the source has moved on to the next frame.
+ * <p>
+ * The thresholding code is taken from zxing (Apache License 2.0)
+ */
+public class ReusableHybridBinarizer extends Binarizer {
+
+  private final static int BLOCK_SIZE_POWER = 3;
+  private final static int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+  private final static int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+  private final static int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+  private final static int MIN_DYNAMIC_RANGE = 24;
+
+  private final int subWidth;
+  private final int subHeight;
+  private BitMatrix matrix = null;
+  private int[] blackPoints = null;
+  private GlobalHistogramBinarizer fallback = null;
+
+  public ReusableHybridBinarizer(LuminanceSource source) {
+    super(source);
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    subWidth = (width >> BLOCK_SIZE_POWER) + ((width & BLOCK_SIZE_MASK) != 0 ? 1 : 0);
+    subHeight = (height >> BLOCK_SIZE_POWER) + ((height & BLOCK_SIZE_MASK) != 0 ? 1 : 0);
+  }
+
+  /**
+   * Single rows are only used by 1D readers; they are served by a global histogram like zxing does
+   */
+  @Override
+  public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+    return getFallback().getBlackRow(y, row);
+  }
+
+  @Override
+  public BitMatrix getBlackMatrix() throws NotFoundException {
+    final LuminanceSource source = getLuminanceSource();
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    if (width < MINIMUM_DIMENSION || height < MINIMUM_DIMENSION) {
+      // too small for local thresholds, happens only for tiny regions of interest
+      return getFallback().getBlackMatrix();
+    }
+    if (matrix == null) {
+      matrix = new BitMatrix(width, height);
+      blackPoints = new int[subWidth * subHeight];
+    } else {
+      matrix.clear();
+    }
+    final byte[] luminances = source.getMatrix();
+    calculateBlackPoints(luminances, width, height);
+    calculateThresholdForBlock(luminances, width, height);
+    return matrix;
+  }
+
+  @Override
+  public Binarizer createBinarizer(LuminanceSource source) {
+    return new ReusableHybridBinarizer(source);
+  }
+
+  private GlobalHistogramBinarizer getFallback() {
+    if (fallback == null) {
+      fallback = new GlobalHistogramBinarizer(getLuminanceSource());
+    }
+    return fallback;
+  }
+
+  /**
+   * Calculates a single black point for each block of pixels and saves it away
+   * See the zxing HybridBinarizer for details on the heuristics
+   */
+  private void calculateBlackPoints(byte[] luminances, int width, int height) {
+    final int maxYOffset = height - BLOCK_SIZE;
+    final int maxXOffset = width - BLOCK_SIZE;
+    for (int y = 0; y < subHeight; y++) {
+      final int yoffset = Math.min(y << BLOCK_SIZE_POWER, maxYOffset);
+      for (int x = 0; x < subWidth; x++) {
+        final int xoffset = Math.min(x << BLOCK_SIZE_POWER, maxXOffset);
+        int sum = 0;
+        int min = 0xFF;
+        int max = 0;
+        for (int yy = 0, offset = yoffset * width + xoffset; yy < BLOCK_SIZE; yy++, offset += width) {
+          for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+            final int pixel = luminances[offset + xx] & 0xFF;
+            sum += pixel;
+            if (pixel < min) {
+              min = pixel;
+            }
+            if (pixel > max) {
+              max = pixel;
+            }
+          }
+          // short-circuit min/max tests once dynamic range is met
+          if (max - min > MIN_DYNAMIC_RANGE) {
+            for (yy++, offset += width; yy < BLOCK_SIZE; yy++, offset += width) {
+              for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                sum += luminances[offset + xx] & 0xFF;
+              }
+            }
+          }
+        }
+        int average = sum >> (BLOCK_SIZE_POWER * 2);
+        if (max - min <= MIN_DYNAMIC_RANGE) {
+          // a flat block is assumed to be white unless its neighbours indicate otherwise
+          average = min / 2;
+          if (y > 0 && x > 0) {
+            final int above = (y - 1) * subWidth + x;
+            final int averageNeighborBlackPoint =
+                (blackPoints[above] + (2 * blackPoints[y * subWidth + x - 1]) + blackPoints[above - 1]) / 4;
+            if (min < averageNeighborBlackPoint) {
+              average = averageNeighborBlackPoint;
+            }
+          }
+        }
+        blackPoints[y * subWidth + x] = average;
+      }
+    }
+  }
+
+  /**
+   * Applies the average black point of the surrounding 5x5 blocks to each block
+   */
+  private void calculateThresholdForBlock(byte[] luminances, int width, int height) {
+    final int maxYOffset = height - BLOCK_SIZE;
+    final int maxXOffset = width - BLOCK_SIZE;
+    for (int y = 0; y < subHeight; y++) {
+      final int yoffset = Math.min(y << BLOCK_SIZE_POWER, maxYOffset);
+      final int top = cap(y, 2, subHeight - 3);
+      for (int x = 0; x < subWidth; x++) {
+        final int xoffset = Math.min(x << BLOCK_SIZE_POWER, maxXOffset);
+        final int left = cap(x, 2, subWidth - 3);
+        int sum = 0;
+        for (int z = -2; z <= 2; z++) {
+          final int rowOffset = (top + z) * subWidth + left;
+          sum += blackPoints[rowOffset - 2] + blackPoints[rowOffset - 1] + blackPoints[rowOffset] +
+              blackPoints[rowOffset + 1] + blackPoints[rowOffset + 2];
+        }
+        thresholdBlock(luminances, xoffset, yoffset, sum / 25, width);
+      }
+    }
+  }
+
+  private void thresholdBlock(byte[] luminances, int xoffset, int yoffset, int threshold, int stride) {
+    for (int y = 0, offset = yoffset * stride + xoffset; y < BLOCK_SIZE; y++, offset += stride) {
+      for (int x = 0; x < BLOCK_SIZE; x++) {
+        // <= so that black == 0 pixels are black even if the threshold is 0
+        if ((luminances[offset + x] & 0xFF) <= threshold) {
+          matrix.set(xoffset + x, yoffset + y);
+        }
+      }
+    }
+  }
+
+  private static int cap(int value, int min, int max) {
+    return value < min ? min : value > max ? max : value;
+  }
+}
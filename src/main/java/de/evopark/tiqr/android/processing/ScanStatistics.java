@@ -0,0 +1,135 @@
+package de.evopark.tiqr.android.processing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for every stage from opening the camera to invoking the JS callback
+ * One instance is shared by the camera, the decoder and the module. Everything is lock-free and
+ * timestamps come from System.nanoTime(), so recording is cheap enough for the hot path.
+ */
+public class ScanStatistics {
+
+  /**
+   * Events that are counted
+   */
+  public enum Counter {
+    /** preview frames delivered by the camera */
+    FRAMES_RECEIVED,
+    /** frames replaced in the decoder's mailbox before they were decoded */
+    FRAMES_DROPPED,
+    /** frames not processed because nothing changed in front of the camera */
+    FRAMES_IDLE,
+    /** frames not decoded because they hardly differ from the last one that was */
+    FRAMES_UNCHANGED,
+    /** frames rejected by the quality filter */
+    FRAMES_SKIPPED,
+    /** frames rejected because no finder patterns were found in them */
+    FRAMES_WITHOUT_FINDER,
+    /** frames run through zxing */
+    FRAMES_DECODED,
+    /** frames in which at least one code was found */
+    FRAMES_WITH_CODE,
+    /** decode attempts that found no code */
+    FAILED_NOT_FOUND,
+    /** decode attempts that found a code which could not be read */
+    FAILED_FORMAT,
+    /** decode attempts that failed error correction */
+    FAILED_CHECKSUM,
+    /** decode attempts that failed with an unexpected exception */
+    FAILED_OTHER,
+    /** invocations of the JS callbacks */
+    CALLBACKS,
+    /** codes handed to the JS callbacks */
+    CODES_DELIVERED
+  }
+
+  /**
+   * Stages whose duration is measured
+   */
+  public enum Stage {
+    /** from opening the camera to the first preview frame */
+    CAMERA_START,
+    /** from the camera delivering a frame to the decoder picking it up */
+    FRAME_DELIVERY,
+    /** looking for finder patterns before binarizing */
+    PRE_DETECT,
+    /** computing the black and white matrix */
+    BINARIZE,
+    /** locating and decoding codes in the binarized frame */
+    DETECT_AND_DECODE,
+    /** all processing of a frame by the scanner */
+    FRAME_TOTAL,
+    /** from finding a code to handing it to the JS side, including batching */
+    DELIVERY,
+    /** passing a batch to the JS callbacks */
+    CALLBACK
+  }
+
+  private final static Counter[] COUNTERS = Counter.values();
+  private final static Stage[] STAGES = Stage.values();
+
+  private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+  private volatile long resetTime = System.nanoTime();
+
+  public ScanStatistics() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  public void increment(Counter counter) {
+    counters.incrementAndGet(counter.ordinal());
+  }
+
+  public void add(Counter counter, long delta) {
+    counters.addAndGet(counter.ordinal(), delta);
+  }
+
+  public long get(Counter counter) {
+    return counters.get(counter.ordinal());
+  }
+
+  /**
+   * @param stage stage that finished
+   * @param nanos its duration in nanoseconds
+   */
+  public void record(Stage stage, long nanos) {
+    histograms[stage.ordinal()].record(nanos);
+  }
+
+  /**
+   * Records the time since {startNanos} for a stage
+   *
+   * @param stage      stage that finished
+   * @param startNanos System.nanoTime() when the stage started
+   */
+  public void recordSince(Stage stage, long startNanos) {
+    histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+  }
+
+  public LatencyHistogram getHistogram(Stage stage) {
+    return histograms[stage.ordinal()];
+  }
+
+  /**
+   * @return System.nanoTime() of the last reset or of the creation
+   */
+  public long getResetTime() {
+    return resetTime;
+  }
+
+  /**
+   * Sets all counters and histograms back to zero
+   * Not atomic with respect to concurrent recording, a few events around the reset may end up on either side
+   */
+  public void reset() {
+    for (int i = 0; i < COUNTERS.length; i++) {
+      counters.set(i, 0);
+    }
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+    resetTime = System.nanoTime();
+  }
+}
@@ -0,0 +1,71 @@
+package de.evopark.tiqr.android.processing;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+/**
+ * A decoded code together with its position in the preview frame
+ * Points are the ones reported by zxing (for QR codes: the finder pattern centres and possibly an
+ * alignment pattern) in pixels of the unrotated preview frame
+ */
+public final class ScannedCode {
+
+  private final String text;
+  private final float[] points;
+
+  /**
+   * @param text   contents of the code
+   * @param points x and y coordinates of the corner points, alternating
+   */
+  public ScannedCode(String text, float[] points) {
+    if (text == null) {
+      throw new IllegalArgumentException("Text must not be null");
+    }
+    this.text = text;
+    this.points = points == null ? new float[0] : points.clone();
+  }
+
+  /**
+   * Converts a zxing result from a cropped and possibly downscaled luminance source to frame coordinates
+   *
+   * @param result  zxing result
+   * @param offsetX left edge of the decoded region in frame pixels
+   * @param offsetY top edge of the decoded region in frame pixels
+   * @param scale   how many frame pixels one pixel of the decoded region covers
+   * @return the code
+   */
+  public static ScannedCode fromResult(Result result, int offsetX, int offsetY, int scale) {
+    final ResultPoint[] resultPoints = result.getResultPoints();
+    final int count = resultPoints == null ? 0 : resultPoints.length;
+    final float[] points = new float[count * 2];
+    for (int i = 0; i < count; i++) {
+      points[i * 2] = offsetX + resultPoints[i].getX() * scale;
+      points[i * 2 + 1] = offsetY + resultPoints[i].getY() * scale;
+    }
+    return new ScannedCode(result.getText(), points);
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * @return number of points
+   */
+  public int getPointCount() {
+    return points.length / 2;
+  }
+
+  public float getPointX(int index) {
+    return points[index * 2];
+  }
+
+  public float getPointY(int index) {
+    return points[index * 2 + 1];
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s[%s, %d points]", getClass().getSimpleName(), text, getPointCount());
+  }
+}
@@ -0,0 +1,181 @@
+package de.evopark.tiqr.android.processing;
+
+import android.util.Log;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.QrCodeResultHandler;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes a few generated codes on a background thread so the first real scan doesn't pay for loading the
+ * zxing classes, building its tables and running the decode path in the interpreter
+ * <p>
+ * The codes differ in length and error correction level, so several versions and all Reed-Solomon fields in
+ * use are exercised, and are drawn into frames of the expected preview size and format. They are decoded by a
+ * ZxingQrScanner of its own, so nothing is delivered to the app and no statistics or policies are affected;
+ * class loading and compiled code are shared with the real scanner.
+ */
+public class ScannerWarmUp {
+
+  private final static String LTAG = ScannerWarmUp.class.getSimpleName();
+
+  public final static int DEFAULT_CODE_COUNT = 6;
+
+  private final static String[] TEXTS = {
+      "1", "https://www.evopark.de", "EVOPARK-0123456789-ABCDEFGHIJKLMNOPQRSTUVWXYZ",
+      "The quick brown fox jumps over the lazy dog, again and again and again and again and again"
+  };
+  private final static ErrorCorrectionLevel[] LEVELS = ErrorCorrectionLevel.values();
+  // roughly what a code held in front of the camera looks like
+  private final static int DARK = 40;
+  private final static int LIGHT = 200;
+
+  /**
+   * Notified on the warm-up thread once it is done
+   */
+  public interface Listener {
+    /**
+     * @param durationNanos time from starting the warm-up until all codes were decoded
+     * @param decodedCodes  number of codes which were decoded
+     * @param codes         number of codes which were generated
+     */
+    void warmUpFinished(long durationNanos, int decodedCodes, int codes);
+  }
+
+  private final int width;
+  private final int height;
+  private final int format;
+  private final int codeCount;
+  private volatile long durationNanos = -1;
+
+  /**
+   * @param width     expected frame width in pixels
+   * @param height    expected frame height in pixels
+   * @param format    expected frame format, must be supported by YuvLuminanceSource
+   * @param codeCount number of codes to generate and decode, at least 1
+   */
+  public ScannerWarmUp(int width, int height, int format, int codeCount) {
+    if (width < 64 || height < 64 || codeCount < 1 || !YuvLuminanceSource.isSupported(format)) {
+      throw new IllegalArgumentException("Invalid warm-up configuration");
+    }
+    this.width = width;
+    this.height = height;
+    this.format = format;
+    this.codeCount = codeCount;
+  }
+
+  /**
+   * @return how long the warm-up took in nanoseconds, -1 until it is done
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * Runs the warm-up on a low priority background thread and returns right away
+   *
+   * @param listener notified once the warm-up is done, may be null
+   */
+  public void start(final Listener listener) {
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final int[] decoded = new int[1];
+        final long duration = warmUp(decoded);
+        if (listener != null) {
+          listener.warmUpFinished(duration, decoded[0], codeCount);
+        }
+      }
+    }, "TiqrWarmUp");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Generates and decodes the codes on the calling thread
+   *
+   * @param decoded receives the number of decoded codes in its first element
+   * @return duration in nanoseconds
+   */
+  long warmUp(final int[] decoded) {
+    final long start = System.nanoTime();
+    final ZxingQrScanner scanner = new ZxingQrScanner(new QrCodeResultHandler() {
+      @Override
+      public void codeFound(String code) {
+        decoded[0]++;
+      }
+
+      @Override
+      public void codesFound(List<ScannedCode> codes) {
+        decoded[0] += codes.size();
+      }
+    });
+    // the frames change completely from one to the next, which neither of them is made for
+    scanner.getSceneChangeDetector().setThreshold(0);
+    scanner.setQualityFilterEnabled(false);
+    final int rowStride = PreviewFrame.defaultRowStride(width, format);
+    final int pixelStride = YuvLuminanceSource.pixelStride(format);
+    // only luminance is read, so the chroma planes are left out
+    final byte[] frame = new byte[rowStride * height];
+    final QRCodeWriter writer = new QRCodeWriter();
+    final Map<EncodeHintType, Object> hints = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
+    hints.put(EncodeHintType.MARGIN, 0);
+    try {
+      for (int i = 0; i < codeCount; i++) {
+        hints.put(EncodeHintType.ERROR_CORRECTION, LEVELS[i % LEVELS.length]);
+        final BitMatrix code;
+        try {
+          code = writer.encode(TEXTS[i % TEXTS.length], BarcodeFormat.QR_CODE, 0, 0, hints);
+        } catch (WriterException e) {
+          Log.w(LTAG, "Could not generate warm-up code", e);
+          continue;
+        }
+        draw(code, frame, rowStride, pixelStride, i);
+        scanner.processBitmap(width, height, format, frame);
+      }
+    } finally {
+      scanner.shutdown();
+    }
+    final long duration = System.nanoTime() - start;
+    durationNanos = duration;
+    Log.d(LTAG, String.format("Warm-up decoded %d of %d codes at %dx%dpx in %.1fms", decoded[0], codeCount, width,
+        height, duration / 1e6));
+    return duration;
+  }
+
+  /**
+   * Draws the code over half of the frame's shorter side, moving it around a little from code to code
+   */
+  private void draw(BitMatrix code, byte[] frame, int rowStride, int pixelStride, int index) {
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        frame[y * rowStride + x * pixelStride] = (byte) LIGHT;
+      }
+    }
+    final int moduleSize = Math.max(2, Math.min(width, height) / 2 / code.getWidth());
+    final int size = moduleSize * code.getWidth();
+    final int left = Math.max(0, (width - size) / 2 + (index % 3 - 1) * size / 4);
+    final int top = Math.max(0, (height - size) / 2 + (index % 2) * size / 8);
+    for (int moduleY = 0; moduleY < code.getHeight(); moduleY++) {
+      for (int moduleX = 0; moduleX < code.getWidth(); moduleX++) {
+        if (!code.get(moduleX, moduleY)) {
+          continue;
+        }
+        for (int y = top + moduleY * moduleSize; y < Math.min(height, top + (moduleY + 1) * moduleSize); y++) {
+          for (int x = left + moduleX * moduleSize; x < Math.min(width, left + (moduleX + 1) * moduleSize); x++) {
+            frame[y * rowStride + x * pixelStride] = (byte) DARK;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package de.evopark.tiqr.android.processing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells whether a frame differs enough from the last one that was processed to be worth decoding again
+ * <p>
+ * The signature of a frame is a LuminanceGrid of cell averages, each taken from a few luminance samples, so it
+ * costs a few thousand memory reads and sensor noise mostly averages out. The difference between two frames is
+ * the mean absolute difference of their cells. A frame passes as changed if the difference reaches the threshold,
+ * or if a single cell changed a lot, which is what a small code appearing in a corner looks like. Since
+ * refocusing hardly changes the cell averages, a frame is passed on anyway after a number of unchanged ones.
+ * Frames that pass become the reference for the following ones.
+ */
+public class SceneChangeDetector {
+
+  public final static int DEFAULT_THRESHOLD = 3;
+  public final static int DEFAULT_MAX_UNCHANGED_FRAMES = 10;
+
+  private final static int GRID_COLUMNS = 16;
+  private final static int GRID_ROWS = 12;
+  // luminance samples per cell in either direction
+  private final static int CELL_SAMPLES = 4;
+  // a single cell changed by that much makes the frame count as changed whatever the mean says
+  private final static int MAX_CELL_DIFFERENCE = 32;
+
+  private volatile int threshold = DEFAULT_THRESHOLD;
+  private volatile int maxUnchangedFrames = DEFAULT_MAX_UNCHANGED_FRAMES;
+
+  private final LuminanceGrid reference = new LuminanceGrid(GRID_COLUMNS, GRID_ROWS, CELL_SAMPLES);
+  private final LuminanceGrid current = new LuminanceGrid(GRID_COLUMNS, GRID_ROWS, CELL_SAMPLES);
+  private int referenceWidth = 0;
+  private int referenceHeight = 0;
+  private int unchangedFrames = 0;
+  private volatile int lastDifference = 0;
+
+  private final AtomicLong unchangedFrameCount = new AtomicLong();
+
+  /**
+   * @param threshold frames whose mean cell difference from the reference is below that are unchanged,
+   *                  0 to treat every frame as changed
+   */
+  public void setThreshold(int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Threshold must not be negative");
+    }
+    this.threshold = threshold;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * @param frames number of unchanged frames in a row after which a frame is passed on anyway, at least 1
+   */
+  public void setMaxUnchangedFrames(int frames) {
+    if (frames < 1) {
+      throw new IllegalArgumentException("At least one frame must be allowed");
+    }
+    maxUnchangedFrames = frames;
+  }
+
+  public int getMaxUnchangedFrames() {
+    return maxUnchangedFrames;
+  }
+
+  /**
+   * @return mean cell difference of the most recent frame from its reference, 0 to 255
+   */
+  public int getLastDifference() {
+    return lastDifference;
+  }
+
+  /**
+   * @return number of frames found unchanged since the detector was created
+   */
+  public long getUnchangedFrameCount() {
+    return unchangedFrameCount.get();
+  }
+
+  /**
+   * Forgets the reference, so the next frame counts as changed
+   * Must be called from the decoding thread
+   */
+  public void reset() {
+    referenceWidth = 0;
+    referenceHeight = 0;
+    unchangedFrames = 0;
+  }
+
+  /**
+   * Compares the frame to the reference and makes it the new reference if it changed
+   * Must only be called from the decoding thread
+   *
+   * @param source luminance of the region of interest
+   * @return true if the frame should be processed, false if the outcome of the reference can be reused
+   */
+  public boolean hasChanged(YuvLuminanceSource source) {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    final int limit = threshold;
+    if (limit == 0 || !current.fits(source)) {
+      lastDifference = 0;
+      return true;
+    }
+    current.sample(source);
+    final boolean first = width != referenceWidth || height != referenceHeight;
+    final int difference = first ? 255 : current.meanDifference(reference);
+    lastDifference = difference;
+    if (difference < limit && current.largestDifference(reference) < MAX_CELL_DIFFERENCE &&
+        ++unchangedFrames <= maxUnchangedFrames) {
+      unchangedFrameCount.incrementAndGet();
+      return false;
+    }
+    reference.copyFrom(current);
+    referenceWidth = width;
+    referenceHeight = height;
+    unchangedFrames = 0;
+    return true;
+  }
+}
@@ -0,0 +1,247 @@
+package de.evopark.tiqr.android.processing;
+
+import android.graphics.ImageFormat;
+import com.google.zxing.LuminanceSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the luminance of a region of a YUV preview frame in place
+ * <p>
+ * Works for every format that stores luma either as a plane or interleaved at a fixed pixel distance:
+ * NV21, NV16 and YV12 (planar, with YV12 rows aligned to 16 bytes), YUY2 (every other byte)
+ * and the Y plane of YUV_420_888 images with arbitrary row and pixel strides.
+ * Optionally averages 2x2 blocks to decode large codes from a quarter of the pixels.
+ * <p>
+ * An instance is bound to the size of its region and reused for consecutive frames via
+ * {@link #setFrame(byte[], int, int, int, int)}. Row and matrix scratch arrays are kept between frames,
+ * so nothing is allocated per frame once the geometry is stable. If the region covers a whole
+ * contiguous plane, {@link #getMatrix()} returns the frame buffer itself without copying.
+ */
+public class YuvLuminanceSource extends LuminanceSource {
+
+  private final int scale;
+
+  private byte[] data;
+  private ByteBuffer buffer;
+  private int base;
+  private int rowStride;
+  private int pixelStride;
+  private int left;
+  private int top;
+
+  private byte[] row = null;
+  private byte[] matrix = null;
+  // either the scratch matrix or the frame buffer itself, null until requested for the current frame
+  private byte[] currentMatrix = null;
+
+  /**
+   * @param width  width of the region in frame pixels
+   * @param height height of the region in frame pixels
+   * @param scale  1 for full resolution, 2 to average 2x2 blocks
+   */
+  public YuvLuminanceSource(int width, int height, int scale) {
+    super(width / scale, height / scale);
+    if (scale != 1 && scale != 2) {
+      throw new IllegalArgumentException("Scale must be 1 or 2");
+    }
+    this.scale = scale;
+  }
+
+  /**
+   * @param format preview format
+   * @return whether luminance can be read from frames of that format
+   * @see android.graphics.ImageFormat
+   */
+  public static boolean isSupported(int format) {
+    return format == ImageFormat.NV21 || format == ImageFormat.NV16 || format == ImageFormat.YV12 ||
+        format == ImageFormat.YUY2 || format == ImageFormat.YUV_420_888;
+  }
+
+  /**
+   * @param format preview format
+   * @return distance between two horizontally adjacent luma samples in bytes
+   */
+  public static int pixelStride(int format) {
+    return format == ImageFormat.YUY2 ? 2 : 1;
+  }
+
+  /**
+   * @param width  width of the region in frame pixels
+   * @param height height of the region in frame pixels
+   * @param scale  1 for full resolution, 2 for 2x2 averaging
+   * @return whether this instance can be reused for a region of the given size
+   */
+  public boolean matches(int width, int height, int scale) {
+    return this.scale == scale && getWidth() == width / scale && getHeight() == height / scale;
+  }
+
+  /**
+   * @return how many frame pixels in each direction one pixel of this source covers
+   */
+  public int getScale() {
+    return scale;
+  }
+
+  /**
+   * Points the source at a new frame held in a byte array
+   *
+   * @param data        frame data, luma starts at index 0
+   * @param rowStride   distance between two luma rows in bytes
+   * @param pixelStride distance between two luma samples in a row in bytes
+   * @param left        left edge of the region in frame pixels
+   * @param top         top edge of the region in frame pixels
+   */
+  public synchronized void setFrame(byte[] data, int rowStride, int pixelStride, int left, int top) {
+    this.data = data;
+    this.buffer = null;
+    this.base = 0;
+    setLayout(rowStride, pixelStride, left, top);
+  }
+
+  /**
+   * Points the source at a new frame held in a (possibly direct) buffer, e.g. an image plane
+   * Only absolute reads are used, so the buffer's position is left untouched
+   *
+   * @param buffer      luma plane
+   * @param rowStride   distance between two luma rows in bytes
+   * @param pixelStride distance between two luma samples in a row in bytes
+   * @param left        left edge of the region in frame pixels
+   * @param top         top edge of the region in frame pixels
+   */
+  public synchronized void setFrame(ByteBuffer buffer, int rowStride, int pixelStride, int left, int top) {
+    if (buffer.hasArray()) {
+      // heap buffers are read directly from their backing array
+      this.data = buffer.array();
+      this.buffer = null;
+      this.base = buffer.arrayOffset();
+    } else {
+      this.data = null;
+      this.buffer = buffer;
+      this.base = 0;
+    }
+    setLayout(rowStride, pixelStride, left, top);
+  }
+
+  private void setLayout(int rowStride, int pixelStride, int left, int top) {
+    this.rowStride = rowStride;
+    this.pixelStride = pixelStride;
+    this.left = left;
+    this.top = top;
+    currentMatrix = null;
+  }
+
+  /**
+   * Drops the reference to the frame so it can't be read after it has been recycled
+   */
+  public synchronized void clearFrame() {
+    data = null;
+    buffer = null;
+    currentMatrix = null;
+  }
+
+  @Override
+  public byte[] getRow(int y, byte[] row) {
+    if (y < 0 || y >= getHeight()) {
+      throw new IllegalArgumentException("Requested row is outside the image: " + y);
+    }
+    final int width = getWidth();
+    if (row == null || row.length < width) {
+      synchronized (this) {
+        if (this.row == null) {
+          this.row = new byte[width];
+        }
+        row = this.row;
+      }
+    }
+    readRow(y, row, 0);
+    return row;
+  }
+
+  /**
+   * Reads a single pixel, cheaper than a whole row for sparse accesses like walking along a column
+   *
+   * @param x column in pixels of this source
+   * @param y row in pixels of this source
+   * @return luminance from 0 to 255
+   */
+  public int getLuminance(int x, int y) {
+    final int offset = base + (top + y * scale) * rowStride + (left + x * scale) * pixelStride;
+    if (scale == 2) {
+      return (luma(offset) + luma(offset + pixelStride) + luma(offset + rowStride) +
+          luma(offset + rowStride + pixelStride)) >> 2;
+    }
+    return luma(offset);
+  }
+
+  @Override
+  public synchronized byte[] getMatrix() {
+    if (currentMatrix != null) {
+      return currentMatrix;
+    }
+    final int width = getWidth();
+    final int height = getHeight();
+    if (data != null && base == 0 && scale == 1 && pixelStride == 1 && rowStride == width && left == 0 && top == 0) {
+      // the region is the start of a contiguous plane, zxing only reads the first width * height bytes
+      currentMatrix = data;
+      return currentMatrix;
+    }
+    if (matrix == null) {
+      matrix = new byte[width * height];
+    }
+    for (int y = 0; y < height; y++) {
+      readRow(y, matrix, y * width);
+    }
+    currentMatrix = matrix;
+    return currentMatrix;
+  }
+
+  /**
+   * Copies one output row into {target}
+   */
+  private void readRow(int y, byte[] target, int targetOffset) {
+    final int width = getWidth();
+    final int step = pixelStride * scale;
+    int offset = base + (top + y * scale) * rowStride + left * pixelStride;
+    if (scale == 2) {
+      final int below = rowStride;
+      final int right = pixelStride;
+      for (int x = 0; x < width; x++) {
+        final int sum = luma(offset) + luma(offset + right) + luma(offset + below) + luma(offset + below + right);
+        target[targetOffset + x] = (byte) (sum >> 2);
+        offset += step;
+      }
+    } else if (data != null && pixelStride == 1) {
+      System.arraycopy(data, offset, target, targetOffset, width);
+    } else if (data != null) {
+      for (int x = 0; x < width; x++) {
+        target[targetOffset + x] = data[offset];
+        offset += step;
+      }
+    } else {
+      for (int x = 0; x < width; x++) {
+        target[targetOffset + x] = buffer.get(offset);
+        offset += step;
+      }
+    }
+  }
+
+  private int luma(int offset) {
+    return (data != null ? data[offset] : buffer.get(offset)) & 0xff;
+  }
+
+  @Override
+  public boolean isCropSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized LuminanceSource crop(int left, int top, int width, int height) {
+    final YuvLuminanceSource cropped = new YuvLuminanceSource(width * scale, height * scale, scale);
+    cropped.data = data;
+    cropped.buffer = buffer;
+    cropped.base = base;
+    cropped.setLayout(rowStride, pixelStride, this.left + left * scale, this.top + top * scale);
+    return cropped;
+  }
+}
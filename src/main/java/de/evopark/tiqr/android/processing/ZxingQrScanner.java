@@ -1,26 +1,81 @@
 package de.evopark.tiqr.android.processing;
 
-import android.graphics.ImageFormat;
 import android.util.Log;
 import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
 import com.google.zxing.NotFoundException;
-import com.google.zxing.PlanarYUVLuminanceSource;
 import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 import com.google.zxing.qrcode.QRCodeReader;
+import de.evopark.tiqr.android.PreviewFrame;
 import de.evopark.tiqr.android.interfaces.PreviewDataProcessor;
+import de.evopark.tiqr.android.interfaces.PreviewFrameProcessor;
 import de.evopark.tiqr.android.interfaces.QrCodeResultHandler;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Scans data received from the camera preview for QR codes using Zxing
  * Once a code has been recognized it is delivered to a ResultHandler as a string
+ * Only the configured region of interest is binarized and searched, luminance is read in place
+ * by YuvLuminanceSource instances which are reused as long as the region's size doesn't change,
+ * together with a ReusableHybridBinarizer each, so steady-state scanning produces hardly any garbage
+ * How much effort is spent on each frame is decided by a DecodeEscalationPolicy
+ * unless parallel decoding is enabled, in which case several binarization strategies race each other
+ * Frames which hardly differ from the last one processed are recognized by a SceneChangeDetector and get
+ * the outcome of that frame again, without being decoded
+ * Blurry and low-contrast frames are rejected by a FrameQualityEstimator before zxing gets to see them,
+ * as are frames in which a FinderPatternPreDetector doesn't find enough finder patterns
+ * In multi-code mode all codes of a frame are collected and delivered to the ResultHandler as one batch
+ * In tracking mode a found code is followed by a CodeTracker and only a small window around it is decoded
+ * until it hasn't been seen for a few frames
+ * Counters and stage latencies are recorded in a ScanStatistics instance
  */
-public class ZxingQrScanner implements PreviewDataProcessor {
+public class ZxingQrScanner implements PreviewDataProcessor, PreviewFrameProcessor {
 
   private final static String LTAG = ZxingQrScanner.class.getSimpleName();
 
   private final QrCodeResultHandler resultHandler;
   private final QRCodeReader qrCodeReader;
+  private final QRCodeMultiReader multiCodeReader = new QRCodeMultiReader();
+  private volatile boolean multiCodeMode = false;
+  private final DecodeEscalationPolicy escalationPolicy = new DecodeEscalationPolicy();
+  // requested from any thread, applied on the decoding thread
+  private volatile Set<ParallelStrategyDecoder.Strategy> parallelStrategies = null;
+  private Set<ParallelStrategyDecoder.Strategy> activeParallelStrategies = null;
+  private volatile ParallelStrategyDecoder parallelDecoder = null;
+  private volatile RegionOfInterest regionOfInterest = RegionOfInterest.FULL_FRAME;
+  private final SceneChangeDetector sceneChangeDetector = new SceneChangeDetector();
+  // what the last processed frame delivered, repeated for unchanged frames
+  private String lastCode = null;
+  private List<ScannedCode> lastCodes = null;
+  private final FrameQualityEstimator qualityEstimator = new FrameQualityEstimator();
+  private volatile boolean qualityFilterEnabled = true;
+  private final FinderPatternPreDetector preDetector = new FinderPatternPreDetector();
+  private volatile boolean preDetectorEnabled = true;
+  private final CodeTracker codeTracker = new CodeTracker();
+  private volatile boolean trackingMode = false;
+  private volatile ScanStatistics statistics = new ScanStatistics();
+  private volatile ResolutionPolicy resolutionPolicy = null;
+
+  // crop window in frame coordinates, cached for the last frame geometry
+  private RegionOfInterest windowRegion = null;
+  private int windowFrameWidth;
+  private int windowFrameHeight;
+  private int windowRotation;
+  private int[] window = null;
+
+  private YuvLuminanceSource fullResolutionSource = null;
+  private YuvLuminanceSource downscaledSource = null;
+  private ReusableHybridBinarizer fullResolutionBinarizer = null;
+  private ReusableHybridBinarizer downscaledBinarizer = null;
+  private YuvLuminanceSource trackingSource = null;
+  private ReusableHybridBinarizer trackingBinarizer = null;
 
   public ZxingQrScanner(QrCodeResultHandler resultHandler) {
     if (resultHandler == null) {
@@ -30,8 +85,193 @@ public class ZxingQrScanner implements PreviewDataProcessor {
     qrCodeReader = new QRCodeReader();
   }
 
+  /**
+   * Restricts scanning to a part of the frame
+   *
+   * @param regionOfInterest region to scan, null to scan the whole frame
+   */
+  public void setRegionOfInterest(RegionOfInterest regionOfInterest) {
+    this.regionOfInterest = regionOfInterest == null ? RegionOfInterest.FULL_FRAME : regionOfInterest;
+  }
+
+  public RegionOfInterest getRegionOfInterest() {
+    return regionOfInterest;
+  }
+
+  /**
+   * @return the policy deciding how hard to try on each frame, including its statistics
+   */
+  public DecodeEscalationPolicy getEscalationPolicy() {
+    return escalationPolicy;
+  }
+
+  /**
+   * @return the estimator scoring frames before decoding, including the latest scores
+   */
+  public FrameQualityEstimator getQualityEstimator() {
+    return qualityEstimator;
+  }
+
+  /**
+   * @return the detector which decides whether a frame differs enough from the last one to decode it
+   */
+  public SceneChangeDetector getSceneChangeDetector() {
+    return sceneChangeDetector;
+  }
+
+  /**
+   * Frames are measured either way, so the focus strategy keeps reacting to blur
+   *
+   * @param enabled whether frames with poor sharpness or contrast should be skipped without decoding
+   */
+  public void setQualityFilterEnabled(boolean enabled) {
+    qualityFilterEnabled = enabled;
+  }
+
+  public boolean isQualityFilterEnabled() {
+    return qualityFilterEnabled;
+  }
+
+  /**
+   * @return the pre-detector, e.g. to change the number of finder patterns it requires
+   */
+  public FinderPatternPreDetector getPreDetector() {
+    return preDetector;
+  }
+
+  /**
+   * @param enabled whether frames without enough finder pattern candidates should be skipped without decoding
+   */
+  public void setPreDetectorEnabled(boolean enabled) {
+    preDetectorEnabled = enabled;
+  }
+
+  public boolean isPreDetectorEnabled() {
+    return preDetectorEnabled;
+  }
+
+  /**
+   * Enables or disables looking for several codes per frame
+   * Multi-code mode always decodes at full resolution with a single strategy
+   *
+   * @param enabled whether all codes of a frame should be delivered as a batch
+   */
+  public void setMultiCodeMode(boolean enabled) {
+    multiCodeMode = enabled;
+  }
+
+  public boolean isMultiCodeMode() {
+    return multiCodeMode;
+  }
+
+  /**
+   * Enables or disables following a found code and decoding only around its last position
+   * Tracking is not used in multi-code mode
+   *
+   * @param enabled whether to track codes
+   */
+  public void setTrackingMode(boolean enabled) {
+    trackingMode = enabled;
+  }
+
+  public boolean isTrackingMode() {
+    return trackingMode;
+  }
+
+  /**
+   * @return the tracker following the last code, including its statistics
+   */
+  public CodeTracker getCodeTracker() {
+    return codeTracker;
+  }
+
+  /**
+   * @param statistics where to record counters and stage latencies, e.g. an instance shared with the camera
+   */
+  public void setStatistics(ScanStatistics statistics) {
+    if (statistics == null) {
+      throw new IllegalArgumentException("Statistics must not be null");
+    }
+    this.statistics = statistics;
+  }
+
+  public ScanStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @param policy receives the module size of decoded codes and the decode time of frames, may be null
+   */
+  public void setResolutionPolicy(ResolutionPolicy policy) {
+    resolutionPolicy = policy;
+  }
+
+  /**
+   * Enables or disables racing several binarization strategies on every frame
+   * The worker threads are (re)created on the decoding thread when the next frame arrives
+   *
+   * @param strategies strategies to run concurrently, null or empty to disable parallel decoding
+   */
+  public void setParallelStrategies(Set<ParallelStrategyDecoder.Strategy> strategies) {
+    parallelStrategies = strategies == null || strategies.isEmpty() ? null : EnumSet.copyOf(strategies);
+  }
+
+  public Set<ParallelStrategyDecoder.Strategy> getParallelStrategies() {
+    return parallelStrategies;
+  }
+
+  /**
+   * @return the parallel decoder including its statistics or null if parallel decoding is disabled
+   */
+  public ParallelStrategyDecoder getParallelDecoder() {
+    return parallelDecoder;
+  }
+
+  /**
+   * Shuts down helper threads, frames are decoded without parallel strategies afterwards
+   * May be called while a frame is being decoded, which then finishes without them
+   */
+  public void shutdown() {
+    parallelStrategies = null;
+    if (parallelDecoder != null) {
+      parallelDecoder.shutdown();
+    }
+  }
+
+  /**
+   * Creates or drops the parallel decoder if the requested strategies changed
+   * Must be called on the decoding thread
+   */
+  private void updateParallelDecoder() {
+    final Set<ParallelStrategyDecoder.Strategy> requested = parallelStrategies;
+    if (requested == activeParallelStrategies) {
+      return;
+    }
+    if (parallelDecoder != null) {
+      parallelDecoder.shutdown();
+      parallelDecoder = null;
+    }
+    if (requested != null) {
+      parallelDecoder = new ParallelStrategyDecoder(requested);
+    }
+    activeParallelStrategies = requested;
+  }
+
+  /**
+   * Checks for a QR code in the given preview frame
+   * The region of interest is mapped according to the frame's rotation
+   *
+   * @param frame the preview frame
+   */
+  @Override
+  public void processFrame(PreviewFrame frame) {
+    scan(frame.getWidth(), frame.getHeight(), frame.getFormat(), frame.getRowStride(), frame.getPixelStride(),
+        frame.getRotation(), frame.getData(), frame.getBuffer());
+  }
+
   /**
    * Checks for a QR code in the given bitmap data
+   * Since there is no rotation information, the region of interest is applied to the unrotated frame
    *
    * @param width  width of the picture in {data} in pixels
    * @param height height of the picture in {data} in pixels
@@ -40,39 +280,363 @@ public class ZxingQrScanner implements PreviewDataProcessor {
    */
   @Override
   public void processBitmap(int width, int height, int format, byte[] data) {
+    scan(width, height, format, PreviewFrame.defaultRowStride(width, format), YuvLuminanceSource.pixelStride(format),
+        0, data, null);
+  }
+
+  /**
+   * Determines the part of the frame that should be scanned
+   *
+   * @return {left, top, width, height} in frame pixels
+   */
+  private int[] getCropWindow(int width, int height, int rotation) {
+    final RegionOfInterest region = regionOfInterest;
+    if (window == null || region != windowRegion || width != windowFrameWidth ||
+        height != windowFrameHeight || rotation != windowRotation) {
+      window = region.toFrameWindow(width, height, rotation);
+      // positions from the previous geometry are meaningless now
+      codeTracker.reset();
+      sceneChangeDetector.reset();
+      windowRegion = region;
+      windowFrameWidth = width;
+      windowFrameHeight = height;
+      windowRotation = rotation;
+    }
+    return window;
+  }
+
+  /**
+   * Provides a luminance source for the crop window of the current frame, reusing the previous one if possible
+   *
+   * @param crop  {left, top, width, height} in frame pixels
+   * @param scale 1 for full resolution, 2 for 2x2 averaging
+   * @return source which still needs to be pointed at the frame
+   */
+  private YuvLuminanceSource obtainSource(int[] crop, int scale) {
+    YuvLuminanceSource source = scale == 1 ? fullResolutionSource : downscaledSource;
+    if (source == null || !source.matches(crop[2], crop[3], scale)) {
+      source = new YuvLuminanceSource(crop[2], crop[3], scale);
+      if (scale == 1) {
+        fullResolutionSource = source;
+      } else {
+        downscaledSource = source;
+      }
+    }
+    return source;
+  }
+
+  /**
+   * Provides a luminance source for the tracking window, reusing the previous one as long as the window size is kept
+   *
+   * @param trackingWindow {left, top, width, height} in frame pixels
+   * @return source which still needs to be pointed at the frame
+   */
+  private YuvLuminanceSource obtainTrackingSource(int[] trackingWindow) {
+    if (trackingSource == null || !trackingSource.matches(trackingWindow[2], trackingWindow[3], 1)) {
+      trackingSource = new YuvLuminanceSource(trackingWindow[2], trackingWindow[3], 1);
+      trackingBinarizer = new ReusableHybridBinarizer(trackingSource);
+    }
+    return trackingSource;
+  }
+
+  /**
+   * Provides the binarizer belonging to a luminance source, creating it when the source was replaced
+   *
+   * @param source source obtained via obtainSource or obtainTrackingSource
+   * @return binarizer reading from {source}
+   */
+  private ReusableHybridBinarizer obtainBinarizer(YuvLuminanceSource source) {
+    if (source == trackingSource) {
+      return trackingBinarizer;
+    }
+    final boolean fullResolution = source == fullResolutionSource;
+    ReusableHybridBinarizer binarizer = fullResolution ? fullResolutionBinarizer : downscaledBinarizer;
+    if (binarizer == null || binarizer.getLuminanceSource() != source) {
+      binarizer = new ReusableHybridBinarizer(source);
+      if (fullResolution) {
+        fullResolutionBinarizer = binarizer;
+      } else {
+        downscaledBinarizer = binarizer;
+      }
+    }
+    return binarizer;
+  }
+
+  /**
+   * Points a luminance source at the current frame, which is held either in {data} or in {buffer}
+   */
+  private static void setFrame(YuvLuminanceSource source, byte[] data, ByteBuffer buffer, int rowStride,
+                               int pixelStride, int left, int top) {
+    if (data != null) {
+      source.setFrame(data, rowStride, pixelStride, left, top);
+    } else {
+      source.setFrame(buffer, rowStride, pixelStride, left, top);
+    }
+  }
+
+  private void scan(int width, int height, int format, int rowStride, int pixelStride, int rotation,
+                    byte[] data, ByteBuffer buffer) {
     if (resultHandler == null) {
       return;
     }
 
-    Result result = null;
-    com.google.zxing.LuminanceSource luminanceSource = null;
-    if (format == ImageFormat.YUY2 || format == ImageFormat.YV12 ||
-        format == ImageFormat.NV21 || format == ImageFormat.NV16) {
-      luminanceSource = new PlanarYUVLuminanceSource(data,
-          width, height, 0, 0, width, height, false);
-    }
-    if (luminanceSource != null) {
-      final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(luminanceSource));
-      try {
-        result = qrCodeReader.decode(bitmap);
-      } catch (NotFoundException e) {
+    if (!YuvLuminanceSource.isSupported(format)) {
+      Log.e(LTAG, String.format("Could not handle image format %d", format));
+      return;
+    }
+    final long frameStart = System.nanoTime();
+    final int[] crop = getCropWindow(width, height, rotation);
+    updateParallelDecoder();
+    final YuvLuminanceSource fullSource = obtainSource(crop, 1);
+    setFrame(fullSource, data, buffer, rowStride, pixelStride, crop[0], crop[1]);
+    YuvLuminanceSource luminanceSource = fullSource;
+    final ResolutionPolicy policy = resolutionPolicy;
+    boolean decoded = false;
+    try {
+      if (!sceneChangeDetector.hasChanged(fullSource)) {
+        statistics.increment(ScanStatistics.Counter.FRAMES_UNCHANGED);
+        repeatLastOutcome();
         return;
-      } catch(com.google.zxing.FormatException e) {
-        // happens for example when the picture is completely black
+      }
+      lastCode = null;
+      lastCodes = null;
+      if (!qualityFilterEnabled) {
+        // the focus strategy relies on the measurements either way
+        qualityEstimator.measure(fullSource);
+      } else if (!qualityEstimator.accept(fullSource)) {
+        statistics.increment(ScanStatistics.Counter.FRAMES_SKIPPED);
+        return;
+      }
+      final boolean tracking = trackingMode;
+      // while a code is tracked its window is decoded anyway, which is cheaper than looking for finder patterns
+      if (preDetectorEnabled && !(tracking && !multiCodeMode && codeTracker.isTracking())) {
+        final long preDetectStart = System.nanoTime();
+        final boolean accepted = preDetector.accept(fullSource);
+        statistics.recordSince(ScanStatistics.Stage.PRE_DETECT, preDetectStart);
+        if (!accepted) {
+          statistics.increment(ScanStatistics.Counter.FRAMES_WITHOUT_FINDER);
+          return;
+        }
+      }
+      decoded = true;
+      if (multiCodeMode) {
+        scanMultiple(fullSource, crop, width);
         return;
-      } catch (com.google.zxing.ChecksumException e) {
-        // happens when the picture is blurry so the code can't be recognized properly
+      }
+      if (tracking && codeTracker.isTracking() &&
+          scanTrackingWindow(data, buffer, rowStride, pixelStride, crop, width)) {
         return;
-      } catch (Exception e) {
-        Log.e(LTAG, "Exception when scanning for code", e);
+      }
+      if (parallelDecoder != null) {
+        final Result result = scanInParallel(fullSource);
+        if (result != null) {
+          if (tracking) {
+            codeTracker.hit(ScannedCode.fromResult(result, crop[0], crop[1], 1));
+          }
+          if (policy != null) {
+            policy.codeDecoded(result, 1, width);
+          }
+        }
         return;
       }
-    } else {
-      Log.e(LTAG, String.format("Could not handle image format %d", format));
+      final DecodeEscalationPolicy.Tier tier = escalationPolicy.getCurrentTier();
+      if (tier == DecodeEscalationPolicy.Tier.DOWNSCALED) {
+        luminanceSource = obtainSource(crop, 2);
+        setFrame(luminanceSource, data, buffer, rowStride, pixelStride, crop[0], crop[1]);
+      }
+      final long start = System.nanoTime();
+      final Result result = decode(luminanceSource, tier);
+      escalationPolicy.recordAttempt(tier, result != null, System.nanoTime() - start);
+      if (result != null) {
+        if (tracking) {
+          codeTracker.hit(ScannedCode.fromResult(result, crop[0], crop[1], luminanceSource.getScale()));
+        }
+        if (policy != null) {
+          policy.codeDecoded(result, luminanceSource.getScale(), width);
+        }
+        deliver(result.getText());
+      }
+    } finally {
+      fullSource.clearFrame();
+      luminanceSource.clearFrame();
+      final long frameNanos = System.nanoTime() - frameStart;
+      statistics.record(ScanStatistics.Stage.FRAME_TOTAL, frameNanos);
+      if (decoded && policy != null) {
+        policy.frameDecoded(frameNanos, width, height);
+      }
+    }
+  }
+
+  /**
+   * Looks for all codes in the source and delivers them as one batch
+   *
+   * @param luminanceSource full resolution source of the region of interest
+   * @param crop            {left, top, width, height} of the region in frame pixels
+   * @param frameWidth      width of the whole frame in pixels
+   */
+  private void scanMultiple(YuvLuminanceSource luminanceSource, int[] crop, int frameWidth) {
+    final BinaryBitmap bitmap = new BinaryBitmap(obtainBinarizer(luminanceSource));
+    final Result[] results;
+    statistics.increment(ScanStatistics.Counter.FRAMES_DECODED);
+    long decodeStart = 0;
+    try {
+      binarize(bitmap);
+      decodeStart = System.nanoTime();
+      results = multiCodeReader.decodeMultiple(bitmap);
+    } catch (NotFoundException e) {
+      statistics.increment(ScanStatistics.Counter.FAILED_NOT_FOUND);
+      return;
+    } catch (Exception e) {
+      statistics.increment(ScanStatistics.Counter.FAILED_OTHER);
+      Log.e(LTAG, "Exception when scanning for multiple codes", e);
+      return;
+    } finally {
+      if (decodeStart != 0) {
+        statistics.recordSince(ScanStatistics.Stage.DETECT_AND_DECODE, decodeStart);
+      }
+      multiCodeReader.reset();
+    }
+    if (results == null || results.length == 0) {
+      statistics.increment(ScanStatistics.Counter.FAILED_NOT_FOUND);
+      return;
+    }
+    statistics.increment(ScanStatistics.Counter.FRAMES_WITH_CODE);
+    final List<ScannedCode> codes = new ArrayList<ScannedCode>(results.length);
+    final ResolutionPolicy policy = resolutionPolicy;
+    for (Result result : results) {
+      codes.add(ScannedCode.fromResult(result, crop[0], crop[1], 1));
+      if (policy != null) {
+        policy.codeDecoded(result, 1, frameWidth);
+      }
+    }
+    lastCodes = codes;
+    resultHandler.codesFound(codes);
+  }
+
+  private void deliver(String code) {
+    lastCode = code;
+    resultHandler.codeFound(code);
+  }
+
+  /**
+   * Delivers whatever the last processed frame delivered again
+   */
+  private void repeatLastOutcome() {
+    if (lastCode != null) {
+      resultHandler.codeFound(lastCode);
+    } else if (lastCodes != null) {
+      resultHandler.codesFound(new ArrayList<ScannedCode>(lastCodes));
+    }
+  }
+
+  /**
+   * Decodes only the window around the tracked code
+   *
+   * @param crop       {left, top, width, height} of the region of interest in frame pixels
+   * @param frameWidth width of the whole frame in pixels
+   * @return true if the frame is done with, false if the code was lost and the whole region should be searched
+   */
+  private boolean scanTrackingWindow(byte[] data, ByteBuffer buffer, int rowStride, int pixelStride, int[] crop,
+                                     int frameWidth) {
+    final int[] trackingWindow = codeTracker.predictWindow(crop);
+    final YuvLuminanceSource source = obtainTrackingSource(trackingWindow);
+    setFrame(source, data, buffer, rowStride, pixelStride, trackingWindow[0], trackingWindow[1]);
+    final Result result;
+    try {
+      result = decode(source, DecodeEscalationPolicy.Tier.FULL_RESOLUTION);
+    } finally {
+      source.clearFrame();
+    }
+    if (result == null) {
+      return !codeTracker.miss();
+    }
+    codeTracker.hit(ScannedCode.fromResult(result, trackingWindow[0], trackingWindow[1], 1));
+    final ResolutionPolicy policy = resolutionPolicy;
+    if (policy != null) {
+      policy.codeDecoded(result, 1, frameWidth);
+    }
+    deliver(result.getText());
+    return true;
+  }
+
+  /**
+   * Races all parallel strategies on the source and reports the first result
+   * Returns only once no strategy reads the frame anymore
+   *
+   * @return the reported result or null if no strategy found a code
+   */
+  private Result scanInParallel(LuminanceSource luminanceSource) {
+    final ParallelStrategyDecoder decoder = parallelDecoder;
+    Result result = null;
+    statistics.increment(ScanStatistics.Counter.FRAMES_DECODED);
+    try {
+      final long decodeStart = System.nanoTime();
+      result = decoder.decode(luminanceSource);
+      statistics.recordSince(ScanStatistics.Stage.DETECT_AND_DECODE, decodeStart);
+      statistics.increment(result == null ?
+          ScanStatistics.Counter.FAILED_NOT_FOUND : ScanStatistics.Counter.FRAMES_WITH_CODE);
+      if (result != null) {
+        Log.d(LTAG, "Code found with strategy " + decoder.getLastWinner());
+        deliver(result.getText());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RejectedExecutionException e) {
+      // the scanner has been shut down while decoding
+      Log.d(LTAG, "Parallel decoder shut down");
+    } finally {
+      // the frame is released once this returns
+      decoder.awaitIdle();
     }
-    if (result != null) {
-      final String resultData = result.getText();
-      resultHandler.codeFound(resultData);
+    return result;
+  }
+
+  /**
+   * Runs zxing on a luminance source
+   *
+   * @param luminanceSource source to decode
+   * @param tier            decides which hints to use
+   * @return the decoded result or null if there was no readable code
+   */
+  private Result decode(YuvLuminanceSource luminanceSource, DecodeEscalationPolicy.Tier tier) {
+    final BinaryBitmap bitmap = new BinaryBitmap(obtainBinarizer(luminanceSource));
+    statistics.increment(ScanStatistics.Counter.FRAMES_DECODED);
+    long decodeStart = 0;
+    try {
+      binarize(bitmap);
+      decodeStart = System.nanoTime();
+      final Result result = qrCodeReader.decode(bitmap, tier.getHints());
+      statistics.increment(ScanStatistics.Counter.FRAMES_WITH_CODE);
+      return result;
+    } catch (NotFoundException e) {
+      statistics.increment(ScanStatistics.Counter.FAILED_NOT_FOUND);
+      return null;
+    } catch(com.google.zxing.FormatException e) {
+      // happens for example when the picture is completely black
+      statistics.increment(ScanStatistics.Counter.FAILED_FORMAT);
+      return null;
+    } catch (com.google.zxing.ChecksumException e) {
+      // happens when the picture is blurry so the code can't be recognized properly
+      statistics.increment(ScanStatistics.Counter.FAILED_CHECKSUM);
+      return null;
+    } catch (Exception e) {
+      statistics.increment(ScanStatistics.Counter.FAILED_OTHER);
+      Log.e(LTAG, "Exception when scanning for code", e);
+      return null;
+    } finally {
+      if (decodeStart != 0) {
+        statistics.recordSince(ScanStatistics.Stage.DETECT_AND_DECODE, decodeStart);
+      }
+      qrCodeReader.reset();
     }
   }
+
+  /**
+   * Binarizes up front so its cost can be told apart from detection; the bitmap keeps the matrix for the reader
+   */
+  private void binarize(BinaryBitmap bitmap) throws NotFoundException {
+    final long start = System.nanoTime();
+    bitmap.getBlackMatrix();
+    statistics.recordSince(ScanStatistics.Stage.BINARIZE, start);
+  }
 }
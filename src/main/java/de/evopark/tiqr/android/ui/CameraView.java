@@ -4,6 +4,7 @@ import android.content.pm.ActivityInfo;
 import android.util.Log;
 import android.view.SurfaceView;
 import de.evopark.tiqr.android.CameraManager;
+import de.evopark.tiqr.android.processing.RegionOfInterest;
 import org.appcelerator.titanium.TiC;
 import org.appcelerator.titanium.proxy.TiViewProxy;
 import org.appcelerator.titanium.util.TiConvert;
@@ -37,4 +38,26 @@ public class CameraView extends TiUIView {
     CameraManager.getInstance().showPreviewInSurface(surfaceView.getHolder(), proxy.getActivity());
     setNativeView(surfaceView);
   }
+
+  /**
+   * Determines the region of interest that corresponds to an overlay drawn on top of this view
+   * The camera picture is scaled to fill the whole view, so the overlay's position relative to the view
+   * equals its position relative to the upright camera picture
+   *
+   * @param left   left edge of the overlay in view pixels
+   * @param top    top edge of the overlay in view pixels
+   * @param width  width of the overlay in view pixels
+   * @param height height of the overlay in view pixels
+   * @return region of interest or null if the view hasn't been laid out yet
+   */
+  public RegionOfInterest getRegionOfInterestForOverlay(int left, int top, int width, int height) {
+    final int viewWidth = surfaceView.getWidth();
+    final int viewHeight = surfaceView.getHeight();
+    if (viewWidth <= 0 || viewHeight <= 0) {
+      Log.d(LTAG, "Camera view has no size yet, cannot determine region of interest");
+      return null;
+    }
+    return RegionOfInterest.fromFractions((float) left / viewWidth, (float) top / viewHeight,
+        (float) width / viewWidth, (float) height / viewHeight);
+  }
 }
@@ -1,6 +1,8 @@
 package de.evopark.tiqr.android.ui;
 
 import de.evopark.tiqr.android.Module;
+import de.evopark.tiqr.android.processing.RegionOfInterest;
+import org.appcelerator.kroll.KrollDict;
 import org.appcelerator.kroll.annotations.Kroll;
 import org.appcelerator.titanium.proxy.TiViewProxy;
 import org.appcelerator.titanium.view.TiUIView;
@@ -17,4 +19,22 @@ public class CameraViewProxy extends TiViewProxy {
     return view;
   }
 
+  /**
+   * Calculates the region of interest matching an overlay that is shown on top of the camera view
+   * The result can be assigned to the module's "regionOfInterest" property
+   *
+   * @param overlay dictionary with "left", "top", "width" and "height" of the overlay in pixels of the camera view
+   * @return region of interest as a dictionary or null if the view isn't laid out yet
+   */
+  @Kroll.method
+  public KrollDict regionOfInterestForOverlay(KrollDict overlay) {
+    final TiUIView view = peekView();
+    if (!(view instanceof CameraView) || overlay == null) {
+      return null;
+    }
+    final RegionOfInterest region = ((CameraView) view).getRegionOfInterestForOverlay(
+        overlay.getInt("left"), overlay.getInt("top"), overlay.getInt("width"), overlay.getInt("height"));
+    return region == null ? null : Module.regionOfInterestToDict(region);
+  }
+
 }
@@ -0,0 +1,858 @@
+package de.evopark.tiqr.android.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.FrameSource;
+import de.evopark.tiqr.android.processing.RegionOfInterest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens a camera through the camera2 API and delivers frames from an ImageReader
+ * <p>
+ * Used instead of android.hardware.Camera on devices whose camera HAL isn't running in legacy mode, where the
+ * old API only works through an emulation layer that copies every frame. The capture session has two outputs:
+ * the full resolution preview surface and a separate, smaller YUV_420_888 analysis stream. Processors receive
+ * the Y plane of the analysis images as a ByteBuffer together with its row and pixel stride, nothing is copied.
+ * An image is closed once the last reference to its frame has been released; while processors hold all images
+ * of the reader, new ones are skipped.
+ * <p>
+ * The camera is opened and configured asynchronously on the thread of the given handler, which also receives
+ * the images. The preview surface is sized and watched on the main thread, since resizing it lays out its view.
+ * All public methods may be called from any thread, but close from one only.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2FrameSource implements FrameSource {
+
+  private final static String LTAG = Camera2FrameSource.class.getSimpleName();
+
+  public final static int DEFAULT_ANALYSIS_WIDTH = 1280;
+  public final static int DEFAULT_ANALYSIS_HEIGHT = 720;
+  // larger previews only cost bandwidth, what can be decoded depends on the analysis stream
+  private final static int MAX_PREVIEW_WIDTH = 1920;
+  private final static int MAX_PREVIEW_HEIGHT = 1080;
+
+  /**
+   * Notified on the handler thread about the state of the camera
+   */
+  public interface StateListener {
+    /**
+     * The first capture request after opening or resuming the camera has been submitted
+     */
+    void cameraStarted();
+
+    /**
+     * @param reason description of what went wrong
+     */
+    void cameraFailed(String reason);
+  }
+
+  private final android.hardware.camera2.CameraManager cameraService;
+  private final String cameraId;
+  private final CameraCharacteristics characteristics;
+  private final int sensorOrientation;
+  private final Size[] analysisSizes;
+  private final Size[] previewSizes;
+  private final int imageCount;
+  private final Handler handler;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private volatile Size previewSize;
+  private volatile Size analysisSize;
+  private volatile int analysisMaxWidth = DEFAULT_ANALYSIS_WIDTH;
+  private volatile int analysisMaxHeight = DEFAULT_ANALYSIS_HEIGHT;
+  private volatile Listener listener = null;
+  private volatile Surface previewSurface = null;
+  private volatile int displayRotation = 0;
+  private volatile RegionOfInterest focusRegion = RegionOfInterest.FULL_FRAME;
+  // null to let the camera pick the frame rate
+  private volatile Range<Integer> fpsRange = null;
+  private volatile boolean paused = false;
+  private volatile boolean closed = false;
+  private volatile StateListener stateListener = null;
+
+  // only accessed on the handler thread
+  private boolean opening = false;
+  private CameraDevice device = null;
+  private CameraCaptureSession session = null;
+  private SessionCallback sessionCallback = null;
+  private Surface sessionPreviewSurface = null;
+  private AnalysisStream analysisStream = null;
+  private long frameSequenceNumber = 0;
+  // whether cameraStarted is due with the next capture request
+  private boolean startPending = false;
+
+  // only accessed on the main thread
+  private SurfaceHolder previewHolder = null;
+
+  /**
+   * Finds the first back-facing camera, like android.hardware.Camera#open() does
+   *
+   * @param context used to access the camera service
+   * @return id of the camera or null if there is none or its HAL only runs in legacy mode,
+   * in which case android.hardware.Camera is the more direct path
+   */
+  public static String findCamera(Context context) {
+    final android.hardware.camera2.CameraManager service =
+        (android.hardware.camera2.CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    try {
+      for (String id : service.getCameraIdList()) {
+        final CameraCharacteristics info = service.getCameraCharacteristics(id);
+        final Integer facing = info.get(CameraCharacteristics.LENS_FACING);
+        if (facing == null || facing != CameraMetadata.LENS_FACING_BACK) {
+          continue;
+        }
+        final Integer level = info.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        if (level == null || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+          Log.d(LTAG, "Camera " + id + " runs in legacy mode");
+          return null;
+        }
+        return id;
+      }
+    } catch (CameraAccessException e) {
+      Log.e(LTAG, "Could not enumerate cameras", e);
+    }
+    return null;
+  }
+
+  /**
+   * Picks the preview and analysis sizes; the camera is opened by open()
+   *
+   * @param context    used to access the camera service
+   * @param cameraId   camera to use, see findCamera
+   * @param imageCount number of analysis images processors may hold at the same time
+   * @param handler    handler of the thread which operates the camera and receives its images
+   * @throws CameraAccessException if the camera's characteristics can't be read
+   */
+  public Camera2FrameSource(Context context, String cameraId, int imageCount, Handler handler)
+      throws CameraAccessException {
+    if (imageCount < 1) {
+      throw new IllegalArgumentException("Image count must be at least 1");
+    }
+    cameraService = (android.hardware.camera2.CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    this.cameraId = cameraId;
+    this.imageCount = imageCount;
+    characteristics = cameraService.getCameraCharacteristics(cameraId);
+    final Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    sensorOrientation = orientation == null ? 90 : orientation;
+    final StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    previewSizes = map.getOutputSizes(SurfaceHolder.class);
+    previewSize = chooseSize(previewSizes, MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, null);
+    analysisSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+    analysisSize = chooseSize(analysisSizes, DEFAULT_ANALYSIS_WIDTH, DEFAULT_ANALYSIS_HEIGHT, previewSize);
+    Log.d(LTAG, String.format("Camera %s: preview %dx%dpx, analysis %dx%dpx", cameraId,
+        previewSize.getWidth(), previewSize.getHeight(), analysisSize.getWidth(), analysisSize.getHeight()));
+    this.handler = handler;
+  }
+
+  /**
+   * Picks the largest size within the given bounds, preferring the aspect ratio of another size
+   *
+   * @param sizes     supported sizes
+   * @param maxWidth  maximum width in pixels
+   * @param maxHeight maximum height in pixels
+   * @param aspect    size whose aspect ratio should be kept, may be null
+   * @return the chosen size, the smallest one if none fits the bounds
+   */
+  static Size chooseSize(Size[] sizes, int maxWidth, int maxHeight, Size aspect) {
+    Size best = null;
+    Size bestOtherAspect = null;
+    Size smallest = null;
+    for (Size size : sizes) {
+      if (smallest == null || area(size) < area(smallest)) {
+        smallest = size;
+      }
+      if (size.getWidth() > maxWidth || size.getHeight() > maxHeight) {
+        continue;
+      }
+      if (aspect != null &&
+          (long) size.getWidth() * aspect.getHeight() == (long) size.getHeight() * aspect.getWidth()) {
+        if (best == null || area(size) > area(best)) {
+          best = size;
+        }
+      } else if (bestOtherAspect == null || area(size) > area(bestOtherAspect)) {
+        bestOtherAspect = size;
+      }
+    }
+    return best != null ? best : bestOtherAspect != null ? bestOtherAspect : smallest;
+  }
+
+  /**
+   * Picks the largest preview size whose aspect ratio is closest to that of the view, so the preview isn't distorted
+   *
+   * @param sizes      supported sizes
+   * @param viewWidth  width of the view in sensor orientation
+   * @param viewHeight height of the view in sensor orientation
+   * @return the chosen size
+   */
+  static Size chooseSizeForView(Size[] sizes, int viewWidth, int viewHeight) {
+    final float target = (float) viewWidth / viewHeight;
+    Size best = null;
+    float bestDifference = Float.MAX_VALUE;
+    for (Size size : sizes) {
+      if (size.getWidth() > MAX_PREVIEW_WIDTH || size.getHeight() > MAX_PREVIEW_HEIGHT) {
+        continue;
+      }
+      final float difference = Math.abs((float) size.getWidth() / size.getHeight() - target);
+      if (difference < bestDifference - 0.01f) {
+        best = size;
+        bestDifference = difference;
+      } else if (difference < bestDifference + 0.01f && area(size) > area(best)) {
+        best = size;
+      }
+    }
+    return best != null ? best : chooseSize(sizes, MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, null);
+  }
+
+  private static long area(Size size) {
+    return (long) size.getWidth() * size.getHeight();
+  }
+
+  /**
+   * @return analysis sizes with the aspect ratio of the preview as {width, height} pairs, all if none matches
+   */
+  public int[][] getSupportedAnalysisSizes() {
+    final Size preview = previewSize;
+    final List<int[]> sizes = new ArrayList<int[]>();
+    for (Size size : analysisSizes) {
+      if ((long) size.getWidth() * preview.getHeight() == (long) size.getHeight() * preview.getWidth()) {
+        sizes.add(new int[]{size.getWidth(), size.getHeight()});
+      }
+    }
+    if (sizes.isEmpty()) {
+      for (Size size : analysisSizes) {
+        sizes.add(new int[]{size.getWidth(), size.getHeight()});
+      }
+    }
+    return sizes.toArray(new int[sizes.size()][]);
+  }
+
+  /**
+   * Changes the resolution of the analysis stream, the session is reconfigured if it changes
+   *
+   * @param maxWidth  maximum width in pixels
+   * @param maxHeight maximum height in pixels
+   */
+  public void setAnalysisSize(int maxWidth, int maxHeight) {
+    analysisMaxWidth = maxWidth;
+    analysisMaxHeight = maxHeight;
+    final Size size = chooseSize(analysisSizes, maxWidth, maxHeight, previewSize);
+    if (size.equals(analysisSize)) {
+      return;
+    }
+    Log.d(LTAG, String.format("Analysis stream changed to %dx%dpx", size.getWidth(), size.getHeight()));
+    analysisSize = size;
+    postConfigureSession();
+  }
+
+  /**
+   * @return resolution of the frames delivered to processors
+   */
+  public Size getAnalysisSize() {
+    return analysisSize;
+  }
+
+  /**
+   * @param rotation rotation of the display in degrees, used to compute the rotation of frames and focus areas
+   */
+  public void setDisplayRotation(int rotation) {
+    displayRotation = rotation;
+  }
+
+  /**
+   * @return clockwise rotation in degrees needed to show frames upright on the display
+   */
+  public int getFrameRotation() {
+    return (sensorOrientation - displayRotation + 360) % 360;
+  }
+
+  /**
+   * Limits the frame rate, e.g. to save power while nothing happens in front of the camera
+   *
+   * @param maxFps highest frame rate wanted, 0 for the camera's default
+   */
+  public void setMaxFrameRate(int maxFps) {
+    final Range<Integer> range = maxFps > 0 ? chooseFpsRange(
+        characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES), maxFps) : null;
+    if (range == null ? fpsRange == null : range.equals(fpsRange)) {
+      return;
+    }
+    Log.d(LTAG, "Frame rate range " + (range == null ? "default" : range));
+    fpsRange = range;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        updateRepeatingRequest();
+      }
+    });
+  }
+
+  /**
+   * Picks the range with the highest upper bound not above the limit, and the lowest lower bound among those
+   * so exposure can get longer in the dark
+   *
+   * @return the range or null if there is none below the limit
+   */
+  private static Range<Integer> chooseFpsRange(Range<Integer>[] ranges, int maxFps) {
+    Range<Integer> best = null;
+    if (ranges != null) {
+      for (Range<Integer> range : ranges) {
+        if (range.getUpper() > maxFps) {
+          continue;
+        }
+        if (best == null || range.getUpper() > best.getUpper() ||
+            (range.getUpper().equals(best.getUpper()) && range.getLower() < best.getLower())) {
+          best = range;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Focus and meter on the part of the picture that is being scanned
+   *
+   * @param region region of interest as used for scanning
+   */
+  public void setFocusRegion(RegionOfInterest region) {
+    focusRegion = region == null ? RegionOfInterest.FULL_FRAME : region;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        updateRepeatingRequest();
+      }
+    });
+  }
+
+  /**
+   * Shows the full resolution preview in the given surface, replacing the previous one
+   * The surface is linked on the main thread, the session is reconfigured on the handler thread afterwards
+   *
+   * @param holder holder of the preview surface, null to stop showing a preview
+   */
+  public void setPreviewHolder(final SurfaceHolder holder) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      linkPreviewHolder(holder);
+    } else {
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          linkPreviewHolder(holder);
+        }
+      });
+    }
+  }
+
+  /**
+   * Must be called on the main thread, setFixedSize lays out the surface view
+   */
+  private void linkPreviewHolder(SurfaceHolder holder) {
+    if (holder == previewHolder) {
+      return;
+    }
+    if (previewHolder != null) {
+      previewHolder.removeCallback(surfaceCallback);
+      setPreviewSurface(null);
+    }
+    previewHolder = holder;
+    if (holder != null) {
+      Log.d(LTAG, "Linking camera to surface view");
+      final Rect view = holder.getSurfaceFrame();
+      if (view.width() > 0 && view.height() > 0) {
+        final boolean sideways = getFrameRotation() % 180 != 0;
+        adaptToView(sideways ? view.height() : view.width(), sideways ? view.width() : view.height());
+      }
+      // the camera only renders into surfaces of a supported size
+      holder.setFixedSize(previewSize.getWidth(), previewSize.getHeight());
+      holder.addCallback(surfaceCallback);
+      final Rect frame = holder.getSurfaceFrame();
+      if (!holder.isCreating() && frame.width() == previewSize.getWidth() &&
+          frame.height() == previewSize.getHeight()) {
+        setPreviewSurface(holder.getSurface());
+      }
+    }
+  }
+
+  /**
+   * Matches the aspect ratio of preview and analysis stream to the view showing the preview
+   */
+  private void adaptToView(int viewWidth, int viewHeight) {
+    final Size size = chooseSizeForView(previewSizes, viewWidth, viewHeight);
+    if (size.equals(previewSize)) {
+      return;
+    }
+    previewSize = size;
+    analysisSize = chooseSize(analysisSizes, analysisMaxWidth, analysisMaxHeight, size);
+    Log.d(LTAG, String.format("Adapted to view: preview %dx%dpx, analysis %dx%dpx", size.getWidth(),
+        size.getHeight(), analysisSize.getWidth(), analysisSize.getHeight()));
+    postConfigureSession();
+  }
+
+  private final SurfaceHolder.Callback surfaceCallback = new SurfaceHolder.Callback() {
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+      // wait for surfaceChanged to report the fixed size
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+      Log.d(LTAG, String.format("Surface changed: %dx%dpx", width, height));
+      if (width == previewSize.getWidth() && height == previewSize.getHeight()) {
+        setPreviewSurface(holder.getSurface());
+      }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+      setPreviewSurface(null);
+    }
+  };
+
+  private void setPreviewSurface(Surface surface) {
+    if (surface != previewSurface) {
+      previewSurface = surface;
+      postConfigureSession();
+    }
+  }
+
+  /**
+   * @param listener notified when the camera started or failed, may be null
+   */
+  public void setStateListener(StateListener listener) {
+    stateListener = listener;
+  }
+
+  /**
+   * Opens the camera asynchronously and starts the preview once a surface is available
+   */
+  public void open() {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        openCamera();
+      }
+    });
+  }
+
+  /**
+   * Stops the preview and frame delivery but keeps the camera open, so resume() is quick
+   */
+  public void pause() {
+    paused = true;
+    postConfigureSession();
+  }
+
+  /**
+   * Restarts the preview and frame delivery after pause()
+   */
+  public void resume() {
+    paused = false;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        startPending = true;
+        configureSession();
+      }
+    });
+  }
+
+  /**
+   * Starts delivering analysis frames, adding the analysis stream to the session if necessary
+   *
+   * @param listener receives the frames
+   */
+  @Override
+  public void start(Listener listener) {
+    this.listener = listener;
+    postConfigureSession();
+  }
+
+  /**
+   * Stops delivering frames and removes the analysis stream from the session; the preview keeps running
+   * Images still retained by processors stay valid until they are released
+   */
+  @Override
+  public void stop() {
+    listener = null;
+    postConfigureSession();
+  }
+
+  /**
+   * Closes the camera, the source can't be used anymore afterwards
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    Log.d(LTAG, "Closing camera");
+    setPreviewHolder(null);
+    closed = true;
+    listener = null;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        closeSession();
+        retireAnalysisStream();
+        if (device != null) {
+          device.close();
+          device = null;
+        }
+      }
+    });
+  }
+
+  private void postConfigureSession() {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        configureSession();
+      }
+    });
+  }
+
+  private void openCamera() {
+    if (closed || opening || device != null) {
+      return;
+    }
+    opening = true;
+    startPending = true;
+    try {
+      cameraService.openCamera(cameraId, deviceCallback, handler);
+    } catch (CameraAccessException e) {
+      opening = false;
+      Log.e(LTAG, "Could not open camera " + cameraId, e);
+      notifyFailed("Could not open camera " + cameraId);
+    } catch (SecurityException e) {
+      opening = false;
+      Log.e(LTAG, "Not allowed to open camera " + cameraId, e);
+      notifyFailed("Not allowed to open camera " + cameraId);
+    }
+  }
+
+  private void notifyFailed(String reason) {
+    startPending = false;
+    final StateListener listener = stateListener;
+    if (listener != null) {
+      listener.cameraFailed(reason);
+    }
+  }
+
+  private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+    @Override
+    public void onOpened(CameraDevice camera) {
+      opening = false;
+      if (closed) {
+        camera.close();
+        return;
+      }
+      Log.d(LTAG, "Camera " + camera.getId() + " opened");
+      device = camera;
+      configureSession();
+    }
+
+    @Override
+    public void onDisconnected(CameraDevice camera) {
+      Log.w(LTAG, "Camera " + camera.getId() + " disconnected");
+      dropDevice(camera);
+      notifyFailed("Camera disconnected");
+    }
+
+    @Override
+    public void onError(CameraDevice camera, int error) {
+      Log.e(LTAG, String.format("Camera %s failed with error %d", camera.getId(), error));
+      dropDevice(camera);
+      notifyFailed("Camera failed with error " + error);
+    }
+  };
+
+  private void dropDevice(CameraDevice camera) {
+    opening = false;
+    camera.close();
+    if (camera == device) {
+      device = null;
+      session = null;
+      sessionCallback = null;
+      retireAnalysisStream();
+    }
+  }
+
+  /**
+   * Creates a capture session for the preview surface and, while there is a listener, the analysis stream
+   * The current session is kept if its outputs are still right; while paused there is no session
+   */
+  private void configureSession() {
+    if (device == null) {
+      return;
+    }
+    if (paused) {
+      closeSession();
+      return;
+    }
+    final Surface preview = previewSurface;
+    final Size size = listener == null ? null : analysisSize;
+    final boolean analysisUnchanged = size == null ? analysisStream == null :
+        analysisStream != null && analysisStream.hasSize(size);
+    if (sessionCallback != null && preview == sessionPreviewSurface && analysisUnchanged) {
+      return;
+    }
+    closeSession();
+    if (!analysisUnchanged) {
+      retireAnalysisStream();
+      if (size != null) {
+        analysisStream = new AnalysisStream(size);
+      }
+    }
+    final List<Surface> outputs = new ArrayList<Surface>(2);
+    if (preview != null && preview.isValid()) {
+      outputs.add(preview);
+    }
+    if (analysisStream != null) {
+      outputs.add(analysisStream.reader.getSurface());
+    }
+    if (outputs.isEmpty()) {
+      return;
+    }
+    Log.d(LTAG, String.format("Configuring session with %d outputs", outputs.size()));
+    sessionPreviewSurface = preview;
+    sessionCallback = new SessionCallback();
+    try {
+      device.createCaptureSession(outputs, sessionCallback, handler);
+    } catch (CameraAccessException e) {
+      Log.e(LTAG, "Could not configure capture session", e);
+      sessionCallback = null;
+      notifyFailed("Could not configure capture session");
+    }
+  }
+
+  private void closeSession() {
+    if (session != null) {
+      session.close();
+      session = null;
+    }
+    sessionCallback = null;
+    sessionPreviewSurface = null;
+  }
+
+  private void retireAnalysisStream() {
+    if (analysisStream != null) {
+      analysisStream.retire();
+      analysisStream = null;
+    }
+  }
+
+  private class SessionCallback extends CameraCaptureSession.StateCallback {
+    @Override
+    public void onConfigured(CameraCaptureSession configured) {
+      if (this != sessionCallback) {
+        // superseded by a newer configuration in the meantime
+        configured.close();
+        return;
+      }
+      session = configured;
+      updateRepeatingRequest();
+    }
+
+    @Override
+    public void onConfigureFailed(CameraCaptureSession failed) {
+      Log.e(LTAG, "Capture session could not be configured");
+      if (this == sessionCallback) {
+        sessionCallback = null;
+        notifyFailed("Capture session could not be configured");
+      }
+    }
+  }
+
+  /**
+   * (Re)starts the repeating capture request with the current focus settings
+   */
+  private void updateRepeatingRequest() {
+    if (session == null) {
+      return;
+    }
+    try {
+      final CaptureRequest.Builder request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      if (sessionPreviewSurface != null) {
+        request.addTarget(sessionPreviewSurface);
+      }
+      if (analysisStream != null) {
+        request.addTarget(analysisStream.reader.getSurface());
+      }
+      request.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+      final Range<Integer> range = fpsRange;
+      if (range != null) {
+        request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+      }
+      if (supportsAutoFocusMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
+        request.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+      }
+      final MeteringRectangle[] regions = computeMeteringRegions();
+      if (regions != null) {
+        if (getMaxRegions(CameraCharacteristics.CONTROL_MAX_REGIONS_AF) > 0) {
+          request.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+        }
+        if (getMaxRegions(CameraCharacteristics.CONTROL_MAX_REGIONS_AE) > 0) {
+          request.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+        }
+      }
+      session.setRepeatingRequest(request.build(), null, handler);
+      if (startPending) {
+        startPending = false;
+        final StateListener listener = stateListener;
+        if (listener != null) {
+          listener.cameraStarted();
+        }
+      }
+    } catch (CameraAccessException e) {
+      Log.e(LTAG, "Could not start repeating request", e);
+    } catch (IllegalStateException e) {
+      Log.w(LTAG, "Capture session closed while updating request");
+    }
+  }
+
+  private boolean supportsAutoFocusMode(int mode) {
+    final int[] modes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+    if (modes != null) {
+      for (int available : modes) {
+        if (available == mode) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private int getMaxRegions(CameraCharacteristics.Key<Integer> key) {
+    final Integer regions = characteristics.get(key);
+    return regions == null ? 0 : regions;
+  }
+
+  /**
+   * Maps the focus region from analysis frame pixels to sensor coordinates
+   *
+   * @return metering regions or null to let the camera decide
+   */
+  private MeteringRectangle[] computeMeteringRegions() {
+    final RegionOfInterest region = focusRegion;
+    final Rect active = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+    if (region == RegionOfInterest.FULL_FRAME || active == null) {
+      return null;
+    }
+    final Size size = analysisSize;
+    final int[] window = region.toFrameWindow(size.getWidth(), size.getHeight(), getFrameRotation());
+    final int left = active.left + (int) ((long) window[0] * active.width() / size.getWidth());
+    final int top = active.top + (int) ((long) window[1] * active.height() / size.getHeight());
+    final int width = (int) ((long) window[2] * active.width() / size.getWidth());
+    final int height = (int) ((long) window[3] * active.height() / size.getHeight());
+    return new MeteringRectangle[]{
+        new MeteringRectangle(left, top, width, height, MeteringRectangle.METERING_WEIGHT_MAX)
+    };
+  }
+
+  /**
+   * An ImageReader for the analysis stream together with the images that processors still hold
+   * Once retired, the reader is closed as soon as the last of these images has been released,
+   * so the planes of frames retained by processors remain readable
+   */
+  private class AnalysisStream implements ImageReader.OnImageAvailableListener {
+    final ImageReader reader;
+    private int acquiredImages = 0;
+    private boolean retired = false;
+
+    AnalysisStream(Size size) {
+      // acquireLatestImage needs one more image than processors may hold
+      reader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, imageCount + 1);
+      reader.setOnImageAvailableListener(this, handler);
+    }
+
+    boolean hasSize(Size size) {
+      return reader.getWidth() == size.getWidth() && reader.getHeight() == size.getHeight();
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader _reader) {
+      final Image image;
+      synchronized (this) {
+        if (retired) {
+          return;
+        }
+        try {
+          image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+          // processors still hold all images, the camera delivers the next one soon enough
+          return;
+        }
+        if (image == null) {
+          return;
+        }
+        acquiredImages++;
+      }
+      final Listener target = listener;
+      if (target == null) {
+        release(image);
+        return;
+      }
+      final Image.Plane luminance = image.getPlanes()[0];
+      final PreviewFrame frame = new PreviewFrame(luminance.getBuffer(), image.getWidth(), image.getHeight(),
+          ImageFormat.YUV_420_888, luminance.getRowStride(), luminance.getPixelStride(), getFrameRotation(),
+          System.nanoTime(), frameSequenceNumber++, new ImageRecycler(this, image));
+      target.frameAvailable(frame);
+      frame.release();
+    }
+
+    synchronized void release(Image image) {
+      image.close();
+      acquiredImages--;
+      if (retired && acquiredImages == 0) {
+        reader.close();
+      }
+    }
+
+    synchronized void retire() {
+      retired = true;
+      reader.setOnImageAvailableListener(null, null);
+      if (acquiredImages == 0) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Closes the image of a frame once the last reference to it has been released
+   */
+  private static class ImageRecycler implements PreviewFrame.Recycler {
+    private final AnalysisStream stream;
+    private final Image image;
+
+    ImageRecycler(AnalysisStream stream, Image image) {
+      this.stream = stream;
+      this.image = image;
+    }
+
+    @Override
+    public void recycle(PreviewFrame frame) {
+      stream.release(image);
+    }
+  }
+}
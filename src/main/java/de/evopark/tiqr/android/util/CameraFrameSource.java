@@ -0,0 +1,123 @@
+package de.evopark.tiqr.android.util;
+
+import android.hardware.Camera;
+import android.util.Log;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.FrameSource;
+
+/**
+ * Delivers the preview frames of an android.hardware.Camera
+ * Frames are received into the buffers of a PreviewBufferPool, which are handed back to the camera
+ * once the last reference to their frame has been released
+ * The preview size and format are taken from the shared CameraParameters when the callback is registered,
+ * frames are only checked against its cached size, so nothing is asked from the camera per frame
+ * Opening, previewing and releasing the camera is left to the owner
+ */
+public class CameraFrameSource implements FrameSource {
+
+  private final static String LTAG = CameraFrameSource.class.getSimpleName();
+
+  private final Camera camera;
+  private final CameraParameters parameters;
+  private final PreviewBufferPool previewBufferPool;
+  private volatile int frameRotation = 0;
+  private long frameSequenceNumber = 0;
+  private volatile boolean running = false;
+
+  /**
+   * Hands buffers back to the camera once all references to their frame have been released
+   */
+  private final PreviewFrame.Recycler bufferRecycler = new PreviewFrame.Recycler() {
+    @Override
+    public void recycle(PreviewFrame frame) {
+      recycleBuffer(frame.getData());
+    }
+  };
+
+  /**
+   * @param parameters        parameters of an opened camera
+   * @param previewBufferPool buffers to receive frames into
+   */
+  public CameraFrameSource(CameraParameters parameters, PreviewBufferPool previewBufferPool) {
+    this.camera = parameters.getCamera();
+    this.parameters = parameters;
+    this.previewBufferPool = previewBufferPool;
+  }
+
+  /**
+   * @param rotation clockwise rotation in degrees needed to show frames upright, attached to every frame
+   */
+  public void setFrameRotation(int rotation) {
+    frameRotation = rotation;
+  }
+
+  /**
+   * Registers the preview callback with the camera
+   * Must be called again whenever the preview size or format changes so the buffers are resized
+   *
+   * @param listener receives the frames
+   */
+  @Override
+  public void start(final Listener listener) {
+    final int width = parameters.getPreviewWidth();
+    final int height = parameters.getPreviewHeight();
+    final int format = parameters.getPreviewFormat();
+    if (format == 0) {
+      return;
+    }
+    final int frameSize = PreviewBufferPool.computeBufferSize(width, height, format);
+    synchronized (this) {
+      running = true;
+    }
+    Log.d(LTAG, String.format("Registering preview callback for %dx%dpx", width, height));
+    camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+      @Override
+      public void onPreviewFrame(byte[] bytes, Camera _camera) {
+        if (!running || bytes == null) {
+          return;
+        }
+        final long now = System.nanoTime();
+        final boolean pooled = previewBufferPool.lease(bytes);
+        if (bytes.length != frameSize || parameters.getPreviewWidth() != width ||
+            parameters.getPreviewHeight() != height) {
+          // the preview size changed and the callback hasn't been registered again yet
+          if (pooled) {
+            recycleBuffer(bytes);
+          }
+          return;
+        }
+        final PreviewFrame frame = new PreviewFrame(bytes, width, height, format,
+            PreviewFrame.defaultRowStride(width, format), frameRotation,
+            now, frameSequenceNumber++, pooled ? bufferRecycler : null);
+        listener.frameAvailable(frame);
+        frame.release();
+      }
+    });
+    previewBufferPool.prime(camera, width, height, format);
+  }
+
+  /**
+   * Unregisters the preview callback
+   * Buffers released afterwards are no longer handed to the camera, so it may be released right away
+   */
+  @Override
+  public void stop() {
+    synchronized (this) {
+      // processors might still be releasing frames on other threads
+      running = false;
+    }
+    Log.d(LTAG, "Unregistering camera preview callback");
+    camera.setPreviewCallbackWithBuffer(null);
+    // a null callback makes the camera drop the buffers it has queued
+    previewBufferPool.queueCleared();
+  }
+
+  /**
+   * Returns a preview buffer to the camera unless the source has been stopped in the meantime
+   *
+   * @param buffer buffer which is no longer in use
+   */
+  private synchronized void recycleBuffer(byte[] buffer) {
+    previewBufferPool.recycle(running ? camera : null, buffer);
+  }
+}
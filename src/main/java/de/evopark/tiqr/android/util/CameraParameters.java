@@ -0,0 +1,259 @@
+package de.evopark.tiqr.android.util;
+
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Caches the parameters of an android.hardware.Camera, which every Camera#getParameters call fetches from the
+ * camera service as one long string and parses again
+ * <p>
+ * Reads are served from a snapshot fetched once, the preview size and format even without locking, so they can be
+ * read for every frame. Changes are collected in a Transaction and committed with a single Camera#setParameters
+ * call, which is skipped if none of the values differs from the snapshot. Changes are applied to a fresh copy
+ * which replaces the snapshot once the camera accepted it, so a snapshot is never modified and may be read on
+ * any thread. If the camera rejects a change, the snapshot is dropped and fetched again on the next read, so it
+ * never claims values the camera doesn't have. All parameter changes must go through this class for the snapshot
+ * to stay accurate.
+ */
+public class CameraParameters {
+
+  private final static String LTAG = CameraParameters.class.getSimpleName();
+
+  private final Camera camera;
+  private Camera.Parameters snapshot = null;
+  private volatile int previewWidth = 0;
+  private volatile int previewHeight = 0;
+  private volatile int previewFormat = 0;
+  private int commits = 0;
+  private int skippedCommits = 0;
+
+  /**
+   * Changes to be applied together
+   * Only the values which were set are compared and applied, everything else is left as it is
+   */
+  public class Transaction {
+    private int[] previewSize = null;
+    private int[] fpsRange = null;
+    private String focusMode = null;
+    private boolean focusAreasSet = false;
+    private List<Camera.Area> focusAreas = null;
+    private boolean meteringAreasSet = false;
+    private List<Camera.Area> meteringAreas = null;
+
+    private Transaction() {
+    }
+
+    public Transaction setPreviewSize(int width, int height) {
+      previewSize = new int[]{width, height};
+      return this;
+    }
+
+    public Transaction setPreviewFpsRange(int min, int max) {
+      fpsRange = new int[]{min, max};
+      return this;
+    }
+
+    public Transaction setFocusMode(String mode) {
+      focusMode = mode;
+      return this;
+    }
+
+    /**
+     * @param areas focus areas, null for the camera's default
+     */
+    public Transaction setFocusAreas(List<Camera.Area> areas) {
+      focusAreas = areas;
+      focusAreasSet = true;
+      return this;
+    }
+
+    /**
+     * @param areas metering areas, null for the camera's default
+     */
+    public Transaction setMeteringAreas(List<Camera.Area> areas) {
+      meteringAreas = areas;
+      meteringAreasSet = true;
+      return this;
+    }
+
+    /**
+     * Applies the values with a single call to the camera if any of them differs from the snapshot
+     * Only then a fresh copy of the parameters is fetched to apply them to
+     *
+     * @return true if the camera's parameters were changed, false if they already had these values
+     * @throws RuntimeException if the camera rejected the changes, the snapshot is fetched again in that case
+     */
+    public boolean commit() {
+      synchronized (CameraParameters.this) {
+        final Camera.Parameters current = read();
+        if (current == null) {
+          return false;
+        }
+        if (!differsFrom(current)) {
+          skippedCommits++;
+          return false;
+        }
+        // the snapshot may be in use on other threads, so the changes go into a copy of its own
+        final Camera.Parameters parameters = camera.getParameters();
+        if (parameters == null) {
+          return false;
+        }
+        if (previewSize != null) {
+          parameters.setPreviewSize(previewSize[0], previewSize[1]);
+        }
+        if (fpsRange != null) {
+          parameters.setPreviewFpsRange(fpsRange[0], fpsRange[1]);
+        }
+        if (focusMode != null) {
+          parameters.setFocusMode(focusMode);
+        }
+        if (focusAreasSet) {
+          parameters.setFocusAreas(focusAreas);
+        }
+        if (meteringAreasSet) {
+          parameters.setMeteringAreas(meteringAreas);
+        }
+        try {
+          camera.setParameters(parameters);
+        } catch (RuntimeException e) {
+          invalidate();
+          throw e;
+        }
+        commits++;
+        snapshot = parameters;
+        updatePreview(parameters);
+        return true;
+      }
+    }
+
+    private boolean differsFrom(Camera.Parameters parameters) {
+      if (previewSize != null) {
+        final Camera.Size current = parameters.getPreviewSize();
+        if (current == null || current.width != previewSize[0] || current.height != previewSize[1]) {
+          return true;
+        }
+      }
+      if (fpsRange != null) {
+        final int[] current = new int[2];
+        parameters.getPreviewFpsRange(current);
+        if (current[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] != fpsRange[0] ||
+            current[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] != fpsRange[1]) {
+          return true;
+        }
+      }
+      if (focusMode != null && !focusMode.equals(parameters.getFocusMode())) {
+        return true;
+      }
+      if (focusAreasSet && !sameAreas(focusAreas, parameters.getFocusAreas())) {
+        return true;
+      }
+      return meteringAreasSet && !sameAreas(meteringAreas, parameters.getMeteringAreas());
+    }
+  }
+
+  /**
+   * @param camera an opened camera whose parameters are changed only through this instance from now on
+   */
+  public CameraParameters(Camera camera) {
+    if (camera == null) {
+      throw new IllegalArgumentException("Camera must not be null");
+    }
+    this.camera = camera;
+  }
+
+  public Camera getCamera() {
+    return camera;
+  }
+
+  /**
+   * The snapshot of the parameters, fetched from the camera on first use
+   * The returned instance is replaced rather than modified by transactions, so it can be read on any thread,
+   * but it must not be modified by the caller either, use a Transaction instead
+   *
+   * @return the parameters or null if the camera didn't provide any
+   */
+  public synchronized Camera.Parameters read() {
+    if (snapshot == null) {
+      snapshot = camera.getParameters();
+      if (snapshot != null) {
+        updatePreview(snapshot);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Drops the snapshot so the next read fetches the parameters from the camera again
+   */
+  public synchronized void invalidate() {
+    Log.d(LTAG, "Dropping camera parameter snapshot");
+    snapshot = null;
+  }
+
+  /**
+   * @return a new transaction, nothing is changed until it is committed
+   */
+  public Transaction edit() {
+    return new Transaction();
+  }
+
+  /**
+   * @return preview width in pixels, 0 if unknown
+   */
+  public int getPreviewWidth() {
+    ensureRead();
+    return previewWidth;
+  }
+
+  /**
+   * @return preview height in pixels, 0 if unknown
+   */
+  public int getPreviewHeight() {
+    ensureRead();
+    return previewHeight;
+  }
+
+  /**
+   * @return preview format, 0 if unknown
+   * @see android.graphics.ImageFormat
+   */
+  public int getPreviewFormat() {
+    ensureRead();
+    return previewFormat;
+  }
+
+  /**
+   * @return number of changes sent to the camera
+   */
+  public synchronized int getCommitCount() {
+    return commits;
+  }
+
+  /**
+   * @return number of transactions which didn't need to change anything
+   */
+  public synchronized int getSkippedCommitCount() {
+    return skippedCommits;
+  }
+
+  private void ensureRead() {
+    if (previewFormat == 0) {
+      read();
+    }
+  }
+
+  private void updatePreview(Camera.Parameters parameters) {
+    final Camera.Size size = parameters.getPreviewSize();
+    if (size != null) {
+      previewWidth = size.width;
+      previewHeight = size.height;
+    }
+    previewFormat = parameters.getPreviewFormat();
+  }
+
+  private static boolean sameAreas(List<Camera.Area> a, List<Camera.Area> b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
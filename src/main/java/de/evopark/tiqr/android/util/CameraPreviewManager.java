@@ -4,18 +4,28 @@ import android.app.Activity;
 import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Display;
 import android.view.Surface;
 import android.view.SurfaceHolder;
+import de.evopark.tiqr.android.processing.ResolutionPolicy;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * Changes the preview size of a camera based on the size of a surface view that is attached to it
  * It is somewhat unfortunate that the size of the display influences the size of the
  * data that's delivered to image processing callbacks, so we might want to look for a different way to scale the view
+ * The preview is only restarted if the preview size or the surface actually changed, repeated layout passes
+ * with the same surface size leave it running
+ * Surface callbacks arrive on the UI thread, the camera is only reconfigured on the thread of the given handler,
+ * which has to be the one operating the camera
  */
 public class CameraPreviewManager implements SurfaceHolder.Callback {
 
@@ -26,23 +36,57 @@ public class CameraPreviewManager implements SurfaceHolder.Callback {
   private final static int PREVIEW_FALLBACK_HEIGHT = 480;
 
   private final Camera camera;
+  private final CameraParameters parameters;
   private final Activity activity;
   private final SurfaceHolder holder;
-  private boolean running = false;
+  private final PreviewSizeListener previewSizeListener;
+  private final Handler cameraHandler;
+  private volatile boolean running = false;
+  private ResolutionPolicy resolutionPolicy = null;
+  // preview sizes fitting the surface with its aspect ratio, as {width, height} pairs
+  private int[][] candidateSizes = new int[0][];
+  private int previewWidth = 0;
+  private int previewHeight = 0;
+  // the preview display has been set since the preview was last restarted
+  private boolean displayChanged = false;
+  // the owner stopped the preview, e.g. for standby, so it mustn't be restarted here
+  private boolean paused = false;
+
+  /**
+   * Notified on the camera thread after the preview size of the camera has been changed
+   * but before the preview is restarted
+   */
+  public interface PreviewSizeListener {
+    void previewSizeChanged();
+  }
 
   /**
    * Starts showing the camera preview in the surface
-   *  @param camera a Camera whose preview size should be adjusted
+   *  @param parameters parameters of the Camera whose preview size should be adjusted
    * @param holder a SurfaceHolder whose dimensions to use
    * @param activity
+   * @param previewSizeListener notified when the preview size changes, may be null
+   * @param cameraHandler handler of the thread operating the camera
    */
-  public CameraPreviewManager(Camera camera, SurfaceHolder holder, Activity activity) {
-    this.camera = camera;
+  public CameraPreviewManager(CameraParameters parameters, SurfaceHolder holder, Activity activity,
+                              PreviewSizeListener previewSizeListener, Handler cameraHandler) {
+    this.camera = parameters.getCamera();
+    this.parameters = parameters;
     this.holder = holder;
     this.activity = activity;
+    this.previewSizeListener = previewSizeListener;
+    this.cameraHandler = cameraHandler;
     install();
   }
 
+  private void runOnCameraThread(Runnable task) {
+    if (Looper.myLooper() == cameraHandler.getLooper()) {
+      task.run();
+    } else {
+      cameraHandler.post(task);
+    }
+  }
+
   public void install() {
     if (running) {
       return;
@@ -84,13 +128,23 @@ public class CameraPreviewManager implements SurfaceHolder.Callback {
    * @see android.view.SurfaceHolder.Callback#surfaceCreated(SurfaceHolder)
    */
   @Override
-  public void surfaceCreated(SurfaceHolder surfaceHolder) {
+  public void surfaceCreated(final SurfaceHolder surfaceHolder) {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        setPreviewDisplay(surfaceHolder);
+      }
+    });
+  }
+
+  private synchronized void setPreviewDisplay(SurfaceHolder surfaceHolder) {
     if (!running) {
       return;
     }
     try {
       Log.d(LTAG, "Surface created, setting preview display");
       camera.setPreviewDisplay(surfaceHolder);
+      displayChanged = true;
     } catch (IOException e) {
       Log.e(LTAG, "Could not set camera preview display");
     }
@@ -100,23 +154,99 @@ public class CameraPreviewManager implements SurfaceHolder.Callback {
    * @see android.view.SurfaceHolder.Callback#surfaceChanged(SurfaceHolder, int, int, int)
    */
   @Override
-  public void surfaceChanged(SurfaceHolder _holder, int _format, int width, int height) {
+  public void surfaceChanged(SurfaceHolder _holder, int _format, final int width, final int height) {
     Log.d(LTAG, String.format("Surface changed: %dx%dpx", width, height));
-    final Camera.Parameters parameters = camera.getParameters();
-    if (parameters != null) {
-      Log.d(LTAG, "Stopping preview to adapt to preview surface size");
-      camera.stopPreview();
-      final List<Camera.Size> supportedSizes = parameters.getSupportedPreviewSizes();
-      final Camera.Size previewSize = chooseBestPreviewSize(supportedSizes, width, height);
-      if (previewSize != null) {
-        Log.d(LTAG, String.format("Using preview size %dx%dpx", previewSize.width, previewSize.height));
-        adaptToRotation(parameters, previewSize.width, previewSize.height);
-      } else {
+    runOnCameraThread(new Runnable() {
+      @Override
+      public void run() {
+        adaptToSurface(width, height);
+      }
+    });
+  }
+
+  private synchronized void adaptToSurface(int width, int height) {
+    if (!running) {
+      return;
+    }
+    final Camera.Parameters snapshot = parameters.read();
+    if (snapshot != null) {
+      // preview sizes are given in the landscape orientation of the sensor
+      final boolean portrait = isNaturalOrientation();
+      candidateSizes = chooseCandidateSizes(snapshot.getSupportedPreviewSizes(),
+          portrait ? height : width, portrait ? width : height);
+      final int[] previewSize;
+      if (candidateSizes.length == 0) {
         Log.d(LTAG, String.format("Could not determine optimum preview size. Falling back to %dx%d",
             PREVIEW_FALLBACK_WIDTH, PREVIEW_FALLBACK_HEIGHT));
-        adaptToRotation(parameters, PREVIEW_FALLBACK_WIDTH, PREVIEW_FALLBACK_HEIGHT);
+        previewSize = new int[]{PREVIEW_FALLBACK_WIDTH, PREVIEW_FALLBACK_HEIGHT};
+      } else if (resolutionPolicy != null) {
+        resolutionPolicy.setSupportedSizes(candidateSizes, previewWidth, previewHeight);
+        previewSize = resolutionPolicy.chooseSize(System.nanoTime());
+      } else {
+        previewSize = candidateSizes[candidateSizes.length - 1];
       }
-      camera.setParameters(parameters);
+      Log.d(LTAG, String.format("Using preview size %dx%dpx", previewSize[0], previewSize[1]));
+      adaptToRotation();
+      applyPreviewSize(previewSize);
+    }
+  }
+
+  /**
+   * Lets the policy pick the preview size among the sizes fitting the surface, the data processors get frames
+   * of the same size since this camera API can't deliver them at a different resolution than the preview
+   *
+   * @param policy policy to ask, null to use the largest size fitting the surface
+   */
+  public synchronized void setResolutionPolicy(ResolutionPolicy policy) {
+    resolutionPolicy = policy;
+  }
+
+  /**
+   * Must be called on the camera thread
+   *
+   * @param paused true while the owner keeps the preview stopped, size changes are then applied without starting it
+   */
+  public synchronized void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Asks the resolution policy for the preview size again and restarts the preview if it changed
+   * Must be called on the camera thread
+   */
+  public synchronized void updatePreviewSize() {
+    if (!running || resolutionPolicy == null || candidateSizes.length == 0) {
+      return;
+    }
+    resolutionPolicy.setSupportedSizes(candidateSizes, previewWidth, previewHeight);
+    final int[] previewSize = resolutionPolicy.chooseSize(System.nanoTime());
+    if (previewSize[0] == previewWidth && previewSize[1] == previewHeight) {
+      return;
+    }
+    Log.d(LTAG, String.format("Resolution policy changed preview size to %dx%dpx", previewSize[0], previewSize[1]));
+    applyPreviewSize(previewSize);
+  }
+
+  /**
+   * Sets the preview size, restarting the preview unless neither the size nor the surface changed
+   */
+  private void applyPreviewSize(int[] previewSize) {
+    final boolean sizeChanged = previewSize[0] != parameters.getPreviewWidth() ||
+        previewSize[1] != parameters.getPreviewHeight();
+    previewWidth = previewSize[0];
+    previewHeight = previewSize[1];
+    if (!sizeChanged && !displayChanged) {
+      Log.d(LTAG, "Preview configuration unchanged, leaving the preview running");
+      return;
+    }
+    Log.d(LTAG, "Stopping preview to adapt to preview surface size");
+    camera.stopPreview();
+    parameters.edit().setPreviewSize(previewSize[0], previewSize[1]).commit();
+    displayChanged = false;
+    if (sizeChanged && previewSizeListener != null) {
+      previewSizeListener.previewSizeChanged();
+    }
+    if (!paused) {
       Log.d(LTAG, "Restarting preview with new parameters");
       camera.startPreview();
     }
@@ -132,48 +262,50 @@ public class CameraPreviewManager implements SurfaceHolder.Callback {
   }
 
   /**
-   * Chooses the most appropriate preview size from a list of supported sizes
+   * Chooses the preview sizes suitable for the surface
    *
-   * @param supported list to select the best size from
-   * @param width     width of the target area
-   * @param height    height of the target area
-   * @return Camera.Size which fits the target area best
+   * @param supported list to select the sizes from
+   * @param width     width of the target area in sensor orientation
+   * @param height    height of the target area in sensor orientation
+   * @return sizes fitting into the target area with the closest aspect ratio, ordered by area
    */
-  private Camera.Size chooseBestPreviewSize(List<Camera.Size> supported, int width, int height) {
-    Camera.Size bestPreviewSize = null;
+  private static int[][] chooseCandidateSizes(List<Camera.Size> supported, int width, int height) {
+    final List<int[]> fitting = new ArrayList<int[]>();
     for (Camera.Size size : supported) {
       // only use preview sizes that are actually smaller than the surface we're painting on
       if (size.width <= width && size.height <= height) {
-        if (bestPreviewSize == null) {
-          bestPreviewSize = size;
-        } else {
-          // then choose the largest of the remaining preview sizes
-          int resultArea = bestPreviewSize.width * bestPreviewSize.height;
-          int newArea = size.width * size.height;
-          if (newArea > resultArea) {
-            bestPreviewSize = size;
-          }
-        }
+        fitting.add(new int[]{size.width, size.height});
       }
     }
-    return bestPreviewSize;
+    if (fitting.isEmpty()) {
+      return new int[0][];
+    }
+    // sizes of other aspect ratios would be stretched
+    final int[][] candidates = ResolutionPolicy.filterByAspectRatio(fitting.toArray(new int[fitting.size()][]),
+        width, height);
+    Arrays.sort(candidates, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Integer.valueOf(a[0] * a[1]).compareTo(b[0] * b[1]);
+      }
+    });
+    return candidates;
   }
 
   /**
-   * Adapt the orientation and size of the camera parameters to device rotation
-   * That way it's always the correct way down...
-   * @param parameters camera paramaters to modify
-   * @param previewWidth desired width of the preview
-   * @param previewHeight desired height of the preview
+   * Whether the display is in the device's natural orientation, in which the sensor is sideways
    */
-  private void adaptToRotation(Camera.Parameters parameters, int previewWidth, int previewHeight) {
+  private boolean isNaturalOrientation() {
     final Display display = activity.getWindowManager().getDefaultDisplay();
+    return display.getRotation() == Surface.ROTATION_0 || display.getRotation() == Surface.ROTATION_180;
+  }
+
+  /**
+   * Adapt the orientation of the preview to device rotation
+   * That way it's always the correct way down...
+   */
+  private void adaptToRotation() {
     final int rotation = activity.getResources().getConfiguration().orientation;
-    if (display.getRotation() == Surface.ROTATION_0 || display.getRotation() == Surface.ROTATION_180) {
-      parameters.setPreviewSize(previewHeight, previewWidth);
-    } else {
-      parameters.setPreviewSize(previewWidth, previewHeight);
-    }
     if (rotation == Configuration.ORIENTATION_LANDSCAPE) {
       camera.setDisplayOrientation(0);
     } else {
@@ -0,0 +1,131 @@
+package de.evopark.tiqr.android.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import de.evopark.tiqr.android.processing.ScanStatistics;
+import de.evopark.tiqr.android.processing.ScannedCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects codes from the decoding thread and delivers them in batches at a limited rate
+ * Crossing the JS bridge costs milliseconds, so codes arriving in quick succession are
+ * combined into a single delivery. If the same code is queued twice before a delivery,
+ * only the most recent sighting is kept.
+ */
+public class CoalescingCodeDispatcher {
+
+  public final static int DEFAULT_MAX_RATE = 10;
+
+  /**
+   * Receives batches of codes on the main thread
+   */
+  public interface BatchHandler {
+    void deliver(List<ScannedCode> codes);
+  }
+
+  private final BatchHandler batchHandler;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final List<ScannedCode> pending = new ArrayList<ScannedCode>();
+  private long minInterval;
+  private long lastDelivery = 0;
+  private boolean scheduled = false;
+  // System.nanoTime() when the oldest pending code was queued
+  private long oldestPending = 0;
+  private volatile ScanStatistics statistics = null;
+
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      final List<ScannedCode> batch;
+      final long queued;
+      synchronized (CoalescingCodeDispatcher.this) {
+        scheduled = false;
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = new ArrayList<ScannedCode>(pending);
+        pending.clear();
+        queued = oldestPending;
+        lastDelivery = SystemClock.uptimeMillis();
+      }
+      final ScanStatistics stats = statistics;
+      final long start = System.nanoTime();
+      batchHandler.deliver(batch);
+      if (stats != null) {
+        stats.recordSince(ScanStatistics.Stage.DELIVERY, queued);
+        stats.recordSince(ScanStatistics.Stage.CALLBACK, start);
+        stats.increment(ScanStatistics.Counter.CALLBACKS);
+        stats.add(ScanStatistics.Counter.CODES_DELIVERED, batch.size());
+      }
+    }
+  };
+
+  /**
+   * @param batchHandler receives the batches
+   * @param maxRate      maximum number of deliveries per second
+   */
+  public CoalescingCodeDispatcher(BatchHandler batchHandler, int maxRate) {
+    if (batchHandler == null) {
+      throw new IllegalArgumentException("Batch handler must not be null");
+    }
+    this.batchHandler = batchHandler;
+    setMaxRate(maxRate);
+  }
+
+  /**
+   * @param maxRate maximum number of deliveries per second, at least 1
+   */
+  public synchronized void setMaxRate(int maxRate) {
+    if (maxRate < 1) {
+      throw new IllegalArgumentException("Rate must be at least 1 per second");
+    }
+    minInterval = 1000 / maxRate;
+  }
+
+  /**
+   * @param statistics where to record delivery latencies and callback counts, null to record nothing
+   */
+  public void setStatistics(ScanStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  public synchronized int getMaxRate() {
+    return (int) (1000 / Math.max(1, minInterval));
+  }
+
+  /**
+   * Queues a code for the next delivery, which happens as soon as the rate limit allows
+   * May be called from any thread
+   *
+   * @param code the code to deliver
+   */
+  public synchronized void dispatch(ScannedCode code) {
+    for (int i = 0; i < pending.size(); i++) {
+      if (pending.get(i).getText().equals(code.getText())) {
+        pending.set(i, code);
+        return;
+      }
+    }
+    if (pending.isEmpty()) {
+      oldestPending = System.nanoTime();
+    }
+    pending.add(code);
+    if (!scheduled) {
+      scheduled = true;
+      final long delay = Math.max(0, lastDelivery + minInterval - SystemClock.uptimeMillis());
+      handler.postDelayed(flush, delay);
+    }
+  }
+
+  /**
+   * Drops all codes which haven't been delivered yet
+   */
+  public synchronized void cancel() {
+    pending.clear();
+    scheduled = false;
+    handler.removeCallbacks(flush);
+  }
+}
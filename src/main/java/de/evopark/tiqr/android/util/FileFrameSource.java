@@ -0,0 +1,213 @@
+package de.evopark.tiqr.android.util;
+
+import android.util.Log;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.FrameSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Replays a recording made by FrameRecorder on a thread of its own
+ * Frames are delivered either with their original timing or as fast as the listener takes them.
+ * Timestamps are replaced by the time of delivery so latency measurements stay meaningful;
+ * size, format, stride and rotation are kept. Frame buffers are recycled once released.
+ */
+public class FileFrameSource implements FrameSource {
+
+  private final static String LTAG = FileFrameSource.class.getSimpleName();
+
+  // spare buffers kept for reuse, more are only needed if processors hold on to frames
+  private final static int MAX_SPARE_BUFFERS = 4;
+
+  private final File recording;
+  private final boolean realTime;
+  private final boolean loop;
+  private final ArrayDeque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
+  private volatile Thread player = null;
+  private volatile long replayedFrames = 0;
+
+  private final PreviewFrame.Recycler bufferRecycler = new PreviewFrame.Recycler() {
+    @Override
+    public void recycle(PreviewFrame frame) {
+      synchronized (spareBuffers) {
+        if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+          spareBuffers.push(frame.getData());
+        }
+      }
+    }
+  };
+
+  /**
+   * @param recording file written by FrameRecorder
+   * @param realTime  whether to keep the recorded frame rate, otherwise frames are delivered back to back
+   * @param loop      whether to start over at the end of the recording
+   */
+  public FileFrameSource(File recording, boolean realTime, boolean loop) {
+    this.recording = recording;
+    this.realTime = realTime;
+    this.loop = loop;
+  }
+
+  @Override
+  public synchronized void start(final Listener listener) {
+    if (player != null) {
+      return;
+    }
+    final MappedByteBuffer buffer;
+    try {
+      buffer = map(recording);
+    } catch (IOException e) {
+      Log.e(LTAG, "Could not open recording " + recording, e);
+      return;
+    }
+    player = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        replay(buffer, listener);
+      }
+    }, "TiqrReplay");
+    player.setDaemon(true);
+    player.start();
+  }
+
+  @Override
+  public void stop() {
+    final Thread stopped;
+    synchronized (this) {
+      stopped = player;
+      player = null;
+    }
+    if (stopped != null) {
+      stopped.interrupt();
+    }
+  }
+
+  /**
+   * Waits until the recording has been played to the end or the source was stopped
+   *
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public void join() throws InterruptedException {
+    final Thread current;
+    synchronized (this) {
+      current = player;
+    }
+    if (current != null) {
+      current.join();
+    }
+  }
+
+  /**
+   * @return number of frames delivered since the source was created
+   */
+  public long getReplayedFrameCount() {
+    return replayedFrames;
+  }
+
+  private static MappedByteBuffer map(File recording) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(recording, "r");
+    try {
+      final FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Recordings larger than 2GB are not supported");
+      }
+      // the mapping stays valid after the file has been closed
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      final byte[] magic = new byte[FrameRecorder.MAGIC.length];
+      if (buffer.remaining() < FrameRecorder.FILE_HEADER_SIZE) {
+        throw new IOException("Not a frame recording");
+      }
+      buffer.get(magic);
+      if (!Arrays.equals(magic, FrameRecorder.MAGIC)) {
+        throw new IOException("Not a frame recording");
+      }
+      final int version = buffer.getInt();
+      if (version != FrameRecorder.VERSION) {
+        throw new IOException("Unsupported recording version " + version);
+      }
+      return buffer;
+    } finally {
+      file.close();
+    }
+  }
+
+  private void replay(MappedByteBuffer buffer, Listener listener) {
+    final Thread self = Thread.currentThread();
+    long sequenceNumber = 0;
+    long firstRecorded = 0;
+    long firstReplayed = 0;
+    while (player == self) {
+      if (buffer.remaining() < FrameRecorder.RECORD_HEADER_SIZE) {
+        if (!loop || sequenceNumber == 0) {
+          break;
+        }
+        buffer.position(FrameRecorder.FILE_HEADER_SIZE);
+        firstReplayed = 0;
+        continue;
+      }
+      final int length = buffer.getInt();
+      final int width = buffer.getInt();
+      final int height = buffer.getInt();
+      final int format = buffer.getInt();
+      final int rowStride = buffer.getInt();
+      final int rotation = buffer.getInt();
+      final long timestamp = buffer.getLong();
+      buffer.getLong();
+      if (length < 0 || buffer.remaining() < length) {
+        Log.e(LTAG, "Recording is truncated");
+        break;
+      }
+      final byte[] data = obtainBuffer(length);
+      buffer.get(data);
+      if (realTime) {
+        final long now = System.nanoTime();
+        if (firstReplayed == 0) {
+          firstReplayed = now;
+          firstRecorded = timestamp;
+        }
+        final long delay = (timestamp - firstRecorded) - (now - firstReplayed);
+        if (delay > 0) {
+          try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+      }
+      final PreviewFrame frame = new PreviewFrame(data, width, height, format, rowStride, rotation,
+          System.nanoTime(), sequenceNumber++, bufferRecycler);
+      try {
+        listener.frameAvailable(frame);
+      } finally {
+        frame.release();
+      }
+      replayedFrames++;
+    }
+    Log.d(LTAG, String.format("Replay of %s ended after %d frames", recording, sequenceNumber));
+    synchronized (this) {
+      if (player == self) {
+        player = null;
+      }
+    }
+  }
+
+  private byte[] obtainBuffer(int length) {
+    synchronized (spareBuffers) {
+      while (!spareBuffers.isEmpty()) {
+        final byte[] spare = spareBuffers.pop();
+        if (spare.length == length) {
+          return spare;
+        }
+      }
+    }
+    return new byte[length];
+  }
+}
@@ -0,0 +1,135 @@
+package de.evopark.tiqr.android.util;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.util.Log;
+import de.evopark.tiqr.android.interfaces.FrameQualityListener;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the camera focused on the code while scanning
+ * Implementations receive the sharpness of every analyzed frame and are told when a code was found,
+ * so they can react to blur and stalled decoding instead of refocusing blindly
+ *
+ * Parameters are read and changed through the CameraParameters shared with the other users of the camera
+ *
+ * @see #create(CameraParameters)
+ */
+public abstract class FocusStrategy implements FrameQualityListener {
+
+  private final static String LTAG = FocusStrategy.class.getSimpleName();
+
+  protected final Camera camera;
+  protected final CameraParameters parameters;
+
+  protected FocusStrategy(CameraParameters parameters) {
+    if (parameters == null) {
+      throw new IllegalArgumentException("Camera parameters must not be null");
+    }
+    this.parameters = parameters;
+    this.camera = parameters.getCamera();
+  }
+
+  /**
+   * Picks the best strategy the camera supports:
+   * hardware continuous focus if available, otherwise focus sweeps on demand,
+   * or null for fixed-focus cameras
+   *
+   * @param parameters parameters of the camera which should be focused
+   * @return a started strategy or null if the camera can't focus
+   */
+  public static FocusStrategy create(CameraParameters parameters) {
+    final Camera.Parameters snapshot = parameters.read();
+    final List<String> modes = snapshot == null ? null : snapshot.getSupportedFocusModes();
+    if (modes == null) {
+      return null;
+    }
+    final FocusStrategy strategy;
+    if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+      strategy = new HardwareContinuousFocus(parameters, Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+    } else if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+      strategy = new HardwareContinuousFocus(parameters, Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+    } else if (modes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+      strategy = new OnDemandAutoFocus(parameters, Camera.Parameters.FOCUS_MODE_AUTO);
+    } else if (modes.contains(Camera.Parameters.FOCUS_MODE_MACRO)) {
+      strategy = new OnDemandAutoFocus(parameters, Camera.Parameters.FOCUS_MODE_MACRO);
+    } else {
+      Log.d(LTAG, "Camera has a fixed focus");
+      return null;
+    }
+    Log.d(LTAG, "Using focus strategy " + strategy.getClass().getSimpleName());
+    strategy.start();
+    return strategy;
+  }
+
+  /**
+   * Starts keeping the camera focused
+   */
+  public abstract void start();
+
+  /**
+   * Stops focusing, must be called before the camera is released
+   */
+  public abstract void stop();
+
+  /**
+   * Invoked whenever a code was decoded, i.e. the picture is sharp enough
+   */
+  public abstract void codeFound();
+
+  /**
+   * Focuses and meters on the given part of the picture, if the camera supports it
+   *
+   * @param area region in camera area coordinates (-1000 to 1000 in sensor orientation), null for the default
+   */
+  public void setFocusArea(Rect area) {
+    final Camera.Parameters snapshot = parameters.read();
+    if (snapshot == null) {
+      return;
+    }
+    final List<Camera.Area> areas = area == null ? null : Collections.singletonList(new Camera.Area(area, 1000));
+    final CameraParameters.Transaction transaction = parameters.edit();
+    if (snapshot.getMaxNumFocusAreas() > 0) {
+      transaction.setFocusAreas(areas);
+    }
+    if (snapshot.getMaxNumMeteringAreas() > 0) {
+      transaction.setMeteringAreas(areas);
+    }
+    try {
+      transaction.commit();
+    } catch (RuntimeException e) {
+      Log.w(LTAG, "Camera rejected focus area " + area, e);
+    }
+  }
+
+  /**
+   * Converts a region of a preview frame to camera area coordinates
+   *
+   * @param window      {left, top, width, height} in frame pixels
+   * @param frameWidth  width of the preview frames
+   * @param frameHeight height of the preview frames
+   * @return rectangle in the -1000 to 1000 coordinate space used by Camera.Area
+   */
+  public static Rect toCameraArea(int[] window, int frameWidth, int frameHeight) {
+    return new Rect(
+        window[0] * 2000 / frameWidth - 1000,
+        window[1] * 2000 / frameHeight - 1000,
+        (window[0] + window[2]) * 2000 / frameWidth - 1000,
+        (window[1] + window[3]) * 2000 / frameHeight - 1000);
+  }
+
+  /**
+   * Switches the camera to the given focus mode
+   *
+   * @param mode one of the Camera.Parameters.FOCUS_MODE_* constants
+   */
+  protected void applyFocusMode(String mode) {
+    try {
+      parameters.edit().setFocusMode(mode).commit();
+    } catch (RuntimeException e) {
+      Log.w(LTAG, "Camera rejected focus mode " + mode, e);
+    }
+  }
+}
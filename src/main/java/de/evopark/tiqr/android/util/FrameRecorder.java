@@ -0,0 +1,132 @@
+package de.evopark.tiqr.android.util;
+
+import android.util.Log;
+import de.evopark.tiqr.android.PreviewFrame;
+import de.evopark.tiqr.android.interfaces.PreviewFrameProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes preview frames with their metadata into a memory-mapped recording which FileFrameSource can replay
+ * <p>
+ * The file starts with an 8 byte magic and a version, followed by one record per frame: data length,
+ * width, height, format, row stride and rotation as ints, timestamp and sequence number as longs,
+ * then the raw frame data. Frames backed by a ByteBuffer contribute only their luminance plane, whose pixel
+ * stride is always 1 for YUV_420_888. All numbers are little-endian. The file is mapped up to the size limit
+ * and truncated to what was written when the recorder is closed; frames that don't fit anymore are dropped.
+ */
+public class FrameRecorder implements PreviewFrameProcessor, Closeable {
+
+  private final static String LTAG = FrameRecorder.class.getSimpleName();
+
+  final static byte[] MAGIC = {'T', 'I', 'Q', 'R', 'R', 'E', 'C', 0};
+  final static int VERSION = 1;
+  final static int FILE_HEADER_SIZE = MAGIC.length + 4;
+  final static int RECORD_HEADER_SIZE = 6 * 4 + 2 * 8;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private boolean closed = false;
+  private long recordedFrames = 0;
+  private long droppedFrames = 0;
+
+  /**
+   * Creates the recording, replacing an existing file
+   *
+   * @param output   file to write to
+   * @param maxBytes size limit of the recording
+   * @throws IOException if the file can't be created or mapped
+   */
+  public FrameRecorder(File output, long maxBytes) throws IOException {
+    if (maxBytes <= FILE_HEADER_SIZE || maxBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Size limit must be between the header size and 2GB");
+    }
+    file = new RandomAccessFile(output, "rw");
+    try {
+      file.setLength(0);
+      channel = file.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(MAGIC);
+    buffer.putInt(VERSION);
+    Log.d(LTAG, String.format("Recording up to %d bytes to %s", maxBytes, output));
+  }
+
+  /**
+   * Appends the frame to the recording
+   *
+   * @param frame the preview frame
+   */
+  @Override
+  public synchronized void processFrame(PreviewFrame frame) {
+    if (closed) {
+      return;
+    }
+    final byte[] data = frame.getData();
+    // planes of camera2 images are copied straight from their buffer, without their position being touched
+    final ByteBuffer plane = data == null ? frame.getBuffer().duplicate() : null;
+    final int length = data == null ? plane.clear().remaining() : data.length;
+    if (buffer.remaining() < RECORD_HEADER_SIZE + length) {
+      droppedFrames++;
+      return;
+    }
+    buffer.putInt(length);
+    buffer.putInt(frame.getWidth());
+    buffer.putInt(frame.getHeight());
+    buffer.putInt(frame.getFormat());
+    buffer.putInt(frame.getRowStride());
+    buffer.putInt(frame.getRotation());
+    buffer.putLong(frame.getTimestamp());
+    buffer.putLong(frame.getSequenceNumber());
+    if (data == null) {
+      buffer.put(plane);
+    } else {
+      buffer.put(data);
+    }
+    recordedFrames++;
+  }
+
+  public synchronized long getRecordedFrameCount() {
+    return recordedFrames;
+  }
+
+  /**
+   * @return number of frames that didn't fit into the size limit
+   */
+  public synchronized long getDroppedFrameCount() {
+    return droppedFrames;
+  }
+
+  /**
+   * Flushes the recording and cuts the file down to the frames actually written
+   *
+   * @throws IOException if writing the file fails
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      buffer.force();
+      // the mapping itself is released by the garbage collector
+      channel.truncate(buffer.position());
+    } finally {
+      file.close();
+    }
+    Log.d(LTAG, String.format("Recorded %d frames, dropped %d", recordedFrames, droppedFrames));
+  }
+}
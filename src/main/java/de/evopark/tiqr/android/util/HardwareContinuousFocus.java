@@ -0,0 +1,85 @@
+package de.evopark.tiqr.android.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Lets the camera's own continuous auto-focus do the work
+ * The only intervention is for stalled decoding: some HALs get stuck after a focus scan,
+ * so cancelAutoFocus() is used to kick off a new continuous scan
+ * Stalls are checked by a timer on the camera thread, the frames only tell whether the picture looks blurry
+ */
+public class HardwareContinuousFocus extends FocusStrategy {
+
+  private final static String LTAG = HardwareContinuousFocus.class.getSimpleName();
+
+  // restart continuous focus if no code was found for this long while frames look blurry
+  private final static long STALL_TIMEOUT = 3000;
+  private final static long STALL_CHECK_INTERVAL = 1000;
+
+  private final String focusMode;
+  // strategies are created on the camera thread, so this runs there
+  private final Handler handler = new Handler();
+  private volatile boolean running = false;
+  private volatile long lastProgress = 0;
+  // whether the most recently measured frame was too poor to decode
+  private volatile boolean blurry = false;
+
+  private final Runnable stallCheck = new Runnable() {
+    @Override
+    public void run() {
+      if (!running) {
+        return;
+      }
+      final long now = SystemClock.uptimeMillis();
+      if (blurry && now - lastProgress > STALL_TIMEOUT) {
+        lastProgress = now;
+        try {
+          camera.cancelAutoFocus();
+        } catch (RuntimeException e) {
+          Log.d(LTAG, "Could not restart continuous focus", e);
+        }
+      }
+      handler.postDelayed(this, STALL_CHECK_INTERVAL);
+    }
+  };
+
+  /**
+   * @param parameters parameters of the camera which should be focused
+   * @param focusMode  FOCUS_MODE_CONTINUOUS_PICTURE or FOCUS_MODE_CONTINUOUS_VIDEO
+   */
+  public HardwareContinuousFocus(CameraParameters parameters, String focusMode) {
+    super(parameters);
+    this.focusMode = focusMode;
+  }
+
+  @Override
+  public void start() {
+    if (running) {
+      return;
+    }
+    Log.d(LTAG, "Starting continuous focus mode " + focusMode);
+    applyFocusMode(focusMode);
+    lastProgress = SystemClock.uptimeMillis();
+    blurry = false;
+    running = true;
+    handler.postDelayed(stallCheck, STALL_CHECK_INTERVAL);
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    handler.removeCallbacks(stallCheck);
+  }
+
+  @Override
+  public void codeFound() {
+    lastProgress = SystemClock.uptimeMillis();
+  }
+
+  @Override
+  public void frameQualityMeasured(float sharpness, float contrast, boolean skipped) {
+    blurry = skipped;
+  }
+}
@@ -0,0 +1,150 @@
+package de.evopark.tiqr.android.util;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Triggers a focus sweep only when it is needed, for cameras without continuous focus
+ * A sweep is started when the sharpness of the picture drops well below what it was after the
+ * last sweep, or when no code has been found for a while. Frames captured during a sweep are ignored.
+ * Stalls are detected by a timer on the camera thread, so they are noticed even if no frames are measured.
+ */
+public class OnDemandAutoFocus extends FocusStrategy implements Camera.AutoFocusCallback {
+
+  private final static String LTAG = OnDemandAutoFocus.class.getSimpleName();
+
+  // fraction of the reference sharpness below which a frame counts as blurry
+  private final static float SHARPNESS_DROP_RATIO = 0.5f;
+  // number of blurry frames in a row before refocusing
+  private final static int BLURRY_FRAMES = 3;
+  // peak sharpness decays slowly so the reference follows scene changes
+  private final static float PEAK_DECAY = 0.98f;
+  private final static long MIN_SWEEP_INTERVAL = 1500;
+  private final static long STALL_TIMEOUT = 4000;
+  private final static long STALL_CHECK_INTERVAL = 1000;
+
+  private final String focusMode;
+  // strategies are created on the camera thread, so this runs there
+  private final Handler handler = new Handler();
+  private volatile boolean running = false;
+  private volatile boolean focusing = false;
+  private volatile long lastSweep = 0;
+  private volatile long lastProgress = 0;
+  // written by the decoding thread and reset by sweeps started from the camera thread
+  private volatile float peakSharpness = 0f;
+  private volatile int blurryFrames = 0;
+
+  /**
+   * Runs a focus sweep and catches exceptions
+   */
+  private final Runnable doAutoFocus = new Runnable() {
+    @Override
+    public void run() {
+      if (!running) {
+        return;
+      }
+      try {
+        camera.autoFocus(OnDemandAutoFocus.this);
+      } catch (RuntimeException e) {
+        Log.d(LTAG, "Auto-focus failed", e);
+        focusing = false;
+      }
+    }
+  };
+
+  /**
+   * Refocuses if no code has been found for a while
+   */
+  private final Runnable stallCheck = new Runnable() {
+    @Override
+    public void run() {
+      if (!running) {
+        return;
+      }
+      final long now = SystemClock.uptimeMillis();
+      if (!focusing && now - lastSweep >= MIN_SWEEP_INTERVAL && now - lastProgress > STALL_TIMEOUT) {
+        Log.d(LTAG, "Decoding stalled, refocusing");
+        requestSweep(now);
+      }
+      handler.postDelayed(this, STALL_CHECK_INTERVAL);
+    }
+  };
+
+  /**
+   * @param parameters parameters of the camera which should be focused
+   * @param focusMode  FOCUS_MODE_AUTO or FOCUS_MODE_MACRO
+   */
+  public OnDemandAutoFocus(CameraParameters parameters, String focusMode) {
+    super(parameters);
+    this.focusMode = focusMode;
+  }
+
+  @Override
+  public void start() {
+    if (running) {
+      return;
+    }
+    Log.d(LTAG, "Starting on-demand auto-focus");
+    applyFocusMode(focusMode);
+    running = true;
+    requestSweep(SystemClock.uptimeMillis());
+    handler.postDelayed(stallCheck, STALL_CHECK_INTERVAL);
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    focusing = false;
+    handler.removeCallbacks(doAutoFocus);
+    handler.removeCallbacks(stallCheck);
+  }
+
+  @Override
+  public void codeFound() {
+    lastProgress = SystemClock.uptimeMillis();
+  }
+
+  /**
+   * Invoked by the OS when a focus sweep is complete
+   *
+   * @param _success whether auto-focus was successful
+   * @param _camera  the camera which completed auto-focus
+   */
+  @Override
+  public void onAutoFocus(boolean _success, Camera _camera) {
+    focusing = false;
+    lastProgress = SystemClock.uptimeMillis();
+  }
+
+  @Override
+  public void frameQualityMeasured(float sharpness, float contrast, boolean skipped) {
+    if (!running || focusing) {
+      return;
+    }
+    peakSharpness = Math.max(sharpness, peakSharpness * PEAK_DECAY);
+    if (sharpness < SHARPNESS_DROP_RATIO * peakSharpness) {
+      blurryFrames++;
+    } else {
+      blurryFrames = 0;
+    }
+    final long now = SystemClock.uptimeMillis();
+    if (now - lastSweep < MIN_SWEEP_INTERVAL) {
+      return;
+    }
+    if (blurryFrames >= BLURRY_FRAMES) {
+      Log.d(LTAG, "Picture got blurry, refocusing");
+      requestSweep(now);
+    }
+  }
+
+  private void requestSweep(long now) {
+    focusing = true;
+    lastSweep = now;
+    blurryFrames = 0;
+    // the sharpness after the sweep becomes the new reference
+    peakSharpness = 0f;
+    handler.post(doAutoFocus);
+  }
+}
@@ -0,0 +1,179 @@
+package de.evopark.tiqr.android.util;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A fixed ring of preallocated preview buffers which are handed to the camera via
+ * Camera#addCallbackBuffer so the framework doesn't have to allocate a new array for every frame
+ * Buffers are sized from the negotiated preview format and reallocated only when it changes
+ * Every buffer is either queued at the camera, leased while its frame is being read, or idle,
+ * and only idle buffers are handed to the camera, so re-priming never queues a buffer twice
+ * or hands out one that is still being read
+ */
+public class PreviewBufferPool {
+
+  private final static String LTAG = PreviewBufferPool.class.getSimpleName();
+
+  public final static int DEFAULT_BUFFER_COUNT = 4;
+
+  private final List<byte[]> buffers = new ArrayList<byte[]>();
+  private final Set<byte[]> queued = new HashSet<byte[]>();
+  private final Set<byte[]> leased = new HashSet<byte[]>();
+  private int bufferCount;
+  private int bufferSize = 0;
+
+  /**
+   * @param bufferCount number of buffers to cycle through
+   */
+  public PreviewBufferPool(int bufferCount) {
+    setBufferCount(bufferCount);
+  }
+
+  /**
+   * Changes the number of buffers. Takes effect the next time the pool is primed
+   *
+   * @param bufferCount number of buffers, at least one
+   */
+  public synchronized void setBufferCount(int bufferCount) {
+    if (bufferCount < 1) {
+      throw new IllegalArgumentException("Buffer count must be at least 1");
+    }
+    this.bufferCount = bufferCount;
+  }
+
+  public synchronized int getBufferCount() {
+    return bufferCount;
+  }
+
+  /**
+   * @return size in bytes of each buffer or 0 if the pool hasn't been primed yet
+   */
+  public synchronized int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Hands all idle buffers to the camera, allocating new ones if the preview size or format changed
+   * Buffers which are still queued at the camera are left alone, registering a non-null callback with
+   * Camera#setPreviewCallbackWithBuffer keeps them queued
+   *
+   * @param camera camera to receive the buffers
+   * @param width  preview width in pixels
+   * @param height preview height in pixels
+   * @param format preview format
+   * @see android.graphics.ImageFormat
+   */
+  public synchronized void prime(Camera camera, int width, int height, int format) {
+    allocate(width, height, format);
+    for (byte[] buffer : buffers) {
+      if (!leased.contains(buffer) && queued.add(buffer)) {
+        camera.addCallbackBuffer(buffer);
+      }
+    }
+  }
+
+  /**
+   * Marks all queued buffers as idle again
+   * Must be called whenever the camera dropped its buffer queue, i.e. after unregistering the preview callback
+   * with Camera#setPreviewCallbackWithBuffer(null) or registering one with Camera#setPreviewCallback
+   */
+  public synchronized void queueCleared() {
+    queued.clear();
+  }
+
+  /**
+   * Allocates the buffers for the given preview configuration unless they already fit it
+   * Can be called before the camera is opened, so allocating doesn't delay the first frames
+   *
+   * @param width  preview width in pixels
+   * @param height preview height in pixels
+   * @param format preview format
+   */
+  public synchronized void allocate(int width, int height, int format) {
+    final int size = computeBufferSize(width, height, format);
+    if (size == bufferSize && buffers.size() == bufferCount) {
+      return;
+    }
+    Log.d(LTAG, String.format("Allocating %d preview buffers of %d bytes", bufferCount, size));
+    buffers.clear();
+    // buffers still in use will be dropped when they are recycled, queued ones once the camera delivers them
+    queued.clear();
+    leased.clear();
+    bufferSize = size;
+    for (int i = 0; i < bufferCount; i++) {
+      buffers.add(new byte[size]);
+    }
+  }
+
+  /**
+   * Marks a buffer delivered by the camera as in use
+   *
+   * @param buffer buffer received in the preview callback
+   * @return false if the buffer doesn't belong to the current configuration and mustn't be recycled
+   */
+  public synchronized boolean lease(byte[] buffer) {
+    if (buffer.length != bufferSize || !buffers.contains(buffer)) {
+      return false;
+    }
+    queued.remove(buffer);
+    leased.add(buffer);
+    return true;
+  }
+
+  /**
+   * Returns a leased buffer to the camera once all consumers are done with it
+   * Buffers from a previous preview configuration are dropped
+   *
+   * @param camera camera which delivered the buffer, null to keep the buffer idle until the pool is primed again
+   * @param buffer the buffer to reuse
+   */
+  public synchronized void recycle(Camera camera, byte[] buffer) {
+    if (leased.remove(buffer) && camera != null) {
+      queued.add(buffer);
+      camera.addCallbackBuffer(buffer);
+    }
+  }
+
+  /**
+   * Forgets about all buffers so they can be garbage-collected
+   */
+  public synchronized void clear() {
+    buffers.clear();
+    queued.clear();
+    leased.clear();
+    bufferSize = 0;
+  }
+
+  /**
+   * Calculates the number of bytes a single preview frame occupies
+   * YV12 is special because its rows are aligned to 16 bytes
+   *
+   * @param width  preview width in pixels
+   * @param height preview height in pixels
+   * @param format preview format
+   * @return required buffer size in bytes
+   */
+  public static int computeBufferSize(int width, int height, int format) {
+    if (format == ImageFormat.YV12) {
+      final int yStride = align16(width);
+      final int uvStride = align16(yStride / 2);
+      return yStride * height + uvStride * (height / 2) * 2;
+    }
+    final int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+    if (bitsPerPixel <= 0) {
+      throw new IllegalArgumentException(String.format("Unsupported preview format %d", format));
+    }
+    return width * height * bitsPerPixel / 8;
+  }
+
+  private static int align16(int value) {
+    return (value + 15) & ~15;
+  }
+}
@@ -0,0 +1,66 @@
+package de.evopark.tiqr.android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently seen codes to suppress duplicate reports
+ * A code counts as a duplicate while it keeps being seen; once it hasn't been seen for the
+ * time-to-live it will be reported again. The cache holds a bounded number of codes and evicts
+ * the least recently seen one when full.
+ */
+public class RecentCodeCache {
+
+  public final static long DEFAULT_TIME_TO_LIVE = 10000;
+  public final static int DEFAULT_CAPACITY = 64;
+
+  private final int capacity;
+  private long timeToLive;
+  private final LinkedHashMap<String, Long> lastSeen;
+
+  /**
+   * @param capacity   maximum number of codes to remember
+   * @param timeToLive time in milliseconds after which an unseen code is reported again
+   */
+  public RecentCodeCache(final int capacity, long timeToLive) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    this.capacity = capacity;
+    this.timeToLive = timeToLive;
+    // access order turns the map into an LRU list
+    lastSeen = new LinkedHashMap<String, Long>(capacity * 4 / 3 + 1, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > RecentCodeCache.this.capacity;
+      }
+    };
+  }
+
+  public synchronized void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public synchronized long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * Records a sighting of the code
+   *
+   * @param code the code that was found
+   * @param now  current time in milliseconds
+   * @return true if the code is new or hasn't been seen for the time-to-live and should be reported
+   */
+  public synchronized boolean markSeen(String code, long now) {
+    final Long previous = lastSeen.put(code, now);
+    return previous == null || now - previous >= timeToLive;
+  }
+
+  /**
+   * Forgets all codes so each one will be reported again
+   */
+  public synchronized void clear() {
+    lastSeen.clear();
+  }
+}